@@ -1,29 +1,40 @@
 package de.rwhq.hdfs.index;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
 import com.google.common.base.Function;
 import com.google.common.base.Objects;
 import com.google.common.base.Predicate;
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
-import com.google.common.collect.ObjectArrays;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import de.rwhq.btree.BTree;
 import de.rwhq.btree.Range;
 import de.rwhq.hdfs.index.extractor.ExtractionException;
 import de.rwhq.hdfs.index.extractor.KeyExtractor;
+import de.rwhq.hdfs.index.extractor.KeyExtractors;
 import de.rwhq.io.rm.ResourceManager;
 import de.rwhq.io.rm.ResourceManagerBuilder;
 import de.rwhq.serializer.FixLengthSerializer;
+import de.rwhq.serializer.LongSerializer;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 
 import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static com.google.common.base.Preconditions.*;
 
@@ -44,7 +55,7 @@ import static com.google.common.base.Preconditions.*;
  * Example: If the index-path is /data/indexes, and an index is created over the second column of
  * hdfs:///csvs/users.csv, the index files that are created are:
  * <p/>
- * /data/indexes/csvs/users.csv/properties.xml /data/indexes/csvs/users.csv/2_0 /data/indexes/csvs/users.csv/2_10005
+ * /data/indexes/csvs/users.csv/properties_2 /data/indexes/csvs/users.csv/2_0 /data/indexes/csvs/users.csv/2_10005
  * <p/>
  * With each bTreeWriting, there are four information that have to be stored:
  * <p/>
@@ -60,28 +71,96 @@ import static com.google.common.base.Preconditions.*;
 public abstract class AbstractMultiFileIndex<K, V> implements Index {
 	private static Log LOG = LogFactory.getLog(AbstractMultiFileIndex.class);
 
+	/** marks a partial merged away by compaction, the marker's modification time is the time of the merge */
+	static final String OBSOLETE_SUFFIX     = ".obsolete";
+	/** time readers that opened the properties before a merge may still use the merged-away partials */
+	static final long   OBSOLETE_GRACE_TIME = 10 * 60 * 1000;
+	/** number of entries handed to the tree at once when a partial is written */
+	private static final int BULK_LOAD_CHUNK = 4096;
+	/** properties and lock file that all extractors of a file shared before every index had its own */
+	private static final String LEGACY_PROPERTIES = "properties";
+	private static final String LEGACY_LOCK       = "lock";
+
 	protected String hdfsFile;
 	protected File   indexRootFolder;
 	protected boolean                         isOpen  = false;
 	protected boolean                         ourLock = false;
-	protected AbstractMap.SimpleEntry<K, ?>[] cache   = null;
-	protected int                            cachePointer;
+	protected WriteBuffer<K>                 cache   = null;
 	protected Comparator<K>                  comparator;
 	protected FixLengthSerializer<K, byte[]> keySerializer;
 	protected KeyExtractor<K>                keyExtractor;
+	/** names the files of this index in the index folder */
+	private   String                         indexId;
 
 	protected TreeSet<Range<K>>              defaultSearchRanges;
+	/** the default search ranges for matching lines */
+	private   SearchRanges<K>                searchRanges;
 	protected   FixLengthSerializer<V, byte[]> valueSerializer;
-	private   MFIProperties                  properties;
+	private final MFIProperties              properties;
 	private   MFIProperties.MFIProperty      writingTreePropertyEntry;
 	private   FileSplit                      fileSplit;
 	private   int                            cacheSize;
+	private   int                            writeBufferSize;
 	private   int                            treePageSize;
+	/** size of the bloom filters written for new partials, 0 if no filters are written */
+	private   int                            bloomFilterBitsPerKey;
 
-	/** this attribute should usually be null and is only used when a writing tree is available */
-	private String currentWriteTreePath;
 	private int    remainingPartials;
 
+	/**
+	 * Full caches are written to disk by this single background thread, so that the reader can continue filling a
+	 * fresh cache. It is created lazily and shut down on close().
+	 */
+	private ExecutorService                 flusher;
+	/** the partial currently written in the background, or null */
+	private Future<?>                       pendingFlush;
+	/** the cache handed to the flusher. Once the flush is done, it is reused as the next cache (double-buffering) */
+	private WriteBuffer<K>                  flushingCache;
+
+	/**
+	 * If set, full caches are not saved as partials but spilled as sorted runs into this folder. On sync(), the runs
+	 * are merged into one partial, so one split produces one partial of arbitrary size.
+	 */
+	private File              spillFolder;
+	/** the runs of the partial currently written, or null if nothing was spilled yet */
+	private ExternalSorter<K> sorter;
+
+	/**
+	 * In bulk mode, the index folder is locked by the BulkIndexer and several indexes write partials into it
+	 * concurrently. The property entries are collected here and written by the BulkIndexer in one go.
+	 * null if not in bulk mode.
+	 */
+	private Collection<MFIProperties.MFIProperty> propertySink;
+
+	/** shared index folder the partials are published to and read from, or null if partials are not shared */
+	private SharedIndexStorage sharedStorage;
+
+	/** trees acquired from the TreeCache for reading, released on close() */
+	private final List<BTree<K, ?>> acquiredTrees = Lists.newArrayList();
+	/** readers of the value files of the partials read by this index, by partial path. Closed on close() */
+	private final Map<String, ValueStore.Reader> valueReaders = new HashMap<String, ValueStore.Reader>();
+	/** bloom filters of the partials read by this index, by partial path. null for partials without filter */
+	private final Map<String, PartialBloomFilter> bloomFilters = new HashMap<String, PartialBloomFilter>();
+
+	/** loads partials on a miss of the TreeCache */
+	private final TreeCache.Loader<K, V> treeLoader = new TreeCache.Loader<K, V>() {
+		@Override
+		public BTree<K, V> load(String path) throws IOException {
+			return loadTree(path, valueSerializer);
+		}
+	};
+
+	/** loads partials whose values are kept in a value file, the trees only hold references */
+	private final TreeCache.Loader<K, Long> referenceLoader = new TreeCache.Loader<K, Long>() {
+		@Override
+		public BTree<K, Long> load(String path) throws IOException {
+			return loadTree(path, LongSerializer.INSTANCE);
+		}
+	};
+
+	/** result of preparing the addition of a line, see prepareAdd() */
+	private static enum AddMode {INDEX, COVERED, NOT_INDEXING}
+
 	/** {@inheritDoc} */
 	@Override
 	public boolean addLine(String line, long startPos, long endPos) {
@@ -92,32 +171,108 @@ public abstract class AbstractMultiFileIndex<K, V> implements Index {
 			return false;
 		}
 
+		// a char takes up to 3 bytes in UTF-8
+		int maxValueLength = maxValueLength(3 * line.length());
+		switch (prepareAdd(startPos, endPos, maxValueLength)) {
+			case COVERED:
+				return false;
+			case NOT_INDEXING:
+				return lineMatchesSearchRange(line);
+		}
+
+		// only add it if extraction works
+		try {
+			K key = keyExtractor.extract(line);
+			extractValue(line, startPos, endPos, cache.append(key, maxValueLength));
+			cache.commit();
+			return lineMatchesSearchRange(key);
+		} catch (ExtractionException e) {
+			LOG.error("exception when extracting '" + line + "' at position " + startPos, e);
+			return true;
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean addLine(byte[] bytes, int offset, int length, long startPos, long endPos) {
+		ensureOpen();
+
+		if (length == 0) {
+			handleEmptyLine(startPos, endPos);
+			return false;
+		}
+
+		int maxValueLength = maxValueLength(length);
+		switch (prepareAdd(startPos, endPos, maxValueLength)) {
+			case COVERED:
+				return false;
+			case NOT_INDEXING:
+				return lineMatchesSearchRange(bytes, offset, length);
+		}
+
+		// only add it if extraction works
+		try {
+			K key = KeyExtractors.extract(keyExtractor, bytes, offset, length);
+			extractValue(bytes, offset, length, startPos, endPos, cache.append(key, maxValueLength));
+			cache.commit();
+			return lineMatchesSearchRange(key);
+		} catch (ExtractionException e) {
+			LOG.error("exception when extracting '" + new String(bytes, offset, length, Charsets.UTF_8) +
+					"' at position " + startPos, e);
+			return true;
+		}
+	}
+
+	/**
+	 * takes the lock and extends the coverage of the partial currently written by the line, if the line is to be
+	 * indexed.
+	 *
+	 * @param maxValueLength
+	 * 		upper bound of the length of the value extracted from the line, the cache is flushed if it does not fit
+	 * @return whether the line should be added to the cache
+	 */
+	private AddMode prepareAdd(long startPos, long endPos, int maxValueLength) {
+		// the line is in a partial starting before this split, whose lines are returned by the reader of the split the
+		// partial starts in (see toRanges()). This is checked first, so that the line is never returned twice.
+		if (propertiesContain(startPos)) {
+			if (LOG.isDebugEnabled())
+				LOG.debug("startPos already covered by index: " + startPos);
+			return AddMode.COVERED;
+		}
+
 		if ((!ourLock && isLocked()) || remainingPartials == 0) {
-			return lineMatchesSearchRange(line);
+			return AddMode.NOT_INDEXING;
 		} else {
 			lock();
 
 			// lazy initializing the cache
 			if (cache == null)
-				this.cache = ObjectArrays.newArray(AbstractMap.SimpleEntry.class, cacheSize);
-		}
-
-		// ensure not already covered by index
-		//TODO: remove in production
-		if(properties.contains(startPos)){
-			LOG.warn("startPos already covered by index: \n" + startPos);
-			return false;
+				this.cache = newCache();
 		}
 
-
 		if (writingTreePropertyEntry.endPos != null && writingTreePropertyEntry.endPos >= startPos) {
 			throw new IllegalArgumentException(
 					"expected the current position to be the largest. last pos: " +
 							writingTreePropertyEntry.endPos + "; current: " + startPos);
 		}
 
-		if (cachePointer >= cache.length) {
-			saveWriteTree();
+		// the reader skipped lines, e.g. because they were served by another index. The partial must not claim to
+		// cover them, so it ends here.
+		if (writingTreePropertyEntry.endPos != null && startPos > writingTreePropertyEntry.endPos + 1) {
+			if (cache.isEmpty() && sorter == null)
+				writingTreePropertyEntry = new MFIProperties.MFIProperty();
+			else
+				saveWriteTree();
+
+			if (remainingPartials == 0)
+				return AddMode.NOT_INDEXING;
+		}
+
+		if (!cache.fits(maxValueLength)) {
+			if (spillFolder != null)
+				spillCache();
+			else
+				saveWriteTree();
 		}
 
 		if (writingTreePropertyEntry.startPos == null)
@@ -125,14 +280,7 @@ public abstract class AbstractMultiFileIndex<K, V> implements Index {
 
 		writingTreePropertyEntry.endPos = endPos;
 
-		// only add it if extraction works
-		try {
-			cache[cachePointer++] = extractEntry(line, startPos);
-			return lineMatchesSearchRange(cache[cachePointer - 1].getKey());
-		} catch (ExtractionException e) {
-			LOG.error("exception when extracting '" + line + "' at position " + startPos, e);
-			return true;
-		}
+		return AddMode.INDEX;
 	}
 
 	/**
@@ -158,32 +306,45 @@ public abstract class AbstractMultiFileIndex<K, V> implements Index {
 
 		MFIProperties.MFIProperty p;
 
+		// the background flusher might add a property at the same time
+		synchronized (properties) {
 
-		// case 2, previous index
-		p = properties.propertyForPos(startPos - 1);
-		if (p != null) {
-			p.endPos = endPos;
-			try {
-				properties.write();
+			// in bulk mode, the properties are only written by the BulkIndexer
+			if (propertySink != null)
 				return;
-			} catch (IOException e) {
-				LOG.error("could not extend index: ", e);
+
+			// case 2, previous index
+			p = properties.propertyForPos(startPos - 1);
+			if (p != null) {
+				p.endPos = endPos;
+				try {
+					properties.write();
+					return;
+				} catch (IOException e) {
+					LOG.error("could not extend index: ", e);
+				}
 			}
-		}
 
-		// case 2, next index
-		p = properties.propertyForPos(endPos + 1);
-		if (p != null) {
-			p.startPos = startPos;
-			try {
-				properties.write();
-				return;
-			} catch (IOException e) {
-				LOG.error("could not extend index: ", e);
+			// case 2, next index
+			p = properties.propertyForPos(endPos + 1);
+			if (p != null) {
+				p.startPos = startPos;
+				try {
+					properties.write();
+					return;
+				} catch (IOException e) {
+					LOG.error("could not extend index: ", e);
+				}
 			}
 		}
 	}
 
+	private boolean propertiesContain(long pos) {
+		synchronized (properties) {
+			return properties.contains(pos);
+		}
+	}
+
 	/** {@inheritDoc} */
 	@Override
 	public boolean isOpen() {
@@ -197,7 +358,10 @@ public abstract class AbstractMultiFileIndex<K, V> implements Index {
 		indexDir.mkdirs();
 
 		writingTreePropertyEntry = new MFIProperties.MFIProperty();
-		cachePointer = 0;
+		migrateLegacyProperties();
+
+		if (sharedStorage != null)
+			mergeSharedPartials();
 
 		if (properties.exists())
 			properties.read();
@@ -208,11 +372,100 @@ public abstract class AbstractMultiFileIndex<K, V> implements Index {
 		isOpen = true;
 	}
 
+	/**
+	 * moves the partials of this index out of the properties file that all extractors shared before every index had
+	 * its own. The legacy file is deleted once no partials are left in it.
+	 */
+	private void migrateLegacyProperties() throws IOException {
+		File legacyFile = new File(getIndexFolder(), LEGACY_PROPERTIES);
+
+		// an index of the old layout is still writing to it
+		if (!legacyFile.exists() || new File(getIndexFolder(), LEGACY_LOCK).exists())
+			return;
+
+		MFIProperties legacy = MFIProperties.read(legacyFile.getPath());
+		List<MFIProperties.MFIProperty> own = Lists.newArrayList(filterOwnPartials(legacy.asList()));
+		if (!own.isEmpty()) {
+			int added;
+			synchronized (properties) {
+				added = properties.merge(own);
+			}
+			LOG.info("moved " + added + " partials from " + legacyFile + " to " + getPropertiesFile());
+		}
+
+		legacy.asList().removeAll(own);
+		if (legacy.asList().isEmpty()) {
+			if (!legacyFile.delete())
+				LOG.warn("could not delete " + legacyFile);
+		} else if (!own.isEmpty()) {
+			legacy.write();
+		}
+	}
+
+	/**
+	 * adds the partials published by other nodes to the properties. Partials overlapping partials of the properties
+	 * are skipped, see MFIProperties.merge().
+	 */
+	private void mergeSharedPartials() {
+		try {
+			List<MFIProperties.MFIProperty> shared = sharedStorage.read();
+			if (shared.isEmpty())
+				return;
+
+			int added;
+			synchronized (properties) {
+				added = properties.merge(shared);
+			}
+
+			if (added > 0)
+				LOG.info("added " + added + " shared partials to " + getPropertiesFile());
+		} catch (IOException e) {
+			LOG.warn("could not read the shared partials of " + hdfsFile, e);
+		}
+	}
+
+	/** publishes the partials into the shared index folder, if there is one */
+	private void publish(Collection<MFIProperties.MFIProperty> partials) {
+		if (sharedStorage == null)
+			return;
+
+		try {
+			sharedStorage.publish(partials);
+		} catch (IOException e) {
+			// the partials are still used on this node
+			LOG.warn("could not publish partials " + partials, e);
+		}
+	}
+
+	/** replaces the published partials merged by compaction with the merged partial, if there is a shared folder */
+	private void publishReplacement(List<MFIProperties.MFIProperty> group, MFIProperties.MFIProperty merged) {
+		if (sharedStorage == null)
+			return;
+
+		try {
+			sharedStorage.replace(group, merged);
+		} catch (IOException e) {
+			// other nodes still use the merged-away partials
+			LOG.warn("could not publish merged partial " + merged, e);
+		}
+	}
+
+	/** copies a partial published by another node into the partial cache, if it is not there yet */
+	private void localize(String partialPath) throws IOException {
+		if (sharedStorage != null && sharedStorage.isCached(partialPath))
+			sharedStorage.localize(partialPath);
+	}
+
+	/**
+	 * Hands the current cache to the background flusher and waits until all outstanding partials are written.
+	 */
 	@Override
 	public void sync() {
 		ensureOpen();
 
 		saveWriteTree();
+		awaitFlush();
+		unlock();
 	}
 
 	/** {@inheritDoc} */
@@ -226,6 +479,9 @@ public abstract class AbstractMultiFileIndex<K, V> implements Index {
 		} finally {
 			if (ourLock)
 				unlock();
+			if (flusher != null)
+				flusher.shutdown();
+			releaseTrees();
 			isOpen = false;
 		}
 	}
@@ -233,8 +489,10 @@ public abstract class AbstractMultiFileIndex<K, V> implements Index {
 	/** {@inheritDoc} */
 	@Override
 	public SortedSet<Range<Long>> toRanges() {
-		SortedSet<Range<Long>> ranges =
-				properties.toRanges(fileSplit.getStart(), fileSplit.getStart() + fileSplit.getLength() - 1);
+		SortedSet<Range<Long>> ranges;
+		synchronized (properties) {
+			ranges = properties.toRanges(fileSplit.getStart(), fileSplit.getStart() + fileSplit.getLength() - 1);
+		}
 
 		if (LOG.isDebugEnabled()) {
 			LOG.debug(
@@ -285,26 +543,51 @@ public abstract class AbstractMultiFileIndex<K, V> implements Index {
 		indexRootFolder = checkNotNull(b.getIndexRootFolder(), "index root folder must not be null");
 		keyExtractor = checkNotNull(b.getKeyExtractor(), "keyExtractor must not be null");
 		fileSplit = checkNotNull(b.getFileSplit(), "fileSplit must not be null");
+		indexId = b.getIndexId();
 
-		remainingPartials = b.getMaxPartialsPerSplit();
+		propertySink = b.getPropertySink();
+		// a bulk build indexes the whole split, the cap only bounds the work done within queries
+		remainingPartials = propertySink != null ? Integer.MAX_VALUE : b.getMaxPartialsPerSplit();
 		cacheSize = b.getCacheSize();
+		// the cache is sized in bytes. If not configured, it is derived from the number of entries
+		writeBufferSize = b.getWriteBufferSize() > 0 ? b.getWriteBufferSize() : cacheSize * entryLength();
 		treePageSize = b.getTreePageSize();
+		if (b.getTreeCacheSize() >= 0)
+			TreeCache.INSTANCE.setCapacity(b.getTreeCacheSize());
+		bloomFilterBitsPerKey = b.getBloomFilterBitsPerKey();
+		spillFolder = b.getSpillFolder();
 		hdfsFile = fileSplit.getPath().toString().replaceAll("^(hdfs://|file:)[^/]*", "");
 
 		// if hdfsFile doesn't start with /, the server name is before the path
 		// with this, we ensure that the hdfsFile starts with /
 		checkArgument(hdfsFile.startsWith("/"), "hdfsPath must start with /. Is: %s", hdfsFile);
 		checkArgument(cacheSize >= 10, "cacheSize must be >= 10");
+		checkArgument(writeBufferSize / entryLength() >= 10, "writeBufferSize must hold at least 10 entries");
 		checkArgument(treePageSize >= 4 * 1024, "treePageSize must be at least 4kb");
 		checkArgument(b.getIndexRootFolder().exists(), "index folder must exist");
 		checkArgument(remainingPartials >= 0, "remainingPartials must be positive");
+		checkArgument(spillFolder == null || spillFolder.isDirectory(), "spillFolder must be a directory");
 
 		// must be set after hdfs file is checked
-		properties = new MFIProperties(getIndexFolder() + "/properties");
+		properties = new MFIProperties(getPropertiesFile().getPath());
+
+		if (b.getSharedIndexFolder() != null) {
+			File cacheFolder = b.getPartialCacheFolder() != null ? b.getPartialCacheFolder() :
+					new File(indexRootFolder, SharedIndexStorage.DEFAULT_CACHE_FOLDER);
+			Configuration conf = b.getJobConfiguration() != null ? b.getJobConfiguration() : new Configuration();
+			try {
+				FileSystem fs = b.getSharedIndexFolder().getFileSystem(conf);
+				sharedStorage = new SharedIndexStorage(fs, b.getSharedIndexFolder(), cacheFolder,
+						b.getPartialCacheSize(), hdfsFile, indexId);
+			} catch (IOException e) {
+				throw new IllegalArgumentException("could not open shared index folder " + b.getSharedIndexFolder(), e);
+			}
+		}
 
 		if (b.getDefaultSearchRanges() != null) {
 			defaultSearchRanges = Range.merge(b.getDefaultSearchRanges(), comparator);
 		}
+		searchRanges = new SearchRanges<K>(b.getDefaultSearchRanges(), comparator);
 
 		if (LOG.isDebugEnabled())
 			LOG.debug("constructed: " + toString());
@@ -319,13 +602,27 @@ public abstract class AbstractMultiFileIndex<K, V> implements Index {
 				.add("locked", isLocked())
 				.add("ourLock", ourLock)
 				.add("cacheSize", cacheSize)
+				.add("writeBufferSize", writeBufferSize)
 				.add("defaultSearchRanges", defaultSearchRanges)
 				.toString();
 	}
 
+	/**
+	 * Every extractor, or extractor and projection, has its own lock and properties file, so that several indexes
+	 * over different columns can be built on the same hdfs file at the same time.
+	 */
 	@VisibleForTesting
 	File getLockFile() {
-		return new File(getIndexFolder() + "/lock");
+		return new File(getIndexFolder() + "/lock_" + indexId);
+	}
+
+	@VisibleForTesting
+	File getPropertiesFile() {
+		return new File(getIndexFolder() + "/properties_" + indexId);
+	}
+
+	String getIndexId() {
+		return indexId;
 	}
 
 	/** @return directory of the index-files for the current hdfs file */
@@ -335,10 +632,108 @@ public abstract class AbstractMultiFileIndex<K, V> implements Index {
 	}
 
 	protected Iterator<V> getTreeIterator(Range<Long> partial) throws IOException {
-		return getTree(properties.getPropertyForRange(partial).filePath, false).getIterator(defaultSearchRanges);
+		MFIProperties.MFIProperty p;
+		synchronized (properties) {
+			p = properties.getPropertyForRange(partial);
+		}
+
+		// the tree is not loaded if its keys are outside the search ranges
+		if (!mayContainSearchRanges(p) || !mayContainSearchKeys(p))
+			return Iterators.emptyIterator();
+
+		return getValues(p, defaultSearchRanges);
+	}
+
+	/**
+	 * @return the values of the partial within the key ranges. If the values of the partial are kept in a value file,
+	 *         they are read from there.
+	 */
+	private Iterator<V> getValues(final MFIProperties.MFIProperty partial, Collection<Range<K>> ranges)
+			throws IOException {
+		ValueStore store = valueStore(partial.valueFormat);
+		if (store == null)
+			return acquireTree(partial.filePath, treeLoader).getIterator(ranges);
+
+		Iterator<Long> references = acquireTree(partial.filePath, referenceLoader).getIterator(ranges);
+		final ValueStore.Reader reader = getValueReader(partial.filePath, store);
+		return Iterators.transform(references, new Function<Long, V>() {
+			private byte[] value = new byte[valueSerializer.getSerializedLength()];
+
+			@Override
+			public V apply(Long reference) {
+				try {
+					int length = reader.length(reference);
+					if (value.length < length)
+						value = new byte[Math.max(length, 2 * value.length)];
+
+					reader.read(reference, value);
+					return deserializeValue(value, length, partial.valueFormat);
+				} catch (IOException e) {
+					throw new RuntimeException("could not read value of partial " + partial.filePath, e);
+				}
+			}
+		});
+	}
+
+	private ValueStore.Reader getValueReader(String partialPath, ValueStore store) throws IOException {
+		synchronized (valueReaders) {
+			ValueStore.Reader reader = valueReaders.get(partialPath);
+			if (reader == null) {
+				localize(partialPath);
+				reader = store.open(partialPath);
+				valueReaders.put(partialPath, reader);
+			}
+
+			return reader;
+		}
+	}
+
+	/**
+	 * Used to combine splits before a job is started. Requires an opened index.
+	 *
+	 * @return true, if every position from start to end is covered by partials
+	 */
+	public boolean isIndexedSplit(long start, long end) {
+		ensureOpen();
+
+		synchronized (properties) {
+			return properties.coveringProperties(start, end) != null;
+		}
 	}
 
-	private boolean lineMatchesSearchRange(final String line) {
+	/**
+	 * Used to drop splits before a job is started. Requires an opened index.
+	 *
+	 * @return true, if every position from start to end is covered by partials and none of these partials can contain
+	 *         a key of the default search ranges. Reading the positions would not return any line then.
+	 */
+	public boolean isEmptySplit(long start, long end) throws IOException {
+		ensureOpen();
+
+		List<MFIProperties.MFIProperty> covering;
+		synchronized (properties) {
+			covering = properties.coveringProperties(start, end);
+		}
+
+		if (covering == null)
+			return false;
+
+		for (MFIProperties.MFIProperty p : covering) {
+			boolean empty = (p.rowCount != null && p.rowCount == 0) || !mayContainSearchRanges(p) ||
+					!mayContainSearchKeys(p);
+			if (!empty)
+				return false;
+		}
+
+		return true;
+	}
+
+	/** @return true, if search ranges were configured for this index */
+	boolean hasSearchRanges() {
+		return !searchRanges.isEmpty();
+	}
+
+	boolean lineMatchesSearchRange(final String line) {
 		final K key;
 		try {
 			key = keyExtractor.extract(line);
@@ -350,15 +745,25 @@ public abstract class AbstractMultiFileIndex<K, V> implements Index {
 		return lineMatchesSearchRange(key);
 	}
 
-	private boolean lineMatchesSearchRange(final K key) {
-		Collection<Range<K>> resultCollection = Collections2.filter(defaultSearchRanges, new Predicate<Range<K>>() {
-			@Override
-			public boolean apply(Range<K> input) {
-				return input.contains(key, comparator);
-			}
-		});
+	/** @return whether keys are extracted from the bytes of lines, without decoding them */
+	boolean scansBytes() {
+		return KeyExtractors.scansBytes(keyExtractor);
+	}
+
+	boolean lineMatchesSearchRange(byte[] bytes, int offset, int length) {
+		final K key;
+		try {
+			key = KeyExtractors.extract(keyExtractor, bytes, offset, length);
+		} catch (ExtractionException e) {
+			LOG.warn("could not extract key from line: " + new String(bytes, offset, length, Charsets.UTF_8), e);
+			return true;
+		}
+
+		return lineMatchesSearchRange(key);
+	}
 
-		return !resultCollection.isEmpty();
+	private boolean lineMatchesSearchRange(final K key) {
+		return searchRanges.contains(key);
 	}
 
 
@@ -367,52 +772,700 @@ public abstract class AbstractMultiFileIndex<K, V> implements Index {
 			throw new IllegalStateException("index must be opened before it is used");
 	}
 
-	protected abstract AbstractMap.SimpleEntry<K, ?> extractEntry(String line, long pos) throws ExtractionException;
+	/**
+	 * writes the serialized value to be stored for the line into the write buffer
+	 *
+	 * @param line
+	 * @param startPos
+	 * 		start position of the line in the hdfs file
+	 * @param endPos
+	 * 		end position of the line in the hdfs file, including the line terminator
+	 * @param value
+	 * 		arena of the write buffer, the value is written at its position. There is room for maxValueLength() bytes.
+	 * @throws ExtractionException
+	 */
+	protected abstract void extractValue(String line, long startPos, long endPos, ByteBuffer value)
+			throws ExtractionException;
+
+	/**
+	 * writes the serialized value to be stored for the line into the write buffer
+	 *
+	 * @param bytes
+	 * 		UTF-8 encoded line
+	 * @param offset
+	 * @param length
+	 * @param startPos
+	 * 		start position of the line in the hdfs file
+	 * @param endPos
+	 * 		end position of the line in the hdfs file, including the line terminator
+	 * @param value
+	 * 		arena of the write buffer, the value is written at its position. There is room for maxValueLength() bytes.
+	 * @throws ExtractionException
+	 */
+	protected abstract void extractValue(byte[] bytes, int offset, int length, long startPos, long endPos,
+	                                     ByteBuffer value) throws ExtractionException;
+
+	/**
+	 * @param lineLength
+	 * 		length of the line in bytes
+	 * @return the largest length of the value extracted from a line of the given length
+	 */
+	protected int maxValueLength(int lineLength) {
+		return valueSerializer.getSerializedLength();
+	}
+
+	/**
+	 * @param value
+	 * 		buffer holding the value read from a value file
+	 * @param length
+	 * 		length of the value in the buffer
+	 * @param valueFormat
+	 * 		format of the values in the partial
+	 * @return the deserialized value
+	 */
+	protected V deserializeValue(byte[] value, int length, int valueFormat) {
+		return valueSerializer.deserialize(value);
+	}
+
+	/**
+	 * serializes a value read from a partial for writing it again, in the same format as extractValue()
+	 *
+	 * @param value
+	 * @param valueFormat
+	 * 		format of the values of the written partial
+	 * @return the serialized value
+	 */
+	protected byte[] serializeValue(V value, int valueFormat) {
+		return valueSerializer.serialize(value);
+	}
+
+	/**
+	 * @return format of the values written by extractValue(), stored with the partial. Indexes that change the format
+	 *         of their values return a new format, so that old partials can still be read.
+	 */
+	protected int valueFormat() {
+		return 0;
+	}
+
+	/**
+	 * @return the store for the values of partials with the given value format, or null if the values are stored in
+	 *         the tree
+	 */
+	ValueStore valueStore(int valueFormat) {
+		return null;
+	}
+
+	/** @return format of the values in the partial covering the range */
+	protected int valueFormatOf(Range<Long> partial) {
+		synchronized (properties) {
+			return properties.getPropertyForRange(partial).valueFormat;
+		}
+	}
 
+	/**
+	 * Hands the current cache over to the background flusher and continues with the second cache buffer. If the
+	 * previous flush is still running, we wait for it, so that at most one partial is written at a time.
+	 */
 	protected void saveWriteTree() {
+		if (cache == null || (cache.isEmpty() && sorter == null))
+			return;
+
+		awaitFlush();
+
+		final WriteBuffer<K> fullCache = swapCache();
+		final ExternalSorter<K> runs = sorter;
+		final MFIProperties.MFIProperty propertyEntry = writingTreePropertyEntry;
+
+		sorter = null;
+		writingTreePropertyEntry = new MFIProperties.MFIProperty();
+		remainingPartials--;
+
+		pendingFlush = getFlusher().submit(new Runnable() {
+			@Override
+			public void run() {
+				writePartial(fullCache, runs, propertyEntry);
+			}
+		});
+	}
+
+	/**
+	 * Hands the current cache to the flusher, which sorts it and writes it as a run into the spill folder. The
+	 * partial itself stays open.
+	 */
+	private void spillCache() {
+		awaitFlush();
+
+		final WriteBuffer<K> fullCache = swapCache();
+		if (sorter == null)
+			sorter = new ExternalSorter<K>(spillFolder, keySerializer, comparator);
+		final ExternalSorter<K> runs = sorter;
+
+		pendingFlush = getFlusher().submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					fullCache.sort(comparator);
+					runs.spill(fullCache);
+				} catch (IOException e) {
+					LOG.error("error when spilling index cache", e);
+				} finally {
+					fullCache.clear();
+				}
+			}
+		});
+	}
+
+	/** @return the full cache. The second buffer becomes the current cache. */
+	private WriteBuffer<K> swapCache() {
+		WriteBuffer<K> fullCache = cache;
+		cache = flushingCache != null ? flushingCache : newCache();
+		flushingCache = fullCache;
+		return fullCache;
+	}
+
+	/**
+	 * writes the given cache into a new btree and adds the property entry to the properties file. If runs were
+	 * spilled for this partial, they are merged with the cache.
+	 * This method is executed by the flusher thread.
+	 */
+	private void writePartial(WriteBuffer<K> buffer, ExternalSorter<K> runs, MFIProperties.MFIProperty propertyEntry) {
+		String path = null;
 		try {
-			if (cachePointer == 0)
+			LOG.info("saving index: from " + propertyEntry.startPos + " to " + propertyEntry.endPos);
+
+			// sorting happens here, in the flusher thread
+			buffer.sort(comparator);
+
+			if (runs != null && runs.hasFailed()) {
+				LOG.error("dropping index partial, not all runs could be spilled");
 				return;
+			}
 
-			LOG.info(
-					"saving index: from " + writingTreePropertyEntry.startPos + " to " + writingTreePropertyEntry.endPos);
+			path = createWriteTreePath();
+			propertyEntry.valueFormat = valueFormat();
+			writeTree(path, buffer, runs, propertyEntry);
 
-			createWritingTree();
-			currentWriteTree.bulkInitialize(cache, 0, cachePointer - 1, false);
+			propertyEntry.filePath = path;
 
-			writingTreePropertyEntry.filePath = currentWriteTreePath;
+			if (propertySink != null) {
+				propertySink.add(propertyEntry);
+				return;
+			}
 
-			if (properties.exists())
-				properties.read();
-			properties.asList().add(writingTreePropertyEntry);
-			properties.write();
+			synchronized (properties) {
+				if (properties.exists())
+					properties.read();
+				properties.asList().add(propertyEntry);
+				properties.write();
+			}
 
-			writingTreePropertyEntry = new MFIProperties.MFIProperty();
+			publish(Collections.singletonList(propertyEntry));
+		} catch (IOException e) {
+			LOG.error("error when saving index", e);
+
+			// drop this partial, the range will be indexed again by the next scan
+			if (path != null) {
+				synchronized (properties) {
+					properties.removeByPath(path);
+				}
+				if (new File(path).exists() && !deletePartial(path))
+					LOG.warn("could not delete partial " + path);
+			}
+		} finally {
+			buffer.clear();
+			if (runs != null)
+				runs.delete();
+		}
+	}
 
-			currentWriteTree.close();
+	/**
+	 * writes the sorted entries of the buffer, merged with the runs if there are any, into a new partial. If values of
+	 * the format of the partial are kept in a value file, the values are appended to it in key order and the tree only
+	 * holds their references.
+	 * <p/>
+	 * The smallest and largest key and the number of entries are recorded in the property of the partial. If
+	 * configured, a bloom filter over the keys is written next to the partial.
+	 */
+	private void writeTree(String path, WriteBuffer<K> buffer, ExternalSorter<K> runs,
+	                       MFIProperties.MFIProperty partial) throws IOException {
+		ValueStore store = valueStore(partial.valueFormat);
+		PartialSummary summary = new PartialSummary(buffer.size() + (runs == null ? 0 : runs.size()));
 
+		if (store == null) {
+			BTree<K, V> tree = createWritingTree(path, valueSerializer);
+			try {
+				bulkLoadMerged(tree, Iterators.transform(runs == null ? buffer.iterator() : runs.merge(buffer),
+						summary));
+			} finally {
+				tree.close();
+			}
+			summary.write(path, partial);
+			return;
+		}
+
+		final ValueStore.Writer writer = store.create(path);
+		try {
+			Iterator<AbstractMap.SimpleEntry<K, byte[]>> references;
+			if (runs == null) {
+				references = appendValues(buffer, writer);
+			} else {
+				references = Iterators.transform(runs.merge(buffer),
+						new Function<AbstractMap.SimpleEntry<K, byte[]>, AbstractMap.SimpleEntry<K, byte[]>>() {
+							@Override
+							public AbstractMap.SimpleEntry<K, byte[]> apply(AbstractMap.SimpleEntry<K, byte[]> entry) {
+								byte[] value = entry.getValue();
+								return referenceEntry(entry.getKey(), writer, value, value.length);
+							}
+						});
+			}
+
+			BTree<K, Long> tree = createWritingTree(path, LongSerializer.INSTANCE);
+			try {
+				bulkLoadMerged(tree, Iterators.transform(references, summary));
+			} finally {
+				tree.close();
+			}
+		} finally {
+			writer.close();
+		}
+
+		summary.write(path, partial);
+	}
+
+	/**
+	 * @return the entries of the sorted buffer with the references of their values, which are appended to the writer
+	 *         while iterating. The values are copied from the arena into one reused array.
+	 */
+	private Iterator<AbstractMap.SimpleEntry<K, byte[]>> appendValues(final WriteBuffer<K> buffer,
+	                                                                  final ValueStore.Writer writer) {
+		return new AbstractIterator<AbstractMap.SimpleEntry<K, byte[]>>() {
+			private int    next;
+			private byte[] value = new byte[valueSerializer.getSerializedLength()];
+
+			@Override
+			protected AbstractMap.SimpleEntry<K, byte[]> computeNext() {
+				if (next == buffer.size())
+					return endOfData();
+
+				int length = buffer.getValueLength(next);
+				if (value.length < length)
+					value = new byte[Math.max(length, 2 * value.length)];
+				buffer.getValue(next, value);
+
+				return referenceEntry(buffer.getKey(next++), writer, value, length);
+			}
+		};
+	}
+
+	/** appends the value to the writer and returns an entry with the serialized reference */
+	private AbstractMap.SimpleEntry<K, byte[]> referenceEntry(K key, ValueStore.Writer writer, byte[] value,
+	                                                          int length) {
+		try {
+			long reference = writer.append(value, 0, length);
+			return new AbstractMap.SimpleEntry<K, byte[]>(key, LongSerializer.INSTANCE.serialize(reference));
 		} catch (IOException e) {
-			LOG.error("error when saving index");
-			LOG.error(e.getStackTrace());
-			// reset cache and properties next, maybe we can save this index partial next time
+			throw new RuntimeException("could not write value", e);
+		}
+	}
+
+	/**
+	 * collects the smallest and largest key and the number of the sorted entries passing through, and adds the keys
+	 * to the bloom filter of the partial if one is configured
+	 */
+	private class PartialSummary
+			implements Function<AbstractMap.SimpleEntry<K, byte[]>, AbstractMap.SimpleEntry<K, byte[]>> {
+		private final PartialBloomFilter filter;
+		private       K                  min;
+		private       K                  max;
+		private       long               count;
+
+		private PartialSummary(long expectedEntries) {
+			filter = bloomFilterBitsPerKey > 0 ?
+					PartialBloomFilter.create(expectedEntries, bloomFilterBitsPerKey) : null;
+		}
+
+		@Override
+		public AbstractMap.SimpleEntry<K, byte[]> apply(AbstractMap.SimpleEntry<K, byte[]> entry) {
+			if (count++ == 0)
+				min = entry.getKey();
+			max = entry.getKey();
+
+			if (filter != null)
+				filter.add(keySerializer.serialize(entry.getKey()));
+
+			return entry;
+		}
+
+		/** records the summary in the property and writes the bloom filter next to the partial */
+		void write(String path, MFIProperties.MFIProperty partial) throws IOException {
+			partial.rowCount = count;
+			partial.minKey = count > 0 ? keySerializer.serialize(min) : null;
+			partial.maxKey = count > 0 ? keySerializer.serialize(max) : null;
+
+			if (filter != null)
+				filter.write(path);
+		}
+	}
+
+	/**
+	 * @return false, if the smallest and largest key recorded for the partial show that none of its keys is in the
+	 *         default search ranges. Partials without recorded keys may always contain keys of the ranges.
+	 */
+	boolean mayContainSearchRanges(MFIProperties.MFIProperty partial) {
+		if (defaultSearchRanges == null || defaultSearchRanges.isEmpty() || partial.minKey == null ||
+				partial.maxKey == null)
+			return true;
+
+		K min = keySerializer.deserialize(partial.minKey);
+		K max = keySerializer.deserialize(partial.maxKey);
+		for (Range<K> range : defaultSearchRanges) {
+			if ((range.getFrom() == null || comparator.compare(range.getFrom(), max) <= 0) &&
+					(range.getTo() == null || comparator.compare(range.getTo(), min) >= 0))
+				return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return false, if the default search ranges only contain single keys and the bloom filter of the partial shows
+	 *         that none of them is in the partial. Partials without bloom filter may always contain the keys.
+	 */
+	boolean mayContainSearchKeys(MFIProperties.MFIProperty partial) throws IOException {
+		if (defaultSearchRanges == null || defaultSearchRanges.isEmpty())
+			return true;
+
+		for (Range<K> range : defaultSearchRanges) {
+			boolean singleKey = range.getFrom() != null && range.getTo() != null &&
+					comparator.compare(range.getFrom(), range.getTo()) == 0;
+			if (!singleKey)
+				return true;
+		}
+
+		PartialBloomFilter filter = getBloomFilter(partial.filePath);
+		if (filter == null)
+			return true;
+
+		for (Range<K> range : defaultSearchRanges) {
+			if (filter.mightContain(keySerializer.serialize(range.getFrom())))
+				return true;
+		}
+
+		return false;
+	}
+
+	/** @return the bloom filter of the partial, or null if it has none. Filters are kept until the index is closed. */
+	private PartialBloomFilter getBloomFilter(String partialPath) throws IOException {
+		synchronized (bloomFilters) {
+			if (!bloomFilters.containsKey(partialPath)) {
+				localize(partialPath);
+				bloomFilters.put(partialPath, PartialBloomFilter.read(partialPath));
+			}
+
+			return bloomFilters.get(partialPath);
+		}
+	}
+
+	/**
+	 * bulk loads the sorted entries in chunks of BULK_LOAD_CHUNK entries. The entries come in key order, so every chunk
+	 * continues the leaf level of the previous one. Only the entries of one chunk are on the heap at a time, however
+	 * many entries the partial has.
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> void bulkLoadMerged(BTree<K, T> tree, Iterator<AbstractMap.SimpleEntry<K, byte[]>> merged)
+			throws IOException {
+		try {
+			AbstractMap.SimpleEntry<K, byte[]>[] chunk = new AbstractMap.SimpleEntry[BULK_LOAD_CHUNK];
+			do {
+				int size = 0;
+				while (size < chunk.length && merged.hasNext())
+					chunk[size++] = merged.next();
+
+				tree.bulkInitialize(chunk, 0, size - 1, true);
+			} while (merged.hasNext());
+		} catch (RuntimeException e) {
+			// reading the runs or writing the values failed
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw e;
+		}
+	}
+
+	/** blocks until the partial currently written in the background is saved */
+	private void awaitFlush() {
+		if (pendingFlush == null)
+			return;
+
+		try {
+			pendingFlush.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("interrupted while waiting for the index partial to be saved", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("error when saving index partial", e.getCause());
+		} finally {
+			pendingFlush = null;
+		}
+	}
+
+	private ExecutorService getFlusher() {
+		if (flusher == null || flusher.isShutdown()) {
+			flusher = Executors.newSingleThreadExecutor(
+					new ThreadFactoryBuilder().setDaemon(true).setNameFormat("index-flusher-%d").build());
+		}
+
+		return flusher;
+	}
+
+	private WriteBuffer<K> newCache() {
+		return new WriteBuffer<K>(keySerializer, writeBufferSize);
+	}
+
+	/** @return size of an entry in the write buffer with a value of the length of the value serializer */
+	private int entryLength() {
+		return keySerializer.getSerializedLength() + WriteBuffer.LENGTH_BYTES + valueSerializer.getSerializedLength();
+	}
+
+	/**
+	 * Merges contiguous partials of this index into larger partials, so that fewer trees have to be loaded when
+	 * reading. Partials are only merged if their start positions lie within the same split, since a split only uses
+	 * the partials starting within its range.
+	 * <p/>
+	 * Each merge swaps the properties entries atomically under the lock of the properties file. Readers that read the
+	 * properties before may still open the old partials, so these are only marked obsolete and deleted by a later
+	 * compaction once the OBSOLETE_GRACE_TIME has passed. If another process is currently writing to this index
+	 * folder, nothing is compacted.
+	 *
+	 * @param splitSize
+	 * 		split size of the jobs reading the hdfs file
+	 * @return number of partials removed by merging
+	 * @throws IOException
+	 */
+	public int compact(long splitSize) throws IOException {
+		checkArgument(splitSize > 0, "splitSize must be > 0");
+
+		// write what we have cached ourselves first
+		sync();
+
+		if (isLocked()) {
+			LOG.info("index folder is locked, not compacting " + getIndexFolder());
+			return 0;
+		}
+
+		lock();
+		try {
+			deleteObsoletePartials();
+
+			List<MFIProperties.MFIProperty> propertyList;
+			synchronized (properties) {
+				if (properties.exists())
+					properties.read();
+				propertyList = Lists.newArrayList(properties.asList());
+			}
+
+			int removed = 0;
+			for (List<MFIProperties.MFIProperty> group : findCompactionGroups(propertyList, splitSize)) {
+				if (mergePartials(group))
+					removed += group.size() - 1;
+			}
+
+			LOG.info("compaction of " + getIndexFolder() + " removed " + removed + " partials");
+			return removed;
 		} finally {
-			currentWriteTree = null;
-			currentWriteTreePath = null;
 			unlock();
-			remainingPartials--;
-			cachePointer = 0;
-			writingTreePropertyEntry.startPos = writingTreePropertyEntry.endPos = null;
 		}
+	}
+
+	/**
+	 * @return groups of at least two contiguous partials of this index that belong to the same split and store their
+	 *         values in the same format. Partials in the partial cache are left to the node that wrote them.
+	 */
+	private List<List<MFIProperties.MFIProperty>> findCompactionGroups(List<MFIProperties.MFIProperty> propertyList,
+	                                                                   long splitSize) {
+		List<MFIProperties.MFIProperty> own = Lists.newArrayList();
+		for (MFIProperties.MFIProperty p : filterOwnPartials(propertyList)) {
+			if (sharedStorage == null || !sharedStorage.isCached(p.filePath))
+				own.add(p);
+		}
+
+		Collections.sort(own, new Comparator<MFIProperties.MFIProperty>() {
+			@Override
+			public int compare(MFIProperties.MFIProperty o1, MFIProperties.MFIProperty o2) {
+				return o1.startPos.compareTo(o2.startPos);
+			}
+		});
+
+		List<List<MFIProperties.MFIProperty>> groups = Lists.newArrayList();
+		List<MFIProperties.MFIProperty> group = Lists.newArrayList();
+		for (MFIProperties.MFIProperty p : own) {
+			if (!group.isEmpty()) {
+				MFIProperties.MFIProperty first = group.get(0);
+				MFIProperties.MFIProperty last = group.get(group.size() - 1);
+
+				if (p.startPos != last.endPos + 1 || p.startPos / splitSize != first.startPos / splitSize ||
+						p.valueFormat != first.valueFormat) {
+					if (group.size() > 1)
+						groups.add(group);
+					group = Lists.newArrayList();
+				}
+			}
+
+			group.add(p);
+		}
+
+		if (group.size() > 1)
+			groups.add(group);
+
+		return groups;
+	}
+
+	/**
+	 * merges the trees of the given partials into a new partial and swaps the properties entries.
+	 *
+	 * @return false, if the properties changed in the meantime and the merged partial was discarded
+	 */
+	private boolean mergePartials(List<MFIProperties.MFIProperty> group) throws IOException {
+		MFIProperties.MFIProperty merged = new MFIProperties.MFIProperty(null, group.get(0).startPos,
+				group.get(group.size() - 1).endPos);
+		merged.valueFormat = group.get(0).valueFormat;
+
+		WriteBuffer<K> buffer = newCache();
+		ExternalSorter<K> runs = new ExternalSorter<K>(
+				spillFolder != null ? spillFolder : new File(System.getProperty("java.io.tmpdir")), keySerializer,
+				comparator);
+
+		try {
+			// jb-tree only iterates over values, so the keys are restored from the values
+			for (MFIProperties.MFIProperty p : group) {
+				Iterator<V> values = getValues(p, Collections.<Range<K>>emptySet());
+				while (values.hasNext()) {
+					V value = values.next();
+					byte[] serialized = serializeValue(value, merged.valueFormat);
+
+					if (!buffer.fits(serialized.length)) {
+						buffer.sort(comparator);
+						runs.spill(buffer);
+						buffer.clear();
+					}
+
+					buffer.add(keyForValue(value, p.valueFormat), serialized);
+				}
+			}
+
+			if (buffer.isEmpty() && !runs.hasRuns()) {
+				LOG.warn("not merging empty partials: " + group);
+				return false;
+			}
+
+			buffer.sort(comparator);
+
+			String path = createWriteTreePath();
+			writeTree(path, buffer, runs.hasRuns() ? runs : null, merged);
+
+			merged.filePath = path;
+
+			boolean swapped;
+			synchronized (properties) {
+				swapped = properties.replace(group, merged);
+			}
+
+			if (!swapped) {
+				LOG.info("properties changed during compaction, discarding merged partial " + path);
+				deletePartial(path);
+				return false;
+			}
+
+			for (MFIProperties.MFIProperty p : group) {
+				try {
+					FileUtils.touch(new File(p.filePath + OBSOLETE_SUFFIX));
+				} catch (IOException e) {
+					LOG.warn("could not mark compacted partial obsolete " + p.filePath, e);
+				}
+			}
+
+			publishReplacement(group, merged);
+			return true;
+		} catch (ExtractionException e) {
+			throw new IOException("could not restore the key of a stored value", e);
+		} finally {
+			runs.delete();
+		}
+	}
+
+	/** deletes the partials of this index merged away by compaction more than OBSOLETE_GRACE_TIME ago */
+	private void deleteObsoletePartials() {
+		File[] markers = getIndexFolder().listFiles();
+		if (markers == null)
+			return;
+
+		long now = System.currentTimeMillis();
+		for (File marker : markers) {
+			String name = marker.getName();
+			if (!name.startsWith(indexId + "_") || !name.endsWith(OBSOLETE_SUFFIX) ||
+					now - marker.lastModified() <= OBSOLETE_GRACE_TIME)
+				continue;
+
+			String path = marker.getPath().substring(0, marker.getPath().length() - OBSOLETE_SUFFIX.length());
+			if (deletePartial(path) || !new File(path).exists())
+				marker.delete();
+			else
+				LOG.warn("could not delete obsolete partial " + path);
+		}
+	}
+
+	/**
+	 * restores the key from a value stored in the tree, used for compacting partials.
+	 *
+	 * @param value
+	 * @param valueFormat
+	 * 		format of the values in the partial
+	 * @return key of the value
+	 * @throws IOException
+	 * @throws ExtractionException
+	 */
+	protected abstract K keyForValue(V value, int valueFormat) throws IOException, ExtractionException;
+
+	/**
+	 * adds the property entries collected in bulk mode to the properties file and publishes the partials. Entries of
+	 * partials of other extractors are ignored. Requires the lock of the index.
+	 *
+	 * @param entries
+	 * @throws IOException
+	 */
+	void addProperties(Collection<MFIProperties.MFIProperty> entries) throws IOException {
+		checkState(ourLock, "the index must be locked to add properties");
+
+		Collection<MFIProperties.MFIProperty> own = filterOwnPartials(entries);
+		synchronized (properties) {
+			if (properties.exists())
+				properties.read();
+			properties.asList().addAll(own);
+			properties.write();
+		}
+
+		publish(own);
+	}
 
+	/** @return the entries of partials created with the extractor and projection of this index */
+	private Collection<MFIProperties.MFIProperty> filterOwnPartials(Collection<MFIProperties.MFIProperty> entries) {
+		final String prefix = indexId + "_";
+		return Collections2.filter(entries, new Predicate<MFIProperties.MFIProperty>() {
+			@Override
+			public boolean apply(MFIProperties.MFIProperty input) {
+				return input.getFile().getName().startsWith(prefix);
+			}
+		});
 	}
 
 	protected boolean isLocked() {
-		return getLockFile().exists();
+		// in bulk mode, the lock is held by the BulkIndexer on behalf of this index
+		return propertySink == null && (getLockFile().exists() || new File(getIndexFolder(), LEGACY_LOCK).exists());
 	}
 
 	private void unlock() {
 		if (ourLock) {
-			getLockFile().delete();
+			if (propertySink == null)
+				getLockFile().delete();
 			ourLock = false;
 		}
 	}
@@ -421,6 +1474,11 @@ public abstract class AbstractMultiFileIndex<K, V> implements Index {
 		if (ourLock)
 			return;
 
+		if (propertySink != null) {
+			ourLock = true;
+			return;
+		}
+
 		if (LOG.isDebugEnabled())
 			LOG.debug("locking file: " + getLockFile());
 		try {
@@ -431,94 +1489,93 @@ public abstract class AbstractMultiFileIndex<K, V> implements Index {
 		}
 	}
 
-	/*
-	this attribute should usually be null and is only for passing around the writing tree.
-	 */
-	private BTree<K, V> currentWriteTree = null;
+	/** @return path for a new partial. The index id and creation time make up the file name. */
+	private String createWriteTreePath() {
+		long time = System.currentTimeMillis();
+		String path;
+
+		// two small partials can be written within the same millisecond
+		do {
+			path = getIndexFolder() + "/" + indexId + "_" + time++;
+		} while (new File(path).exists());
 
-	private void createWritingTree() throws IOException {
-		currentWriteTreePath = getIndexFolder() + "/" + keyExtractor.getId() + "_" + System.currentTimeMillis();
+		return path;
+	}
 
+	private <T> BTree<K, T> createWritingTree(String path, FixLengthSerializer<T, byte[]> serializer)
+			throws IOException {
 		if (LOG.isDebugEnabled())
-			LOG.debug("trying to build btree: " + currentWriteTreePath);
+			LOG.debug("trying to build btree: " + path);
 
-		currentWriteTree = BTree.create(createResourceManager(true), keySerializer, valueSerializer,
-				comparator);
+		return BTree.create(createResourceManager(path, true), keySerializer, serializer, comparator);
 	}
 
-	private ResourceManager createResourceManager(boolean lock) {
-		return new ResourceManagerBuilder().file(currentWriteTreePath).pageSize(treePageSize).useLock(lock).build();
-	}
+	private <T> BTree<K, T> loadTree(String path, FixLengthSerializer<T, byte[]> serializer) throws IOException {
+		ResourceManager rm = new ResourceManagerBuilder().file(path).open().useLock(false).pageSize(treePageSize).build();
 
-	private List<BTree<K, V>> getTreeList() {
-		try {
-			properties.read();
-		} catch (IOException e) {
-			LOG.error("Could not load properties, operating on old instance.", e);
-		}
+		BTree<K, T> tree = BTree.create(rm, keySerializer, serializer, comparator);
+		tree.load();
 
-		// filter trees not in split range
-		Collection<MFIProperties.MFIProperty> filted =
-				Collections2.filter(properties.asList(), new Predicate<MFIProperties.MFIProperty>() {
-					@Override
-					public boolean apply(@Nullable MFIProperties.MFIProperty input) {
-						if (input.endPos > fileSplit.getStart() + fileSplit.getLength() - 1) {
-							return false;
-						} else if (input.startPos >= fileSplit.getStart()) {
-							if (input.endPos > fileSplit.getStart() + fileSplit.getLength() - 1) {
-								throw new RuntimeException(
-										"property must not start within filesplit range and go over it. " +
-												"property: " + input + "\n" +
-												"fileSplit: start = " + fileSplit.getStart() + ", end = " + (fileSplit.getStart() + fileSplit.getLength() - 1));
-							} else {
-								return true;
-							}
-						} else {
-							if (input.endPos >= fileSplit.getStart()) {
-								throw new RuntimeException(
-										"property must not start before fileSplit.getStart() and go over it. \n" +
-												"property: " + input + "\n" +
-												"fileSplit: start = " + fileSplit.getStart() + ", end = " + (fileSplit.getStart() + fileSplit.getLength() - 1));
-							} else {
-								return false;
-							}
-						}
-					}
-				});
+		return tree;
+	}
 
-		// put the transformed list in a new ArrayList because Lists.transfrom returns a
-		// RandomAccessList which returns different instances when calling list.get(). This results in
-		// list.get(0) != list.get(0)
+	/**
+	 * deletes the tree of a partial and its value file and bloom filter, if there are any
+	 *
+	 * @return whether the tree was deleted
+	 */
+	private static boolean deletePartial(String path) {
+		for (String suffix : new String[]{ValueStore.SUFFIX, PartialBloomFilter.SUFFIX}) {
+			File file = new File(path + suffix);
+			if (file.exists() && !file.delete())
+				LOG.warn("could not delete " + file);
+		}
 
-		Collection<BTree<K, V>> trees =
-				Collections2.transform(filted, new Function<MFIProperties.MFIProperty, BTree<K, V>>() {
-					@Override
-					public BTree<K, V> apply(MFIProperties.MFIProperty input) {
-						try {
-							return getTree(input.filePath, false);
-						} catch (IOException e) {
-							LOG.error("error creating btree " + input.filePath, e);
-						}
+		return new File(path).delete();
+	}
 
-						return null;
-					}
-				});
+	private ResourceManager createResourceManager(String path, boolean lock) {
+		return new ResourceManagerBuilder().file(path).pageSize(treePageSize).useLock(lock).build();
+	}
 
+	/** @return the tree of the partial from the TreeCache. It is released when the index is closed. */
+	private <T> BTree<K, T> acquireTree(String filePath, TreeCache.Loader<K, T> loader) throws IOException {
+		// the cache compares the modification time of the file, so it has to be copied before
+		localize(filePath);
+		BTree<K, T> tree = TreeCache.INSTANCE.acquire(filePath, loader);
+		synchronized (acquiredTrees) {
+			acquiredTrees.add(tree);
+		}
 
-		return Lists.newArrayList(trees);
+		return tree;
 	}
 
-	private BTree<K, V> getTree(String filePath, boolean lock) throws IOException {
 
-		ResourceManager rm =
-				new ResourceManagerBuilder().file(filePath).open().useLock(lock).pageSize(treePageSize).build();
+	/** releases the trees acquired by this index and closes the readers of value files */
+	private void releaseTrees() {
+		synchronized (acquiredTrees) {
+			for (BTree<K, ?> tree : acquiredTrees)
+				TreeCache.INSTANCE.release(tree);
+			acquiredTrees.clear();
+		}
 
-		BTree<K, V> tree = BTree.create(rm, keySerializer, valueSerializer, comparator);
-		tree.load();
+		synchronized (valueReaders) {
+			for (Map.Entry<String, ValueStore.Reader> entry : valueReaders.entrySet()) {
+				try {
+					entry.getValue().close();
+				} catch (IOException e) {
+					LOG.warn("could not close value file of " + entry.getKey(), e);
+				}
+			}
+			valueReaders.clear();
+		}
 
-		return tree;
+		synchronized (bloomFilters) {
+			bloomFilters.clear();
+		}
 	}
 
+
 	protected void finalize() throws Throwable {
 		try {
 			close();
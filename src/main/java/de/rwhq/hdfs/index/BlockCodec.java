@@ -0,0 +1,22 @@
+package de.rwhq.hdfs.index;
+
+import java.io.IOException;
+
+/**
+ * Compresses the value blocks of primary indexes with compressed values. Implementations need a public no-argument
+ * constructor, the codec of a partial is stored with its values and instantiated when the partial is read.
+ */
+public interface BlockCodec {
+
+	/** @return the compressed bytes */
+	byte[] compress(byte[] bytes, int length) throws IOException;
+
+	/**
+	 * @param compressed
+	 * @param length
+	 * 		length of the compressed bytes
+	 * @param out
+	 * 		buffer for the uncompressed bytes, as long as the uncompressed block
+	 */
+	void decompress(byte[] compressed, int length, byte[] out) throws IOException;
+}
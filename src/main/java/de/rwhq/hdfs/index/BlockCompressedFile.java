@@ -0,0 +1,154 @@
+package de.rwhq.hdfs.index;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Text files compressed in independent blocks with the Deflater of the JDK. Unlike gzip files, they can be split and
+ * read in parallel, and lines can be read at their positions by a secondary index.
+ * <p/>
+ * The blocks are written one after the other into the file. The offsets of the blocks are stored in a sidecar file
+ * next to it (see offsetsPath()), which is hidden, so that FileInputFormat does not read it as input.
+ * <p/>
+ * All positions, the ones of the splits, of the record readers and of the indexes, are positions in the uncompressed
+ * file. A position resolves to the offset of the compressed block containing it and the offset within the block. The
+ * stream returned by open() does this, so the readers and indexes can seek in the file as in an uncompressed one.
+ */
+public class BlockCompressedFile {
+	/** files with this suffix are block compressed */
+	public static final String SUFFIX             = ".zblocks";
+	public static final int    DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+	static final String OFFSETS_SUFFIX = ".offsets";
+
+	public static boolean isBlockCompressed(Path file) {
+		return file.getName().endsWith(SUFFIX);
+	}
+
+	/** @return the path of the file holding the block offsets of the file */
+	static Path offsetsPath(Path file) {
+		return new Path(file.getParent(), "." + file.getName() + OFFSETS_SUFFIX);
+	}
+
+	/**
+	 * @return a stream over the uncompressed bytes of the file, or the stream of the file itself if it is not block
+	 *         compressed
+	 */
+	public static FSDataInputStream open(FileSystem fs, Path file) throws IOException {
+		if (!isBlockCompressed(file))
+			return fs.open(file);
+
+		Offsets offsets = Offsets.read(fs, file);
+		return new FSDataInputStream(new BlockCompressedInputStream(fs.open(file), offsets));
+	}
+
+	/** @return the uncompressed length of the file */
+	public static long length(FileSystem fs, FileStatus status) throws IOException {
+		if (!isBlockCompressed(status.getPath()))
+			return status.getLen();
+
+		return Offsets.read(fs, status.getPath()).uncompressedLength();
+	}
+
+	/**
+	 * @param blockSize
+	 * 		number of uncompressed bytes per block
+	 * @return stream writing the file and, when closed, its block offsets
+	 */
+	public static OutputStream create(FileSystem fs, Path file, int blockSize) throws IOException {
+		checkArgument(isBlockCompressed(file), "the name of %s must end with %s", file, SUFFIX);
+		return new BlockCompressedOutputStream(fs, file, blockSize);
+	}
+
+	/** compresses src into the block compressed file dst */
+	public static void compress(FileSystem fs, Path src, Path dst, int blockSize) throws IOException {
+		IOUtils.copyBytes(fs.open(src), create(fs, dst, blockSize), 64 * 1024, true);
+	}
+
+	/**
+	 * The offsets of the blocks in the compressed and in the uncompressed file. There is one more entry than blocks,
+	 * holding the lengths of the files.
+	 */
+	static class Offsets {
+		private final long[] compressed;
+		private final long[] uncompressed;
+
+		Offsets(long[] compressed, long[] uncompressed) {
+			checkArgument(compressed.length == uncompressed.length && compressed.length > 0,
+					"offsets of the blocks and of the ends are required");
+
+			this.compressed = compressed;
+			this.uncompressed = uncompressed;
+		}
+
+		static Offsets read(FileSystem fs, Path file) throws IOException {
+			FSDataInputStream in = fs.open(offsetsPath(file));
+			try {
+				int blocks = in.readInt();
+				long[] compressed = new long[blocks + 1];
+				long[] uncompressed = new long[blocks + 1];
+				for (int i = 0; i <= blocks; i++) {
+					compressed[i] = in.readLong();
+					uncompressed[i] = in.readLong();
+				}
+				return new Offsets(compressed, uncompressed);
+			} finally {
+				in.close();
+			}
+		}
+
+		void write(FileSystem fs, Path file) throws IOException {
+			FSDataOutputStream out = fs.create(offsetsPath(file), true);
+			try {
+				out.writeInt(blocks());
+				for (int i = 0; i <= blocks(); i++) {
+					out.writeLong(compressed[i]);
+					out.writeLong(uncompressed[i]);
+				}
+			} finally {
+				out.close();
+			}
+		}
+
+		int blocks() {
+			return compressed.length - 1;
+		}
+
+		/** @return the block containing the uncompressed position, or blocks() if the position is behind the file */
+		int blockFor(long pos) {
+			checkArgument(pos >= 0, "pos must be >= 0");
+
+			// blocks are never empty, so the offsets are distinct
+			int i = Arrays.binarySearch(uncompressed, pos);
+
+			// otherwise, the block starting before pos
+			return i >= 0 ? i : -i - 2;
+		}
+
+		long compressedOffset(int block) {
+			return compressed[block];
+		}
+
+		long uncompressedOffset(int block) {
+			return uncompressed[block];
+		}
+
+		long compressedLength() {
+			return compressed[blocks()];
+		}
+
+		long uncompressedLength() {
+			return uncompressed[blocks()];
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package de.rwhq.hdfs.index;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.PositionedReadable;
+import org.apache.hadoop.fs.Seekable;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Reads the uncompressed bytes of a BlockCompressedFile. Positions are positions in the uncompressed file, the block
+ * containing a position is found with the block offsets and decompressed on its own. The last decompressed block is
+ * kept, so that sequential reads and reads of close positions decompress every block only once.
+ * <p/>
+ * Like the streams of hdfs files, it can be wrapped into a FSDataInputStream, which is what the record readers and
+ * the secondary index work on.
+ */
+class BlockCompressedInputStream extends InputStream implements Seekable, PositionedReadable {
+	private final FSDataInputStream           in;
+	private final BlockCompressedFile.Offsets offsets;
+	private final BlockCodec                  codec = new DeflateCodec();
+
+	private long pos;
+
+	/** the decompressed block, or -1 if no block was read yet */
+	private int    blockIndex = -1;
+	private byte[] block      = new byte[0];
+	private byte[] compressed = new byte[0];
+
+	/**
+	 * @param in
+	 * 		stream of the compressed file
+	 * @param offsets
+	 * 		block offsets of the file
+	 */
+	BlockCompressedInputStream(FSDataInputStream in, BlockCompressedFile.Offsets offsets) {
+		this.in = in;
+		this.offsets = offsets;
+	}
+
+	@Override
+	public synchronized int read() throws IOException {
+		if (!loadBlockFor(pos))
+			return -1;
+
+		return block[(int) (pos++ - offsets.uncompressedOffset(blockIndex))] & 0xff;
+	}
+
+	@Override
+	public synchronized int read(byte[] bytes, int offset, int length) throws IOException {
+		if (length == 0)
+			return 0;
+		if (!loadBlockFor(pos))
+			return -1;
+
+		int from = (int) (pos - offsets.uncompressedOffset(blockIndex));
+		int n = Math.min(length, block.length - from);
+		System.arraycopy(block, from, bytes, offset, n);
+		pos += n;
+
+		return n;
+	}
+
+	/** @return false, if the position is at or behind the end of the file */
+	private boolean loadBlockFor(long pos) throws IOException {
+		int i = offsets.blockFor(pos);
+		if (i == offsets.blocks())
+			return false;
+		if (i == blockIndex)
+			return true;
+
+		int compressedLength = (int) (offsets.compressedOffset(i + 1) - offsets.compressedOffset(i));
+		int length = (int) (offsets.uncompressedOffset(i + 1) - offsets.uncompressedOffset(i));
+		if (compressed.length < compressedLength)
+			compressed = new byte[compressedLength];
+		if (block.length != length)
+			block = new byte[length];
+
+		in.readFully(offsets.compressedOffset(i), compressed, 0, compressedLength);
+		codec.decompress(compressed, compressedLength, block);
+		blockIndex = i;
+
+		return true;
+	}
+
+	@Override
+	public synchronized void seek(long pos) throws IOException {
+		checkArgument(pos >= 0, "pos must be >= 0");
+		if (pos > offsets.uncompressedLength())
+			throw new EOFException("cannot seek to " + pos + ", the file has " + offsets.uncompressedLength() +
+					" bytes");
+
+		this.pos = pos;
+	}
+
+	@Override
+	public synchronized long getPos() {
+		return pos;
+	}
+
+	@Override
+	public boolean seekToNewSource(long targetPos) {
+		return false;
+	}
+
+	@Override
+	public synchronized int available() {
+		return (int) Math.min(Integer.MAX_VALUE, offsets.uncompressedLength() - pos);
+	}
+
+	/** reads without changing the position of the stream */
+	@Override
+	public synchronized int read(long position, byte[] bytes, int offset, int length) throws IOException {
+		if (position >= offsets.uncompressedLength())
+			return -1;
+
+		long oldPos = pos;
+		try {
+			seek(position);
+			return read(bytes, offset, length);
+		} finally {
+			pos = oldPos;
+		}
+	}
+
+	@Override
+	public synchronized void readFully(long position, byte[] bytes, int offset, int length) throws IOException {
+		int read = 0;
+		while (read < length) {
+			int n = read(position + read, bytes, offset + read, length - read);
+			if (n < 0)
+				throw new EOFException("end of file reached before reading fully");
+			read += n;
+		}
+	}
+
+	@Override
+	public void readFully(long position, byte[] bytes) throws IOException {
+		readFully(position, bytes, 0, bytes.length);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		in.close();
+	}
+}
@@ -0,0 +1,100 @@
+package de.rwhq.hdfs.index;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Writes a BlockCompressedFile. The bytes are collected in blocks of blockSize bytes, and every full block is
+ * compressed on its own. The block offsets are written when the stream is closed.
+ */
+class BlockCompressedOutputStream extends OutputStream {
+	private final FileSystem         fs;
+	private final Path               file;
+	private final FSDataOutputStream out;
+	private final BlockCodec         codec = new DeflateCodec();
+
+	private final byte[] block;
+	private       int    blockLength;
+
+	private long[] compressed   = new long[16];
+	private long[] uncompressed = new long[16];
+	private int    blocks;
+	private long   uncompressedLength;
+	private boolean closed;
+
+	BlockCompressedOutputStream(FileSystem fs, Path file, int blockSize) throws IOException {
+		checkArgument(blockSize > 0, "blockSize must be > 0");
+
+		this.fs = fs;
+		this.file = file;
+		this.block = new byte[blockSize];
+		this.out = fs.create(file, true);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (blockLength == block.length)
+			writeBlock();
+
+		block[blockLength++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) throws IOException {
+		checkState(!closed, "stream is closed");
+
+		while (length > 0) {
+			if (blockLength == block.length)
+				writeBlock();
+
+			int n = Math.min(length, block.length - blockLength);
+			System.arraycopy(bytes, offset, block, blockLength, n);
+			blockLength += n;
+			offset += n;
+			length -= n;
+		}
+	}
+
+	private void writeBlock() throws IOException {
+		checkState(!closed, "stream is closed");
+		if (blockLength == 0)
+			return;
+
+		if (blocks + 1 == compressed.length) {
+			compressed = Arrays.copyOf(compressed, compressed.length * 2);
+			uncompressed = Arrays.copyOf(uncompressed, uncompressed.length * 2);
+		}
+
+		compressed[blocks] = out.getPos();
+		uncompressed[blocks] = uncompressedLength;
+		blocks++;
+
+		out.write(codec.compress(block, blockLength));
+		uncompressedLength += blockLength;
+		blockLength = 0;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+
+		writeBlock();
+		closed = true;
+
+		compressed[blocks] = out.getPos();
+		uncompressed[blocks] = uncompressedLength;
+		out.close();
+
+		new BlockCompressedFile.Offsets(Arrays.copyOf(compressed, blocks + 1), Arrays.copyOf(uncompressed, blocks + 1))
+				.write(fs, file);
+	}
+}
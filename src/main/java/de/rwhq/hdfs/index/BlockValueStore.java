@@ -0,0 +1,173 @@
+package de.rwhq.hdfs.index;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Stores the values of a partial in compressed blocks. The values have a fixed length. The reference of a value is the
+ * position of its block in the value file (upper 40 bits) and its offset in the uncompressed block (lower 24 bits).
+ * <p/>
+ * The value file starts with the class name of the codec, followed by the blocks. Every block is stored as its
+ * uncompressed length, its compressed length and the compressed bytes.
+ * <p/>
+ * Readers keep the last few uncompressed blocks, so the values of a block are only decompressed once when a range is
+ * read.
+ */
+class BlockValueStore implements ValueStore {
+	private static final int  OFFSET_BITS    = 24;
+	private static final long OFFSET_MASK    = (1L << OFFSET_BITS) - 1;
+	static final         int  MAX_BLOCK_SIZE = 1 << OFFSET_BITS;
+
+	/** number of uncompressed blocks a reader keeps */
+	private static final int CACHED_BLOCKS = 4;
+
+	private final BlockCodec codec;
+	private final int        blockSize;
+	private final int        valueLength;
+
+	/**
+	 * @param codec
+	 * 		codec for writing, readers use the codec stored in the value file
+	 * @param blockSize
+	 * 		uncompressed size of a block in bytes
+	 * @param valueLength
+	 * 		length of the values in bytes
+	 */
+	BlockValueStore(BlockCodec codec, int blockSize, int valueLength) {
+		checkArgument(blockSize > 0 && blockSize <= MAX_BLOCK_SIZE, "blockSize must be between 1 and %s",
+				MAX_BLOCK_SIZE);
+		checkArgument(valueLength > 0, "valueLength must be > 0");
+
+		this.codec = codec;
+		this.blockSize = blockSize;
+		this.valueLength = valueLength;
+	}
+
+	@Override
+	public Writer create(String partialPath) throws IOException {
+		return new BlockWriter(new File(partialPath + SUFFIX));
+	}
+
+	@Override
+	public Reader open(String partialPath) throws IOException {
+		return new BlockReader(new File(partialPath + SUFFIX), valueLength);
+	}
+
+	private class BlockWriter implements Writer {
+		private final DataOutputStream out;
+		private       byte[]           block = new byte[blockSize];
+		private       int              blockLength;
+		/** position of the current block in the file */
+		private       long             blockStart;
+
+		private BlockWriter(File file) throws IOException {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			out.writeUTF(codec.getClass().getName());
+			blockStart = out.size();
+		}
+
+		@Override
+		public long append(byte[] value, int offset, int length) throws IOException {
+			checkArgument(length < MAX_BLOCK_SIZE, "value is too large for a block: %s bytes", length);
+
+			if (blockLength > 0 && blockLength + length > blockSize)
+				writeBlock();
+
+			if (blockLength + length > block.length) {
+				byte[] larger = new byte[blockLength + length];
+				System.arraycopy(block, 0, larger, 0, blockLength);
+				block = larger;
+			}
+
+			long reference = blockStart << OFFSET_BITS | blockLength;
+			System.arraycopy(value, offset, block, blockLength, length);
+			blockLength += length;
+
+			return reference;
+		}
+
+		private void writeBlock() throws IOException {
+			byte[] compressed = codec.compress(block, blockLength);
+			out.writeInt(blockLength);
+			out.writeInt(compressed.length);
+			out.write(compressed);
+
+			blockStart += 8 + compressed.length;
+			blockLength = 0;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				if (blockLength > 0)
+					writeBlock();
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	private static class BlockReader implements Reader {
+		private final RandomAccessFile file;
+		private final BlockCodec       codec;
+		private final int              valueLength;
+		private final Map<Long, byte[]> blocks = new LinkedHashMap<Long, byte[]>(CACHED_BLOCKS, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+				return size() > CACHED_BLOCKS;
+			}
+		};
+
+		private BlockReader(File file, int valueLength) throws IOException {
+			this.file = new RandomAccessFile(file, "r");
+			this.valueLength = valueLength;
+
+			String codecClass = this.file.readUTF();
+			try {
+				codec = Class.forName(codecClass).asSubclass(BlockCodec.class).newInstance();
+			} catch (Exception e) {
+				this.file.close();
+				throw new IOException("could not create codec " + codecClass + " for " + file, e);
+			}
+		}
+
+		@Override
+		public int length(long reference) {
+			return valueLength;
+		}
+
+		@Override
+		public synchronized void read(long reference, byte[] value) throws IOException {
+			byte[] block = getBlock(reference >>> OFFSET_BITS);
+			System.arraycopy(block, (int) (reference & OFFSET_MASK), value, 0, valueLength);
+		}
+
+		private byte[] getBlock(long position) throws IOException {
+			byte[] block = blocks.get(position);
+			if (block != null)
+				return block;
+
+			file.seek(position);
+			block = new byte[file.readInt()];
+			byte[] compressed = new byte[file.readInt()];
+			file.readFully(compressed);
+			codec.decompress(compressed, compressed.length, block);
+
+			blocks.put(position, block);
+			return block;
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			file.close();
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package de.rwhq.hdfs.index;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A comparator that compares serialized keys where they are, in a buffer. The write buffer of an index sorts its
+ * entries with it, without deserializing the keys. Key comparators implementing it are used as they are.
+ */
+public interface BufferComparator {
+
+	/**
+	 * compares two keys in the same order as the Comparator of the keys
+	 *
+	 * @param buffer
+	 * @param offset1
+	 * 		position of the first serialized key in the buffer
+	 * @param offset2
+	 * 		position of the second serialized key in the buffer
+	 * @return a negative number, zero or a positive number if the first key is smaller, equal or larger
+	 */
+	int compare(ByteBuffer buffer, int offset1, int offset2);
+}
@@ -0,0 +1,19 @@
+package de.rwhq.hdfs.index;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A serializer that writes directly into a buffer. The write buffer of an index serializes the keys of every line with
+ * it, without allocating a byte array per line. Key serializers implementing it are used as they are.
+ */
+public interface BufferSerializer<T> {
+
+	/**
+	 * writes the serialized object into the buffer at its position and advances the position. The bytes are the same as
+	 * the ones of the FixLengthSerializer of the object.
+	 *
+	 * @param o
+	 * @param buffer
+	 */
+	void serialize(T o, ByteBuffer buffer);
+}
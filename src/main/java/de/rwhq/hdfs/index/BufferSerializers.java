@@ -0,0 +1,88 @@
+package de.rwhq.hdfs.index;
+
+import de.rwhq.comparator.IntegerComparator;
+import de.rwhq.comparator.LongComparator;
+import de.rwhq.serializer.FixLengthSerializer;
+import de.rwhq.serializer.IntegerSerializer;
+import de.rwhq.serializer.LongSerializer;
+
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+
+/**
+ * Adapts FixLengthSerializers to BufferSerializers, without allocations for the serializers of jb-tree. For the
+ * serializers and comparators of jb-tree, it also knows how to compare the serialized keys.
+ */
+final class BufferSerializers {
+	private static final BufferSerializer<Integer> INTEGER = new BufferSerializer<Integer>() {
+		@Override
+		public void serialize(Integer o, ByteBuffer buffer) {
+			buffer.putInt(o);
+		}
+	};
+
+	private static final BufferSerializer<Long> LONG = new BufferSerializer<Long>() {
+		@Override
+		public void serialize(Long o, ByteBuffer buffer) {
+			buffer.putLong(o);
+		}
+	};
+
+	/** jb-tree serializes ints and longs big-endian, like ByteBuffer */
+	private static final BufferComparator INTEGER_ORDER = new BufferComparator() {
+		@Override
+		public int compare(ByteBuffer buffer, int offset1, int offset2) {
+			int i1 = buffer.getInt(offset1);
+			int i2 = buffer.getInt(offset2);
+			return i1 < i2 ? -1 : (i1 == i2 ? 0 : 1);
+		}
+	};
+
+	private static final BufferComparator LONG_ORDER = new BufferComparator() {
+		@Override
+		public int compare(ByteBuffer buffer, int offset1, int offset2) {
+			long l1 = buffer.getLong(offset1);
+			long l2 = buffer.getLong(offset2);
+			return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+		}
+	};
+
+	private BufferSerializers() {
+	}
+
+	/**
+	 * @return a BufferSerializer writing the same bytes as the serializer. Serializers jb-tree does not know are
+	 *         wrapped, they still allocate an array for every object.
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> BufferSerializer<T> of(final FixLengthSerializer<T, byte[]> serializer) {
+		if (serializer instanceof BufferSerializer)
+			return (BufferSerializer<T>) serializer;
+		if (serializer == IntegerSerializer.INSTANCE)
+			return (BufferSerializer<T>) INTEGER;
+		if (serializer == LongSerializer.INSTANCE)
+			return (BufferSerializer<T>) LONG;
+
+		return new BufferSerializer<T>() {
+			@Override
+			public void serialize(T o, ByteBuffer buffer) {
+				buffer.put(serializer.serialize(o));
+			}
+		};
+	}
+
+	/**
+	 * @return a BufferComparator ordering keys serialized by the serializer like the comparator, or null if the order
+	 *         of the serialized keys is not known
+	 */
+	static BufferComparator comparator(FixLengthSerializer<?, byte[]> serializer, Comparator<?> comparator) {
+		if (comparator instanceof BufferComparator)
+			return (BufferComparator) comparator;
+		if (serializer == IntegerSerializer.INSTANCE && comparator == IntegerComparator.INSTANCE)
+			return INTEGER_ORDER;
+		if (serializer == LongSerializer.INSTANCE && comparator == LongComparator.INSTANCE)
+			return LONG_ORDER;
+
+		return null;
+	}
+}
@@ -0,0 +1,205 @@
+package de.rwhq.hdfs.index;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Builds the index of whole hdfs files outside of a job, e.g. to index a new dataset before it is queried.
+ * <p/>
+ * The file is divided into the same splits the IndexedInputFormat creates, and every split is indexed by its own
+ * index instance on a thread pool. The index is configured by the same IndexBuilder class that is set as
+ * 'indexBuilder' in the job configuration.
+ * <p/>
+ * While building, the BulkIndexer holds the locks of the index. The indexes run in bulk mode: they neither lock
+ * the folder nor write the properties file, but hand their property entries to the BulkIndexer, which writes them once
+ * all splits are done. The cap of partials per split does not apply, every split is indexed completely.
+ * <p/>
+ * Usage: hadoop jar hdfs-indexer.jar de.rwhq.hdfs.index.BulkIndexer &lt;indexBuilderClass&gt; &lt;threads&gt;
+ * &lt;hdfsFile&gt;...
+ */
+public class BulkIndexer {
+	private static final Log LOG = LogFactory.getLog(BulkIndexer.class);
+
+	private final Configuration                 conf;
+	private final Class<? extends IndexBuilder> builderClass;
+	private final int                           threads;
+
+	public BulkIndexer(Configuration conf, Class<? extends IndexBuilder> builderClass, int threads) {
+		checkArgument(threads > 0, "threads must be > 0");
+
+		this.conf = conf;
+		this.builderClass = builderClass;
+		this.threads = threads;
+	}
+
+	/**
+	 * @param file
+	 * 		hdfs file to index
+	 * @return number of partials created, or -1 if the index folder is locked by someone else
+	 * @throws IOException
+	 * 		if a split could not be indexed. The partials of all other splits are still added to the index.
+	 */
+	public int build(Path file) throws IOException {
+		FileSystem fs = file.getFileSystem(conf);
+		FileStatus status = fs.getFileStatus(file);
+
+		// these indexes only hold the locks and write the properties in the end
+		long length = BlockCompressedFile.length(fs, status);
+		List<AbstractMultiFileIndex<?, ?>> folderIndexes = toMultiFileIndexes(newBuilder().fileSplit(
+				new FileSplit(status.getPath(), 0, length, new String[0])));
+
+		try {
+			for (AbstractMultiFileIndex<?, ?> folderIndex : folderIndexes) {
+				folderIndex.open();
+				if (folderIndex.isLocked()) {
+					LOG.info(folderIndex.getLockFile() + " exists, not indexing " + file);
+					return -1;
+				}
+				folderIndex.lock();
+			}
+
+			List<FileSplit> splits = new IndexedInputFormat().getSplits(status, conf);
+			LOG.info("indexing " + file + " in " + splits.size() + " splits with " + threads + " threads");
+
+			Collection<MFIProperties.MFIProperty> sink =
+					Collections.synchronizedList(Lists.<MFIProperties.MFIProperty>newArrayList());
+			List<FileSplit> failed = indexSplits(splits, sink);
+
+			for (AbstractMultiFileIndex<?, ?> folderIndex : folderIndexes)
+				folderIndex.addProperties(sink);
+
+			if (!failed.isEmpty())
+				throw new IOException("could not index " + failed.size() + " of " + splits.size() + " splits of " +
+						file + ": " + failed);
+
+			return sink.size();
+		} finally {
+			for (AbstractMultiFileIndex<?, ?> folderIndex : folderIndexes) {
+				if (folderIndex.isOpen())
+					folderIndex.close();
+			}
+		}
+	}
+
+	/** @return the splits that could not be indexed */
+	private List<FileSplit> indexSplits(List<FileSplit> splits, final Collection<MFIProperties.MFIProperty> sink)
+			throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(threads,
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("bulk-indexer-%d").build());
+
+		try {
+			List<Future<?>> futures = Lists.newArrayList();
+			for (final FileSplit split : splits) {
+				futures.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						indexSplit(split, sink);
+						return null;
+					}
+				}));
+			}
+
+			List<FileSplit> failed = Lists.newArrayList();
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					futures.get(i).get();
+				} catch (ExecutionException e) {
+					LOG.error("error when indexing split " + splits.get(i), e.getCause());
+					failed.add(splits.get(i));
+				}
+			}
+
+			return failed;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while indexing", e);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/** reads the lines of the split like the IndexedRecordReader does and adds them to a new index */
+	private void indexSplit(FileSplit split, Collection<MFIProperties.MFIProperty> sink)
+			throws IOException, InterruptedException {
+		LineRecordReader reader = new LineRecordReader();
+		reader.initialize(split, new TaskAttemptContext(conf, new TaskAttemptID()));
+
+		try {
+			Index index = newBuilder()
+					.propertySink(sink)
+					.inputStream(reader.fileIn)
+					.fileSplit(split)
+					.jobConfiguration(conf)
+					.build();
+			index.open();
+
+			try {
+				long startPos = reader.pos;
+				while (reader.nextKeyValue()) {
+					Text line = reader.getCurrentValue();
+					index.addLine(line.getBytes(), 0, line.getLength(), startPos, reader.pos - 1);
+					startPos = reader.pos;
+				}
+			} finally {
+				index.close();
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/** @return the index of every column the builder indexes */
+	private List<AbstractMultiFileIndex<?, ?>> toMultiFileIndexes(IndexBuilder builder) {
+		Index index = builder.jobConfiguration(conf).build();
+
+		if (index instanceof CompositeIndex)
+			return ((CompositeIndex) index).getIndexes();
+
+		checkArgument(index instanceof AbstractMultiFileIndex, "only a primary, secondary or composite index can be " +
+				"built, builder created %s", index);
+
+		return Lists.<AbstractMultiFileIndex<?, ?>>newArrayList((AbstractMultiFileIndex<?, ?>) index);
+	}
+
+	private IndexBuilder newBuilder() {
+		try {
+			return builderClass.getConstructor().newInstance();
+		} catch (Exception e) {
+			throw new IllegalArgumentException("could not create index builder " + builderClass, e);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: BulkIndexer <indexBuilderClass> <threads> <hdfsFile>...");
+			System.exit(1);
+		}
+
+		Configuration conf = new Configuration();
+		Class<? extends IndexBuilder> builderClass = Class.forName(args[0]).asSubclass(IndexBuilder.class);
+		BulkIndexer indexer = new BulkIndexer(conf, builderClass, Integer.parseInt(args[1]));
+
+		for (int i = 2; i < args.length; i++) {
+			int partials = indexer.build(new Path(args[i]));
+			LOG.info(args[i] + ": created " + partials + " partials");
+		}
+	}
+}
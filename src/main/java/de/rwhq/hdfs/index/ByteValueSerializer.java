@@ -0,0 +1,31 @@
+package de.rwhq.hdfs.index;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A value serializer of a primary index that can serialize a line directly from its UTF-8 bytes, without decoding it
+ * into a String first.
+ */
+public interface ByteValueSerializer {
+
+	/**
+	 * @param bytes
+	 * 		UTF-8 encoded line
+	 * @param offset
+	 * @param length
+	 * @return the serialized value, same as serializing the decoded line
+	 */
+	byte[] serialize(byte[] bytes, int offset, int length);
+
+	/**
+	 * writes the serialized value into the buffer at its position and advances the position. Used by the write buffer
+	 * of the index, so that no array is allocated per line.
+	 *
+	 * @param bytes
+	 * 		UTF-8 encoded line
+	 * @param offset
+	 * @param length
+	 * @param buffer
+	 */
+	void serialize(byte[] bytes, int offset, int length, ByteBuffer buffer);
+}
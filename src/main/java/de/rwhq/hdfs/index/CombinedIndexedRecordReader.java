@@ -0,0 +1,84 @@
+package de.rwhq.hdfs.index;
+
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Reads the file splits of a CombinedIndexedSplit one after the other, each with its own IndexedRecordReader. The
+ * splits are covered by the index, so the lines are read from the partials of the splits.
+ */
+public class CombinedIndexedRecordReader extends RecordReader<LongWritable, Text> {
+	private List<FileSplit>     splits;
+	private TaskAttemptContext  context;
+	/** index of the next split to read */
+	private int                 next;
+	private IndexedRecordReader current;
+	private long                currentLength;
+	/** length of the splits read completely */
+	private long                readLength;
+	private long                totalLength;
+
+	@Override
+	public void initialize(InputSplit split, TaskAttemptContext context) throws IOException {
+		CombinedIndexedSplit combined = (CombinedIndexedSplit) split;
+		this.splits = combined.getSplits();
+		this.totalLength = combined.getLength();
+		this.context = context;
+	}
+
+	@Override
+	public boolean nextKeyValue() throws IOException {
+		while (true) {
+			if (current == null) {
+				if (next == splits.size())
+					return false;
+
+				FileSplit split = splits.get(next++);
+				current = new IndexedRecordReader();
+				current.initialize(split, context);
+				currentLength = split.getLength();
+			}
+
+			if (current.nextKeyValue())
+				return true;
+
+			current.close();
+			current = null;
+			readLength += currentLength;
+		}
+	}
+
+	@Override
+	public LongWritable getCurrentKey() {
+		return current.getCurrentKey();
+	}
+
+	@Override
+	public Text getCurrentValue() {
+		return current.getCurrentValue();
+	}
+
+	@Override
+	public float getProgress() {
+		if (totalLength == 0)
+			return 1.0f;
+
+		float currentProgress = current == null ? 0 : current.getProgress() * currentLength;
+		return Math.min(1.0f, (readLength + currentProgress) / totalLength);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (current != null) {
+			current.close();
+			current = null;
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package de.rwhq.hdfs.index;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Several file splits that are completely covered by index partials, read by one map task. The splits can belong to
+ * different files. They are read one after the other by the CombinedIndexedRecordReader.
+ * <p/>
+ * Like for FileSplits, the locations are only known where the split was created and are not serialized.
+ */
+public class CombinedIndexedSplit extends InputSplit implements Writable {
+	private List<FileSplit> splits = Lists.newArrayList();
+	private String[]        hosts  = new String[0];
+
+	/** for serialization only */
+	public CombinedIndexedSplit() {
+	}
+
+	public CombinedIndexedSplit(List<FileSplit> splits) throws IOException {
+		this.splits = Lists.newArrayList(splits);
+
+		Set<String> locations = Sets.newLinkedHashSet();
+		for (FileSplit split : splits)
+			Collections.addAll(locations, split.getLocations());
+		this.hosts = locations.toArray(new String[locations.size()]);
+	}
+
+	/** @return the file splits, in the order they are read */
+	public List<FileSplit> getSplits() {
+		return Collections.unmodifiableList(splits);
+	}
+
+	@Override
+	public long getLength() {
+		long length = 0;
+		for (FileSplit split : splits)
+			length += split.getLength();
+
+		return length;
+	}
+
+	@Override
+	public String[] getLocations() {
+		return hosts;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(splits.size());
+		for (FileSplit split : splits)
+			split.write(out);
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		int size = in.readInt();
+		splits = Lists.newArrayListWithCapacity(size);
+		for (int i = 0; i < size; i++) {
+			FileSplit split = new FileSplit(null, 0, 0, new String[0]);
+			split.readFields(in);
+			splits.add(split);
+		}
+		hosts = new String[0];
+	}
+
+	@Override
+	public String toString() {
+		return Objects.toStringHelper(this)
+				.add("splits", splits)
+				.toString();
+	}
+}
@@ -0,0 +1,220 @@
+package de.rwhq.hdfs.index;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+import com.google.common.base.Predicate;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import de.rwhq.btree.Range;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Indexes several columns of the hdfs file in one pass. Every line read is handed to the indexes of all columns. The
+ * extractors of a line share the tokenized line, so each line is only split once.
+ * <p/>
+ * Every column has its own partials, properties and lock file in the index folder, keyed by the extractor id.
+ * <p/>
+ * Lines are served from the first index that has search ranges, the query index. If other columns have search ranges
+ * as well, the lines of the query index are filtered by them, so all search ranges must match.
+ */
+public class CompositeIndex implements Index {
+	private static Log LOG = LogFactory.getLog(CompositeIndex.class);
+
+	private final List<AbstractMultiFileIndex<?, ?>> indexes;
+	private final AbstractMultiFileIndex<?, ?>       queryIndex;
+	/** indexes with search ranges other than the query index */
+	private final List<AbstractMultiFileIndex<?, ?>> filterIndexes;
+	/** whether lines given as bytes are decoded once for all columns, as some extractors can not scan the bytes */
+	private final boolean                            decodeLines;
+
+	CompositeIndex(IndexBuilder<?, ?> b) {
+		indexes = Lists.newArrayList();
+		indexes.add(toMultiFileIndex(b.buildSingle()));
+		for (IndexBuilder additional : b.getAdditionalIndexes())
+			indexes.add(toMultiFileIndex(additional.buildSingle()));
+
+		Set<String> ids = Sets.newHashSet();
+		for (AbstractMultiFileIndex<?, ?> index : indexes)
+			checkArgument(ids.add(index.getIndexId()), "extractor ids must be unique, %s is used twice",
+					index.getIndexId());
+
+		AbstractMultiFileIndex<?, ?> query = indexes.get(0);
+		for (AbstractMultiFileIndex<?, ?> index : indexes) {
+			if (index.hasSearchRanges()) {
+				query = index;
+				break;
+			}
+		}
+		queryIndex = query;
+
+		filterIndexes = Lists.newArrayList();
+		for (AbstractMultiFileIndex<?, ?> index : indexes) {
+			if (index != queryIndex && index.hasSearchRanges())
+				filterIndexes.add(index);
+		}
+
+		// the split of a regular expression delimiter is cached per line instance, all columns share one String
+		boolean decode = false;
+		for (AbstractMultiFileIndex<?, ?> index : indexes)
+			decode |= !index.scansBytes();
+		decodeLines = decode;
+
+		if (LOG.isDebugEnabled())
+			LOG.debug("constructed: " + toString());
+	}
+
+	private static AbstractMultiFileIndex<?, ?> toMultiFileIndex(Index index) {
+		checkArgument(index instanceof AbstractMultiFileIndex, "only primary and secondary indexes can be combined, " +
+				"got %s", index);
+		return (AbstractMultiFileIndex<?, ?>) index;
+	}
+
+	/** @return the indexes of all columns, the one of the builders extractor first */
+	List<AbstractMultiFileIndex<?, ?>> getIndexes() {
+		return Collections.unmodifiableList(indexes);
+	}
+
+	/** @return the index the lines are served from */
+	AbstractMultiFileIndex<?, ?> getQueryIndex() {
+		return queryIndex;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void open() throws IOException {
+		for (AbstractMultiFileIndex<?, ?> index : indexes)
+			index.open();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void sync() {
+		for (AbstractMultiFileIndex<?, ?> index : indexes)
+			index.sync();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean isOpen() {
+		return queryIndex.isOpen();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void close() {
+		for (AbstractMultiFileIndex<?, ?> index : indexes)
+			index.close();
+	}
+
+	/**
+	 * adds the line to the indexes of all columns. Only the query index decides whether the line is returned, as the
+	 * lines covered by its partials are served from it. The other columns may cover different positions, their
+	 * results are ignored. Like for the lines served from the index, the search ranges of the other columns are
+	 * checked on the line.
+	 *
+	 * @return whether the line is not covered by the query index and matches the search ranges of all columns
+	 */
+	@Override
+	public boolean addLine(String line, long startPos, long endPos) {
+		boolean matches = false;
+		for (AbstractMultiFileIndex<?, ?> index : indexes) {
+			boolean result = index.addLine(line, startPos, endPos);
+			if (index == queryIndex)
+				matches = result;
+		}
+
+		if (!matches)
+			return false;
+
+		for (AbstractMultiFileIndex<?, ?> filter : filterIndexes) {
+			if (!filter.lineMatchesSearchRange(line))
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * adds the line to the indexes of all columns, see addLine(String, long, long). If an extractor can not scan the
+	 * bytes, the line is decoded once and the String is given to all columns.
+	 *
+	 * @return whether the line is not covered by the query index and matches the search ranges of all columns
+	 */
+	@Override
+	public boolean addLine(byte[] bytes, int offset, int length, long startPos, long endPos) {
+		if (decodeLines)
+			return addLine(new String(bytes, offset, length, Charsets.UTF_8), startPos, endPos);
+
+		boolean matches = false;
+		for (AbstractMultiFileIndex<?, ?> index : indexes) {
+			boolean result = index.addLine(bytes, offset, length, startPos, endPos);
+			if (index == queryIndex)
+				matches = result;
+		}
+
+		if (!matches)
+			return false;
+
+		for (AbstractMultiFileIndex<?, ?> filter : filterIndexes) {
+			if (!filter.lineMatchesSearchRange(bytes, offset, length))
+				return false;
+		}
+
+		return true;
+	}
+
+	/** @return the ranges covered by the query index */
+	@Override
+	public SortedSet<Range<Long>> toRanges() {
+		return queryIndex.toRanges();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Iterator<String> getIterator() {
+		return filter(queryIndex.getIterator());
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Iterator<String> getIterator(Range<Long> range) throws IOException {
+		return filter(queryIndex.getIterator(range));
+	}
+
+	private Iterator<String> filter(Iterator<String> lines) {
+		if (filterIndexes.isEmpty())
+			return lines;
+
+		return Iterators.filter(lines, new Predicate<String>() {
+			@Override
+			public boolean apply(@Nullable String input) {
+				for (AbstractMultiFileIndex<?, ?> index : filterIndexes) {
+					if (!index.lineMatchesSearchRange(input))
+						return false;
+				}
+				return true;
+			}
+		});
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String toString() {
+		return Objects.toStringHelper(this)
+				.add("indexes", indexes)
+				.add("queryIndex", queryIndex.getIndexId())
+				.toString();
+	}
+}
@@ -0,0 +1,52 @@
+package de.rwhq.hdfs.index;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/** compresses blocks with the Deflater of the JDK */
+public class DeflateCodec implements BlockCodec {
+
+	@Override
+	public byte[] compress(byte[] bytes, int length) {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(bytes, 0, length);
+			deflater.finish();
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+			byte[] buffer = new byte[8 * 1024];
+			while (!deflater.finished())
+				out.write(buffer, 0, deflater.deflate(buffer));
+
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	@Override
+	public void decompress(byte[] compressed, int length, byte[] out) throws IOException {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(compressed, 0, length);
+
+			int read = 0;
+			while (read < out.length && !inflater.finished()) {
+				int n = inflater.inflate(out, read, out.length - read);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				read += n;
+			}
+
+			if (read != out.length)
+				throw new IOException("block is corrupt, expected " + out.length + " bytes, got " + read);
+		} catch (DataFormatException e) {
+			throw new IOException("block is corrupt", e);
+		} finally {
+			inflater.end();
+		}
+	}
+}
@@ -0,0 +1,229 @@
+package de.rwhq.hdfs.index;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
+import de.rwhq.serializer.FixLengthSerializer;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.*;
+import java.util.AbstractMap;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * External sort for index partials that do not fit into the write buffer.
+ * <p/>
+ * Whenever the write buffer is full, it is sorted and spilled as a run to a local temp file. In the end, all runs and
+ * the last, in-memory buffer are k-way merged into one sorted stream of entries.
+ * <p/>
+ * A run file is just the sequence of the entries of the write buffer in key order: the serialized key, the length of
+ * the value and the value.
+ */
+class ExternalSorter<K> {
+	private static Log LOG = LogFactory.getLog(ExternalSorter.class);
+
+	private final File                           folder;
+	private final FixLengthSerializer<K, byte[]> keySerializer;
+	private final Comparator<K>                  comparator;
+	private final int                            keyLength;
+
+	private final List<File>      runs    = Lists.newArrayList();
+	private final List<RunSource> sources = Lists.newArrayList();
+	/** number of entries in every run */
+	private final List<Integer>   sizes   = Lists.newArrayList();
+
+	/** set if a run could not be written completely. The merged result would then miss entries. */
+	private boolean failed = false;
+
+	ExternalSorter(File folder, FixLengthSerializer<K, byte[]> keySerializer, Comparator<K> comparator) {
+		this.folder = folder;
+		this.keySerializer = keySerializer;
+		this.comparator = comparator;
+		this.keyLength = keySerializer.getSerializedLength();
+	}
+
+	/**
+	 * writes the buffer as a new run. The buffer must be sorted.
+	 *
+	 * @param sortedBuffer
+	 * @throws IOException
+	 */
+	void spill(WriteBuffer<K> sortedBuffer) throws IOException {
+		File run = File.createTempFile("run_", ".spill", folder);
+
+		// register before writing so that the file is deleted even if writing fails
+		runs.add(run);
+
+		if (LOG.isDebugEnabled())
+			LOG.debug("spilling " + sortedBuffer.size() + " entries to " + run);
+
+		OutputStream out = null;
+		try {
+			out = new BufferedOutputStream(new FileOutputStream(run), 64 * 1024);
+			sortedBuffer.writeTo(out);
+			sizes.add(sortedBuffer.size());
+		} catch (IOException e) {
+			failed = true;
+			throw e;
+		} finally {
+			if (out != null)
+				out.close();
+		}
+	}
+
+	/** @return number of entries in the runs */
+	long size() {
+		long size = 0;
+		for (int runSize : sizes)
+			size += runSize;
+
+		return size;
+	}
+
+	boolean hasRuns() {
+		return !runs.isEmpty();
+	}
+
+	boolean hasFailed() {
+		return failed;
+	}
+
+	/**
+	 * @param sortedBuffer
+	 * 		the last part of the data, that was not spilled. Must be sorted.
+	 * @return iterator over the entries of all runs and the buffer, in key order. For equal keys, entries of earlier
+	 *         runs come first.
+	 * @throws IOException
+	 */
+	Iterator<AbstractMap.SimpleEntry<K, byte[]>> merge(WriteBuffer<K> sortedBuffer) throws IOException {
+		final PriorityQueue<Source> queue = new PriorityQueue<Source>(runs.size() + 1);
+
+		int ordinal = 0;
+		for (File run : runs) {
+			RunSource source = new RunSource(run, sizes.get(ordinal), ordinal++);
+			sources.add(source);
+			if (source.advance())
+				queue.add(source);
+		}
+
+		Source bufferSource = new BufferSource(sortedBuffer, ordinal);
+		if (bufferSource.advance())
+			queue.add(bufferSource);
+
+		return new AbstractIterator<AbstractMap.SimpleEntry<K, byte[]>>() {
+			@Override
+			protected AbstractMap.SimpleEntry<K, byte[]> computeNext() {
+				Source source = queue.poll();
+				if (source == null)
+					return endOfData();
+
+				AbstractMap.SimpleEntry<K, byte[]> result =
+						new AbstractMap.SimpleEntry<K, byte[]>(source.key, source.value);
+
+				try {
+					if (source.advance())
+						queue.add(source);
+				} catch (IOException e) {
+					throw new RuntimeException("error when reading spilled run", e);
+				}
+
+				return result;
+			}
+		};
+	}
+
+	/** closes all open runs and deletes the run files */
+	void delete() {
+		for (RunSource source : sources) {
+			try {
+				source.close();
+			} catch (IOException e) {
+				LOG.warn("could not close run", e);
+			}
+		}
+		sources.clear();
+
+		for (File run : runs) {
+			if (!run.delete())
+				LOG.warn("could not delete run " + run);
+		}
+		runs.clear();
+		sizes.clear();
+	}
+
+	private abstract class Source implements Comparable<Source> {
+		private final int ordinal;
+		protected K      key;
+		protected byte[] value;
+
+		Source(int ordinal) {
+			this.ordinal = ordinal;
+		}
+
+		/** @return false, if there is no more entry */
+		abstract boolean advance() throws IOException;
+
+		@Override
+		public int compareTo(Source o) {
+			int result = comparator.compare(key, o.key);
+			return result != 0 ? result : ordinal - o.ordinal;
+		}
+	}
+
+	private class RunSource extends Source {
+		private final DataInputStream in;
+		private       long            remaining;
+
+		RunSource(File run, int size, int ordinal) throws IOException {
+			super(ordinal);
+			this.remaining = size;
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 64 * 1024));
+		}
+
+		@Override
+		boolean advance() throws IOException {
+			if (remaining == 0) {
+				close();
+				return false;
+			}
+
+			byte[] keyBytes = new byte[keyLength];
+			in.readFully(keyBytes);
+			value = new byte[in.readInt()];
+			in.readFully(value);
+			key = keySerializer.deserialize(keyBytes);
+			remaining--;
+
+			return true;
+		}
+
+		void close() throws IOException {
+			in.close();
+		}
+	}
+
+	private class BufferSource extends Source {
+		private final WriteBuffer<K> buffer;
+		private       int            next;
+
+		BufferSource(WriteBuffer<K> buffer, int ordinal) {
+			super(ordinal);
+			this.buffer = buffer;
+		}
+
+		@Override
+		boolean advance() {
+			if (next >= buffer.size())
+				return false;
+
+			key = buffer.getKey(next);
+			value = buffer.getValue(next);
+			next++;
+
+			return true;
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package de.rwhq.hdfs.index;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Stores values of any length one after the other in a value file. The reference of a value is its offset in the value
+ * file (upper 40 bits) and its length (lower 24 bits). Values of 16mb and more are preceded by their length as int in
+ * the value file, their reference holds the largest length instead.
+ * <p/>
+ * The values are appended in key order, so readers read the value file in windows and serve the values of a range
+ * from the current window.
+ */
+class HeapValueStore implements ValueStore {
+	private static final int  LENGTH_BITS = 24;
+	private static final long LENGTH_MASK = (1L << LENGTH_BITS) - 1;
+	static final         long MAX_OFFSET  = (1L << (64 - LENGTH_BITS)) - 1;
+
+	/** number of bytes a reader reads at once */
+	private final int windowSize;
+
+	/**
+	 * @param windowSize
+	 * 		number of bytes read at once when reading values
+	 */
+	HeapValueStore(int windowSize) {
+		checkArgument(windowSize > 0, "windowSize must be > 0");
+		this.windowSize = windowSize;
+	}
+
+	@Override
+	public Writer create(String partialPath) throws IOException {
+		return new HeapWriter(new File(partialPath + SUFFIX));
+	}
+
+	@Override
+	public Reader open(String partialPath) throws IOException {
+		return new HeapReader(new File(partialPath + SUFFIX));
+	}
+
+	private static class HeapWriter implements Writer {
+		private final DataOutputStream out;
+		private       long             offset;
+
+		private HeapWriter(File file) throws IOException {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		}
+
+		@Override
+		public long append(byte[] value, int valueOffset, int length) throws IOException {
+			checkArgument(offset <= MAX_OFFSET, "value file is too large");
+
+			long reference;
+			if (length < LENGTH_MASK) {
+				reference = offset << LENGTH_BITS | length;
+			} else {
+				reference = offset << LENGTH_BITS | LENGTH_MASK;
+				out.writeInt(length);
+				offset += 4;
+			}
+
+			out.write(value, valueOffset, length);
+			offset += length;
+
+			return reference;
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+	}
+
+	private class HeapReader implements Reader {
+		private final RandomAccessFile file;
+
+		private byte[] window = new byte[windowSize];
+		private long   windowStart;
+		private int    windowLength;
+
+		private HeapReader(File file) throws IOException {
+			this.file = new RandomAccessFile(file, "r");
+		}
+
+		@Override
+		public synchronized int length(long reference) throws IOException {
+			int length = (int) (reference & LENGTH_MASK);
+			if (length < LENGTH_MASK)
+				return length;
+
+			file.seek(reference >>> LENGTH_BITS);
+			return file.readInt();
+		}
+
+		@Override
+		public synchronized void read(long reference, byte[] value) throws IOException {
+			long offset = reference >>> LENGTH_BITS;
+			int length = length(reference);
+
+			// large values are read directly, they would not share the window with other values anyway
+			if ((reference & LENGTH_MASK) == LENGTH_MASK) {
+				file.seek(offset + 4);
+				file.readFully(value, 0, length);
+				return;
+			}
+
+			if (offset < windowStart || offset + length > windowStart + windowLength)
+				readWindow(offset, length);
+
+			System.arraycopy(window, (int) (offset - windowStart), value, 0, length);
+		}
+
+		private void readWindow(long offset, int length) throws IOException {
+			if (window.length < length)
+				window = new byte[length];
+
+			int size = (int) Math.min(window.length, file.length() - offset);
+			file.seek(offset);
+			file.readFully(window, 0, size);
+
+			windowStart = offset;
+			windowLength = size;
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			file.close();
+		}
+	}
+}
@@ -61,6 +61,19 @@ public interface Index {
      */
     boolean addLine(String line, long startPos, long endPos);
 
+	/**
+	 * adds a line given as UTF-8 bytes, e.g. the backing array of a {@code Text}. Indexes with a ByteKeyExtractor
+	 * and ByteValueSerializer work on the bytes directly, without decoding the line into a String.
+	 *
+	 * @param bytes array containing the line, without line terminator
+	 * @param offset start of the line in the array
+	 * @param length length of the line in bytes
+	 * @param startPos in the hdfs file
+	 * @param endPos in the hdfs file
+	 * @return whether the line matches the search range
+	 */
+	boolean addLine(byte[] bytes, int offset, int length, long startPos, long endPos);
+
 	/**
 	 * @return the ranges that are covered by the index.
 	 */
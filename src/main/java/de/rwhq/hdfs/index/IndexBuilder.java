@@ -3,12 +3,15 @@ package de.rwhq.hdfs.index;
 import com.google.common.collect.Lists;
 import de.rwhq.btree.Range;
 import de.rwhq.hdfs.index.extractor.KeyExtractor;
+import de.rwhq.hdfs.index.extractor.Projection;
 import de.rwhq.serializer.FixLengthSerializer;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 
 import java.io.File;
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.List;
 
@@ -31,6 +34,10 @@ public class IndexBuilder<K,V> {
 	private static enum IndexType {PRIMARY, SECONDARY, NOINDEX}
 
 	private int cacheSize = 1000;
+	private int writeBufferSize;
+	private File spillFolder;
+	private Collection<MFIProperties.MFIProperty> propertySink;
+	private List<IndexBuilder> additionalIndexes = Lists.newArrayList();
 	private File indexRootFolder;
 	private FixLengthSerializer<K,byte[]> keySerializer;
 	private Comparator<K>  comparator;
@@ -43,8 +50,22 @@ public class IndexBuilder<K,V> {
 	private IndexType indexType = IndexType.NOINDEX;
 
 	private int secondaryIndexReadBufferSize = 500;
+	private int secondaryIndexReadGap = 64 * 1024;
+	private boolean secondaryIndexStoreLengths;
 	private int treePageSize = 64 * 1024; // default: 64 kb
+	private int treeCacheSize = -1; // not set: the shared cache keeps its capacity
+	private int prefetchRanges;
+	private int bloomFilterBitsPerKey;
+	private int prefetchQueueSize = 10000;
+	private Projection projection;
+	private boolean compressValues;
+	private boolean valueHeap;
+	private BlockCodec valueCodec = new DeflateCodec();
+	private int valueBlockSize = 64 * 1024;
 	private FixLengthSerializer<V, byte[]> valueSerializer;
+	private Path sharedIndexFolder;
+	private File partialCacheFolder;
+	private long partialCacheSize = SharedIndexStorage.DEFAULT_CACHE_SIZE;
 
 	public FileSplit getFileSplit() {
 		return fileSplit;
@@ -81,11 +102,40 @@ public class IndexBuilder<K,V> {
 		return this;
 	}
 
+	/**
+	 * @param secondaryIndexReadBufferSize
+	 * 		number of positions a secondary index takes from the tree, sorts and reads together
+	 * @return this
+	 */
 	public IndexBuilder secondaryIndexReadBufferSize(int secondaryIndexReadBufferSize) {
 		this.secondaryIndexReadBufferSize = secondaryIndexReadBufferSize;
 		return this;
 	}
 
+	/**
+	 * @param bytes
+	 * 		lines of a secondary index that are at most this many bytes apart are read with one read. Reading the bytes
+	 * 		in between is cheaper than another seek.
+	 * @return this
+	 */
+	public IndexBuilder secondaryIndexReadGap(int bytes) {
+		checkArgument(bytes >= 0, "secondaryIndexReadGap must be >= 0");
+		this.secondaryIndexReadGap = bytes;
+		return this;
+	}
+
+	/**
+	 * A secondary index stores the length of every line with its position, so that a line is read with exactly one
+	 * positioned read of its bytes. Only partials written with this option contain the lengths. Files larger than
+	 * 512gb and lines longer than 16mb are stored without lengths.
+	 *
+	 * @return this
+	 */
+	public IndexBuilder secondaryIndexStoreLengths() {
+		this.secondaryIndexStoreLengths = true;
+		return this;
+	}
+
 	public Comparator getComparator() {
 		return comparator;
 	}
@@ -110,6 +160,183 @@ public class IndexBuilder<K,V> {
 		return this;
 	}
 
+	/**
+	 * The IndexedRecordReader reads the ranges of the index ahead on background threads, so that the next partial is
+	 * already loaded when the reader reaches it. A secondary index then reads lines from the input stream of the
+	 * record reader concurrently, with positioned reads.
+	 *
+	 * @param ranges
+	 * 		number of ranges opened ahead, 0 disables prefetching
+	 * @param queueSize
+	 * 		maximum number of records read ahead
+	 * @return this
+	 */
+	public IndexBuilder prefetch(int ranges, int queueSize) {
+		checkArgument(ranges >= 0, "ranges must be >= 0");
+		checkArgument(queueSize > 0, "queueSize must be > 0");
+		this.prefetchRanges = ranges;
+		this.prefetchQueueSize = queueSize;
+		return this;
+	}
+
+	/**
+	 * A bloom filter over the keys is written next to every new partial. If the default search ranges only contain
+	 * single keys, partials whose filter does not contain any of the keys are not loaded.
+	 *
+	 * @param bitsPerKey
+	 * 		size of the filters, 10 bits per key give about 1% false positives. 0 disables the filters.
+	 * @return this
+	 */
+	public IndexBuilder bloomFilter(int bitsPerKey) {
+		checkArgument(bitsPerKey >= 0, "bitsPerKey must be >= 0");
+		this.bloomFilterBitsPerKey = bitsPerKey;
+		return this;
+	}
+
+	/**
+	 * number of loaded partial trees kept open in this JVM between queries, so that tasks in a reused JVM do not load
+	 * the same partials again. The cache is shared by all indexes of the JVM, only indexes built with this option
+	 * change its capacity (default: 32).
+	 *
+	 * @param treeCacheSize
+	 * 		0 disables caching
+	 * @return this
+	 */
+	public IndexBuilder treeCacheSize(int treeCacheSize) {
+		checkArgument(treeCacheSize >= 0, "treeCacheSize must be >= 0");
+		this.treeCacheSize = treeCacheSize;
+		return this;
+	}
+
+	/**
+	 * A primary index only stores the projected line, so only the columns of the projection are returned for lines
+	 * served from the index. The projection must keep the column of the key and the columns of all search ranges.
+	 * Lines read from the hdfs file are still returned completely.
+	 * <p/>
+	 * The partials of different projections are stored separately.
+	 *
+	 * @param projection
+	 * @return this
+	 */
+	public IndexBuilder projection(Projection projection) {
+		this.projection = projection;
+		return this;
+	}
+
+	/**
+	 * only required for primary index. Stores the lines of new partials in blocks of 64kb compressed with deflate,
+	 * see compressValues(BlockCodec, int).
+	 *
+	 * @return this
+	 */
+	public IndexBuilder compressValues() {
+		this.compressValues = true;
+		return this;
+	}
+
+	/**
+	 * only required for primary index. The lines of new partials are not stored in the tree but in a value file next
+	 * to it, in compressed blocks. The tree holds the position of every line in the value file. Partials written
+	 * before can still be read.
+	 *
+	 * @param codec
+	 * 		compresses the blocks. Its class name is stored in the value file and must have a public no-argument constructor.
+	 * @param blockSize
+	 * 		uncompressed size of a block in bytes
+	 * @return this
+	 */
+	public IndexBuilder compressValues(BlockCodec codec, int blockSize) {
+		this.compressValues = true;
+		this.valueCodec = checkNotNull(codec, "codec must not be null");
+		checkArgument(blockSize > 0 && blockSize <= BlockValueStore.MAX_BLOCK_SIZE,
+				"blockSize must be between 1 and %s", BlockValueStore.MAX_BLOCK_SIZE);
+		this.valueBlockSize = blockSize;
+		return this;
+	}
+
+	/**
+	 * only required for primary index. The lines of new partials are not stored in the tree but one after the other
+	 * in a value file next to it, as they are. The tree holds the position and length of every line in the value file,
+	 * so the size of the partial follows the size of the lines.
+	 * <p/>
+	 * Lines are not cut by the value serializer, it is only used for partials of other formats. Lines of any length
+	 * are stored whole.
+	 *
+	 * @return this
+	 */
+	public IndexBuilder valueHeap() {
+		this.valueHeap = true;
+		return this;
+	}
+
+	/**
+	 * New partials are published into a folder of a hadoop file system, like hdfs, and partials published there by
+	 * other nodes are used as if they were written locally. So a file indexed by a task on one node does not have to
+	 * be indexed again on the other nodes. The local index root folder is still required for writing partials.
+	 *
+	 * @param folder
+	 * 		folder of the shared index, it has the same layout as the index root folder
+	 * @return this
+	 */
+	public IndexBuilder sharedIndexFolder(Path folder) {
+		this.sharedIndexFolder = checkNotNull(folder, "folder must not be null");
+		return this;
+	}
+
+	/**
+	 * Partials published by other nodes into the shared index folder are copied into a local cache folder on first
+	 * use. Without this setting, the cache is a folder in the index root folder and holds up to 1gb.
+	 *
+	 * @param folder
+	 * 		local folder, can be shared by all task JVMs of the node
+	 * @param maxBytes
+	 * 		the partials used least recently are deleted if the cache gets larger
+	 * @return this
+	 */
+	public IndexBuilder partialCache(File folder, long maxBytes) {
+		checkArgument(maxBytes > 0, "maxBytes must be > 0");
+		this.partialCacheFolder = checkNotNull(folder, "folder must not be null");
+		this.partialCacheSize = maxBytes;
+		return this;
+	}
+
+	/**
+	 * size of the off-heap write cache in bytes. Overrides cacheSize, which gives the size in entries.
+	 *
+	 * @param bytes
+	 * @return this
+	 */
+	public IndexBuilder writeBufferSize(int bytes) {
+		checkArgument(bytes > 0, "writeBufferSize must be > 0");
+		this.writeBufferSize = bytes;
+		return this;
+	}
+
+	/**
+	 * Instead of saving a partial whenever the cache is full, sort the cache and spill it to a temp file in the given
+	 * folder. On close, all spilled runs are merged into one partial.
+	 *
+	 * @param folder
+	 * 		local folder for the spilled runs
+	 * @return this
+	 */
+	public IndexBuilder spillFolder(File folder) {
+		checkNotNull(folder);
+		checkArgument(folder.isDirectory(), "spillFolder must be a directory");
+
+		this.spillFolder = folder;
+		return this;
+	}
+
+	/**
+	 * spill to the local temp folder, see {@link #spillFolder(java.io.File)}
+	 *
+	 * @return this
+	 */
+	public IndexBuilder spillToDisk() {
+		return spillFolder(new File(System.getProperty("java.io.tmpdir")));
+	}
+
 	public IndexBuilder indexRootFolder(File folder) {
 		checkNotNull(folder);
 		checkArgument(folder.exists(), "indexRootFolder must exist");
@@ -124,7 +351,56 @@ public class IndexBuilder<K,V> {
 	}
 
 
+	/**
+	 * Index another column in the same pass over the hdfs file. The additional index has the same type and settings
+	 * as this one, but its own extractor, key serializer and comparator. Its partials are stored next to the ones
+	 * of this index, keyed by the extractor id.
+	 *
+	 * @param keyExtractor
+	 * 		must have a different id than the extractors of the other indexes
+	 * @param keySerializer
+	 * @param comparator
+	 * @return this
+	 */
+	public IndexBuilder alsoIndex(KeyExtractor keyExtractor, FixLengthSerializer keySerializer, Comparator comparator) {
+		return alsoIndex(keyExtractor, keySerializer, comparator, null);
+	}
+
+	/**
+	 * like {@link #alsoIndex(KeyExtractor, FixLengthSerializer, Comparator)}, with search ranges on the additional
+	 * column. Lines are then served from the index of a column that has search ranges.
+	 *
+	 * @param keyExtractor
+	 * @param keySerializer
+	 * @param comparator
+	 * @param searchRanges
+	 * @return this
+	 */
+	public IndexBuilder alsoIndex(KeyExtractor keyExtractor, FixLengthSerializer keySerializer, Comparator comparator,
+	                              List<Range> searchRanges) {
+		IndexBuilder additional = new IndexBuilder()
+				.keyExtractor(checkNotNull(keyExtractor, "keyExtractor must not be null"))
+				.keySerializer(checkNotNull(keySerializer, "keySerializer must not be null"))
+				.comparator(checkNotNull(comparator, "comparator must not be null"));
+
+		if (searchRanges != null) {
+			for (Range r : searchRanges)
+				additional.addDefaultRange(r);
+		}
+
+		additionalIndexes.add(additional);
+		return this;
+	}
+
 	public Index build() {
+		if (!additionalIndexes.isEmpty() && indexType != IndexType.NOINDEX)
+			return new CompositeIndex(this);
+
+		return buildSingle();
+	}
+
+	/** @return the index over the extractor of this builder, ignoring additional indexes */
+	Index buildSingle() {
 		switch (indexType){
 			case NOINDEX: return new NoIndex(this);
 			case PRIMARY: return new PrimaryIndex(this);
@@ -167,6 +443,14 @@ public class IndexBuilder<K,V> {
 		return secondaryIndexReadBufferSize;
 	}
 
+	int getSecondaryIndexReadGap() {
+		return secondaryIndexReadGap;
+	}
+
+	boolean isSecondaryIndexStoreLengths() {
+		return secondaryIndexStoreLengths;
+	}
+
 
 	public IndexBuilder<K, V> primaryIndex() {
 		this.indexType = IndexType.PRIMARY;
@@ -188,6 +472,83 @@ public class IndexBuilder<K,V> {
 		return cacheSize;
 	}
 
+	/** @return folder for spilled runs, or null if spilling is disabled */
+	File getSpillFolder() {
+		return spillFolder;
+	}
+
+	/**
+	 * Bulk mode, used by the BulkIndexer. The index does not lock the index folder and does not write the properties
+	 * file. Instead, the property entries of the written partials are added to the given collection, which must be
+	 * thread-safe. The caller holds the lock and writes the properties.
+	 *
+	 * @param sink
+	 * @return this
+	 */
+	IndexBuilder propertySink(Collection<MFIProperties.MFIProperty> sink) {
+		this.propertySink = sink;
+		return this;
+	}
+
+	/**
+	 * @return builders for the additional indexes, with all settings but the extractor, key serializer, comparator
+	 *         and search ranges copied from this builder
+	 */
+	List<IndexBuilder> getAdditionalIndexes() {
+		List<IndexBuilder> result = Lists.newArrayList();
+		for (IndexBuilder additional : additionalIndexes) {
+			IndexBuilder copy = copySettings(new IndexBuilder());
+			copy.keyExtractor = additional.keyExtractor;
+			copy.keySerializer = additional.keySerializer;
+			copy.comparator = additional.comparator;
+			copy.defaultSearchRanges = additional.defaultSearchRanges;
+			result.add(copy);
+		}
+
+		return result;
+	}
+
+	private IndexBuilder copySettings(IndexBuilder copy) {
+		copy.maxPartialsPerSplit = maxPartialsPerSplit;
+		copy.cacheSize = cacheSize;
+		copy.writeBufferSize = writeBufferSize;
+		copy.spillFolder = spillFolder;
+		copy.propertySink = propertySink;
+		copy.indexRootFolder = indexRootFolder;
+		copy.inputStream = inputStream;
+		copy.jobConfiguration = jobConfiguration;
+		copy.fileSplit = fileSplit;
+		copy.indexType = indexType;
+		copy.secondaryIndexReadBufferSize = secondaryIndexReadBufferSize;
+		copy.secondaryIndexReadGap = secondaryIndexReadGap;
+		copy.secondaryIndexStoreLengths = secondaryIndexStoreLengths;
+		copy.treePageSize = treePageSize;
+		copy.treeCacheSize = treeCacheSize;
+		copy.prefetchRanges = prefetchRanges;
+		copy.bloomFilterBitsPerKey = bloomFilterBitsPerKey;
+		copy.prefetchQueueSize = prefetchQueueSize;
+		copy.projection = projection;
+		copy.compressValues = compressValues;
+		copy.valueHeap = valueHeap;
+		copy.valueCodec = valueCodec;
+		copy.valueBlockSize = valueBlockSize;
+		copy.valueSerializer = valueSerializer;
+		copy.sharedIndexFolder = sharedIndexFolder;
+		copy.partialCacheFolder = partialCacheFolder;
+		copy.partialCacheSize = partialCacheSize;
+		return copy;
+	}
+
+	/** @return collection for the property entries in bulk mode, or null */
+	Collection<MFIProperties.MFIProperty> getPropertySink() {
+		return propertySink;
+	}
+
+	/** @return the configured write buffer size in bytes, or 0 if not set */
+	int getWriteBufferSize() {
+		return writeBufferSize;
+	}
+
 	File getIndexRootFolder() {
 		return indexRootFolder;
 	}
@@ -201,6 +562,66 @@ public class IndexBuilder<K,V> {
 		return treePageSize;
 	}
 
+	int getTreeCacheSize() {
+		return treeCacheSize;
+	}
+
+	int getBloomFilterBitsPerKey() {
+		return bloomFilterBitsPerKey;
+	}
+
+	int getPrefetchRanges() {
+		return prefetchRanges;
+	}
+
+	int getPrefetchQueueSize() {
+		return prefetchQueueSize;
+	}
+
+	boolean isCompressValues() {
+		return compressValues;
+	}
+
+	boolean isValueHeap() {
+		return valueHeap;
+	}
+
+	BlockCodec getValueCodec() {
+		return valueCodec;
+	}
+
+	int getValueBlockSize() {
+		return valueBlockSize;
+	}
+
+	/** @return the shared index folder, or null if partials are not shared */
+	Path getSharedIndexFolder() {
+		return sharedIndexFolder;
+	}
+
+	/** @return the local folder for partials of the shared index folder, or null for the default */
+	File getPartialCacheFolder() {
+		return partialCacheFolder;
+	}
+
+	long getPartialCacheSize() {
+		return partialCacheSize;
+	}
+
+	/** @return the projection of a primary index, or null */
+	Projection getProjection() {
+		return projection;
+	}
+
+	/**
+	 * @return id of the index in the index folder, used for the names of its files. The extractor id, followed by the
+	 *         projection id if there is one.
+	 */
+	String getIndexId() {
+		checkNotNull(keyExtractor, "keyExtractor is null");
+		return projection == null ? keyExtractor.getId() : keyExtractor.getId() + "p" + projection.getId();
+	}
+
 	public FixLengthSerializer<V, byte[]> getValueSerializer() {
 		return valueSerializer;
 	}
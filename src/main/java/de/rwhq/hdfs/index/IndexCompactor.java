@@ -0,0 +1,108 @@
+package de.rwhq.hdfs.index;
+
+import com.google.common.collect.Lists;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+import java.io.IOException;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Compacts the index partials of hdfs files, see {@link AbstractMultiFileIndex#compact(long)}.
+ * <p/>
+ * The index is configured by the same IndexBuilder class that is set as 'indexBuilder' in the job configuration.
+ * Partials are merged per split, with the split size computed like the IndexedInputFormat does.
+ * <p/>
+ * Usage: hadoop jar hdfs-indexer.jar de.rwhq.hdfs.index.IndexCompactor &lt;indexBuilderClass&gt; &lt;hdfsFile&gt;...
+ */
+public class IndexCompactor {
+	private static final Log LOG = LogFactory.getLog(IndexCompactor.class);
+
+	private final Configuration                 conf;
+	private final Class<? extends IndexBuilder> builderClass;
+
+	public IndexCompactor(Configuration conf, Class<? extends IndexBuilder> builderClass) {
+		this.conf = conf;
+		this.builderClass = builderClass;
+	}
+
+	/**
+	 * @param file
+	 * 		hdfs file whose index should be compacted
+	 * @return number of partials removed
+	 * @throws IOException
+	 */
+	public int compact(Path file) throws IOException {
+		FileSystem fs = file.getFileSystem(conf);
+		FileStatus status = fs.getFileStatus(file);
+		FSDataInputStream inputStream = BlockCompressedFile.open(fs, status.getPath());
+
+		try {
+			long length = BlockCompressedFile.length(fs, status);
+			Index index = newBuilder()
+					.jobConfiguration(conf)
+					.inputStream(inputStream)
+					.fileSplit(new FileSplit(status.getPath(), 0, length, new String[0]))
+					.build();
+
+			List<AbstractMultiFileIndex<?, ?>> indexes = toMultiFileIndexes(index);
+			long splitSize = new IndexedInputFormat().computeSplitSize(status, conf);
+
+			index.open();
+			try {
+				int removed = 0;
+				for (AbstractMultiFileIndex<?, ?> multiFileIndex : indexes)
+					removed += multiFileIndex.compact(splitSize);
+
+				return removed;
+			} finally {
+				index.close();
+			}
+		} finally {
+			inputStream.close();
+		}
+	}
+
+	/** @return the index of every column of the index, see BulkIndexer */
+	private static List<AbstractMultiFileIndex<?, ?>> toMultiFileIndexes(Index index) {
+		if (index instanceof CompositeIndex)
+			return ((CompositeIndex) index).getIndexes();
+
+		checkArgument(index instanceof AbstractMultiFileIndex, "only partials of a primary, secondary or composite " +
+				"index can be compacted, builder created %s", index);
+
+		return Lists.<AbstractMultiFileIndex<?, ?>>newArrayList((AbstractMultiFileIndex<?, ?>) index);
+	}
+
+	private IndexBuilder newBuilder() {
+		try {
+			return builderClass.getConstructor().newInstance();
+		} catch (Exception e) {
+			throw new IllegalArgumentException("could not create index builder " + builderClass, e);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: IndexCompactor <indexBuilderClass> <hdfsFile>...");
+			System.exit(1);
+		}
+
+		Configuration conf = new Configuration();
+		Class<? extends IndexBuilder> builderClass = Class.forName(args[0]).asSubclass(IndexBuilder.class);
+		IndexCompactor compactor = new IndexCompactor(conf, builderClass);
+
+		for (int i = 1; i < args.length; i++) {
+			int removed = compactor.compact(new Path(args[i]));
+			LOG.info(args[i] + ": removed " + removed + " partials");
+		}
+	}
+}
@@ -2,6 +2,7 @@ package de.rwhq.hdfs.index;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.BlockLocation;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
@@ -24,6 +25,21 @@ import java.util.List;
 public class IndexedInputFormat extends
 		FileInputFormat<LongWritable, Text> {
 
+	/**
+	 * If set to true in the job configuration, getSplits() drops splits whose lines are all indexed and that can not
+	 * contain any key of the default search ranges. The index is built with the builder class set as 'indexBuilder'.
+	 */
+	public static final String PRUNE_SPLITS = "indexedInputFormat.pruneSplits";
+
+	/**
+	 * If set to a size in bytes, splits that are completely covered by the index are combined into
+	 * CombinedIndexedSplits of about this size, also across files. Splits that are not covered are not combined.
+	 */
+	public static final String COMBINED_SPLIT_SIZE = "indexedInputFormat.combinedSplitSize";
+
+	/** what the index of a file knows about a split */
+	static enum Coverage {NOT_INDEXED, INDEXED, EMPTY}
+
 	private static final double SPLIT_SLOP = 1.1;   // 10% slop
 	private static       Log    LOG        = LogFactory.getLog(IndexedInputFormat.class);
 
@@ -32,6 +48,9 @@ public class IndexedInputFormat extends
 			InputSplit split, TaskAttemptContext context) throws IOException,
 			InterruptedException {
 
+		if (split instanceof CombinedIndexedSplit)
+			return new CombinedIndexedRecordReader();
+
 		return new IndexedRecordReader();
 	}
 
@@ -46,45 +65,41 @@ public class IndexedInputFormat extends
 
 		// generate splits
 		List<InputSplit> splits = new ArrayList<InputSplit>();
+		Configuration conf = job.getConfiguration();
+		boolean prune = conf.getBoolean(PRUNE_SPLITS, false);
+		long combinedSplitSize = conf.getLong(COMBINED_SPLIT_SIZE, 0);
+
+		// splits covered by the index, to be combined
+		List<FileSplit> indexed = new ArrayList<FileSplit>();
 		for (FileStatus file : listStatus(job)) {
-			Path path = file.getPath();
-			if (LOG.isDebugEnabled())
-				LOG.debug("Path of the file: " + path);
-			FileSystem fs = path.getFileSystem(job.getConfiguration());
-			long length = file.getLen();
-			if (LOG.isDebugEnabled())
-				LOG.debug("length of the file: " + length);
-			BlockLocation[] blkLocations = fs.getFileBlockLocations(file, 0,
-					length);
-			if ((length != 0) && isSplitable(job, path)) {
-				long blockSize = file.getBlockSize();
-				long splitSize = computeSplitSize(blockSize, minSize, maxSize);
-
-				long bytesRemaining = length;
-				while (((double) bytesRemaining) / splitSize > SPLIT_SLOP) {
-					int blkIndex = getBlockIndex(blkLocations, length
-							- bytesRemaining);
-					splits.add(new FileSplit(path, length - bytesRemaining,
-							splitSize, blkLocations[blkIndex].getHosts()));
-					bytesRemaining -= splitSize;
-				}
+			List<FileSplit> fileSplits = getSplits(file, conf, minSize, maxSize);
+			if (!prune && combinedSplitSize <= 0) {
+				splits.addAll(fileSplits);
+				continue;
+			}
 
-				if (bytesRemaining != 0) {
-					splits.add(new FileSplit(path, length - bytesRemaining,
-							bytesRemaining,
-							blkLocations[blkLocations.length - 1].getHosts()));
-				}
-			} else if (length != 0) {
-				splits.add(new FileSplit(path, 0, length, blkLocations[0]
-						.getHosts()));
-			} else {
-				// Create empty hosts array for zero length files
-				splits.add(new FileSplit(path, 0, length, new String[0]));
+			List<Coverage> coverage = getCoverage(file, fileSplits, conf);
+			for (int i = 0; i < fileSplits.size(); i++) {
+				Coverage c = coverage == null ? Coverage.NOT_INDEXED : coverage.get(i);
+				if (c == Coverage.EMPTY && prune)
+					continue;
+
+				if (c != Coverage.NOT_INDEXED && combinedSplitSize > 0)
+					indexed.add(fileSplits.get(i));
+				else
+					splits.add(fileSplits.get(i));
 			}
 		}
+		if (combinedSplitSize > 0)
+			splits.addAll(combine(indexed, combinedSplitSize));
+
 		if (LOG.isDebugEnabled()) {
 			LOG.debug("Total # of splits: " + splits.size());
 			for (InputSplit fs : splits) {
+				if (fs instanceof CombinedIndexedSplit) {
+					LOG.debug("Combined: " + fs);
+					continue;
+				}
 				LOG.debug("Path: " + ((FileSplit) fs).getPath());
 				LOG.debug("Start: " + ((FileSplit) fs).getStart());
 				LOG.debug("Length: " + ((FileSplit) fs).getLength());
@@ -93,6 +108,201 @@ public class IndexedInputFormat extends
 		return splits;
 	}
 
+	/**
+	 * splits a single file. Used by getSplits() and by tools that work on the index outside of a job, so that their
+	 * split boundaries are the same as the ones of the jobs reading the file.
+	 *
+	 * @param file
+	 * @param conf
+	 * @param minSize
+	 * @param maxSize
+	 * @return the splits of the file
+	 * @throws IOException
+	 */
+	List<FileSplit> getSplits(FileStatus file, Configuration conf, long minSize, long maxSize) throws IOException {
+		List<FileSplit> splits = new ArrayList<FileSplit>();
+
+		Path path = file.getPath();
+		if (LOG.isDebugEnabled())
+			LOG.debug("Path of the file: " + path);
+		FileSystem fs = path.getFileSystem(conf);
+		long length = file.getLen();
+		if (LOG.isDebugEnabled())
+			LOG.debug("length of the file: " + length);
+		BlockLocation[] blkLocations = fs.getFileBlockLocations(file, 0,
+				length);
+		if (BlockCompressedFile.isBlockCompressed(path)) {
+			return getBlockCompressedSplits(file, fs, blkLocations, minSize, maxSize);
+		} else if ((length != 0) && isSplitable(conf, path)) {
+			long splitSize = computeSplitSize(file.getBlockSize(), minSize, maxSize);
+
+			long bytesRemaining = length;
+			while (((double) bytesRemaining) / splitSize > SPLIT_SLOP) {
+				int blkIndex = getBlockIndex(blkLocations, length
+						- bytesRemaining);
+				splits.add(new FileSplit(path, length - bytesRemaining,
+						splitSize, blkLocations[blkIndex].getHosts()));
+				bytesRemaining -= splitSize;
+			}
+
+			if (bytesRemaining != 0) {
+				splits.add(new FileSplit(path, length - bytesRemaining,
+						bytesRemaining,
+						blkLocations[blkLocations.length - 1].getHosts()));
+			}
+		} else if (length != 0) {
+			splits.add(new FileSplit(path, 0, length, blkLocations[0]
+					.getHosts()));
+		} else {
+			// Create empty hosts array for zero length files
+			splits.add(new FileSplit(path, 0, length, new String[0]));
+		}
+
+		return splits;
+	}
+
+	/**
+	 * splits a BlockCompressedFile at the starts of compressed blocks. The split size is computed on the compressed
+	 * bytes, the splits themselves are in positions of the uncompressed file.
+	 */
+	private List<FileSplit> getBlockCompressedSplits(FileStatus file, FileSystem fs, BlockLocation[] blkLocations,
+	                                                 long minSize, long maxSize) throws IOException {
+		List<FileSplit> splits = new ArrayList<FileSplit>();
+		Path path = file.getPath();
+		BlockCompressedFile.Offsets offsets = BlockCompressedFile.Offsets.read(fs, path);
+
+		if (offsets.blocks() == 0) {
+			splits.add(new FileSplit(path, 0, 0, new String[0]));
+			return splits;
+		}
+
+		long splitSize = computeSplitSize(file.getBlockSize(), minSize, maxSize);
+		int first = 0;
+		for (int i = 1; i < offsets.blocks(); i++) {
+			long splitLength = offsets.compressedOffset(i) - offsets.compressedOffset(first);
+			long bytesRemaining = offsets.compressedLength() - offsets.compressedOffset(first);
+			if (splitLength >= splitSize && ((double) bytesRemaining) / splitSize > SPLIT_SLOP) {
+				splits.add(newBlockCompressedSplit(path, offsets, first, i, blkLocations));
+				first = i;
+			}
+		}
+		splits.add(newBlockCompressedSplit(path, offsets, first, offsets.blocks(), blkLocations));
+
+		return splits;
+	}
+
+	/** @return split over the blocks from first to end, exclusive */
+	private FileSplit newBlockCompressedSplit(Path path, BlockCompressedFile.Offsets offsets, int first, int end,
+	                                          BlockLocation[] blkLocations) throws IOException {
+		long start = offsets.uncompressedOffset(first);
+		int blkIndex = getBlockIndex(blkLocations, offsets.compressedOffset(first));
+		return new FileSplit(path, start, offsets.uncompressedOffset(end) - start, blkLocations[blkIndex].getHosts());
+	}
+
+	/**
+	 * @return the coverage of the splits by the index of the file, in the order of the splits. null if the file has no
+	 *         index whose partials can be checked. See AbstractMultiFileIndex.isEmptySplit().
+	 */
+	List<Coverage> getCoverage(FileStatus file, List<FileSplit> splits, Configuration conf) throws IOException {
+		Class<?> builderClass = conf.getClass("indexBuilder", null);
+		if (builderClass == null)
+			return null;
+
+		long length = BlockCompressedFile.length(file.getPath().getFileSystem(conf), file);
+		Index index;
+		try {
+			index = ((IndexBuilder) builderClass.getConstructor().newInstance())
+					.jobConfiguration(conf)
+					.fileSplit(new FileSplit(file.getPath(), 0, length, new String[0]))
+					.build();
+		} catch (Exception e) {
+			LOG.warn("could not create index for checking the splits of " + file.getPath(), e);
+			return null;
+		}
+
+		// only partials of primary and secondary indexes know their positions and keys. Lines of a composite index are
+		// served from its query index
+		if (index instanceof CompositeIndex)
+			index = ((CompositeIndex) index).getQueryIndex();
+		if (!(index instanceof AbstractMultiFileIndex))
+			return null;
+
+		// opening merges the partials of the shared index folder, the local properties may not exist before
+		AbstractMultiFileIndex<?, ?> multiFileIndex = (AbstractMultiFileIndex<?, ?>) index;
+		multiFileIndex.open();
+
+		List<Coverage> result = new ArrayList<Coverage>();
+		try {
+			for (FileSplit split : splits) {
+				// the record reader also reads the line starting at the end of the split. The last split ends with the
+				// last byte of the file
+				long start = split.getStart();
+				long end = Math.min(split.getStart() + split.getLength(), length - 1);
+
+				if (split.getLength() == 0 || !multiFileIndex.isIndexedSplit(start, end))
+					result.add(Coverage.NOT_INDEXED);
+				else if (multiFileIndex.isEmptySplit(start, end))
+					result.add(Coverage.EMPTY);
+				else
+					result.add(Coverage.INDEXED);
+			}
+		} finally {
+			multiFileIndex.close();
+		}
+
+		if (LOG.isDebugEnabled())
+			LOG.debug("coverage of the splits of " + file.getPath() + ": " + result);
+
+		return result;
+	}
+
+	/** @return the splits, packed in order into CombinedIndexedSplits of at least combinedSplitSize bytes */
+	List<InputSplit> combine(List<FileSplit> splits, long combinedSplitSize) throws IOException {
+		List<InputSplit> result = new ArrayList<InputSplit>();
+
+		List<FileSplit> group = new ArrayList<FileSplit>();
+		long groupSize = 0;
+		for (FileSplit split : splits) {
+			group.add(split);
+			groupSize += split.getLength();
+
+			if (groupSize >= combinedSplitSize) {
+				result.add(new CombinedIndexedSplit(group));
+				group.clear();
+				groupSize = 0;
+			}
+		}
+
+		if (!group.isEmpty())
+			result.add(new CombinedIndexedSplit(group));
+
+		LOG.info("combined " + splits.size() + " indexed splits into " + result.size() + " splits");
+		return result;
+	}
+
+	/**
+	 * @param file
+	 * @param conf
+	 * @return the splits of the file, with the split sizes configured in conf
+	 * @throws IOException
+	 */
+	List<FileSplit> getSplits(FileStatus file, Configuration conf) throws IOException {
+		return getSplits(file, conf, getMinSplitSize(conf), getMaxSplitSize(conf));
+	}
+
+	/** @return the split size of the jobs reading the file, with the split sizes configured in conf */
+	long computeSplitSize(FileStatus file, Configuration conf) {
+		return computeSplitSize(file.getBlockSize(), getMinSplitSize(conf), getMaxSplitSize(conf));
+	}
+
+	private long getMinSplitSize(Configuration conf) {
+		return Math.max(getFormatMinSplitSize(), conf.getLong("mapred.min.split.size", 1L));
+	}
+
+	private long getMaxSplitSize(Configuration conf) {
+		return conf.getLong("mapred.max.split.size", Long.MAX_VALUE);
+	}
+
 	protected long computeSplitSize(long blockSize, long minSize, long maxSize) {
 		return Math.max(minSize, Math.min(maxSize, blockSize));
 	}
@@ -114,8 +324,11 @@ public class IndexedInputFormat extends
 
 	@Override
 	protected boolean isSplitable(JobContext context, Path file) {
-		CompressionCodec codec = new CompressionCodecFactory(
-				context.getConfiguration()).getCodec(file);
+		return isSplitable(context.getConfiguration(), file);
+	}
+
+	private boolean isSplitable(Configuration conf, Path file) {
+		CompressionCodec codec = new CompressionCodecFactory(conf).getCodec(file);
 		return codec == null;
 	}
 
@@ -14,6 +14,7 @@ import org.apache.hadoop.util.LineReader;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.SortedSet;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -40,6 +41,8 @@ public class IndexedRecordReader extends LineRecordReader {
 	private Iterator<String> currentRangeIterator;
 	private Index index;
 	private FileSplit split;
+	/** opens the iterators of the next ranges in the background, or null if prefetching is disabled */
+	private RangePrefetcher prefetcher;
 
 
 	/**
@@ -78,8 +81,9 @@ public class IndexedRecordReader extends LineRecordReader {
 
 
 		// try to build index
+		IndexBuilder builder = null;
 		try {
-			IndexBuilder builder = (IndexBuilder) builderClass.getConstructor().newInstance();
+			builder = (IndexBuilder) builderClass.getConstructor().newInstance();
 			index = builder
 					.jobConfiguration(conf)
 					.inputStream(fileIn)
@@ -98,11 +102,16 @@ public class IndexedRecordReader extends LineRecordReader {
 			if (LOG.isDebugEnabled())
 				LOG.debug("index ranges: " + index.toRanges());
 
-			rangesIterator = index.toRanges().iterator();
+			SortedSet<Range<Long>> ranges = index.toRanges();
+			if (builder.getPrefetchRanges() > 0 && !ranges.isEmpty())
+				prefetcher = new RangePrefetcher(index, ranges, builder.getPrefetchRanges(),
+						builder.getPrefetchQueueSize());
+
+			rangesIterator = ranges.iterator();
 			if (rangesIterator.hasNext())
 				currentRange = rangesIterator.next();
 			if (currentRange != null)
-				currentRangeIterator = index.getIterator(currentRange);
+				currentRangeIterator = openRange(currentRange);
 		}
 		// create a text object for efficiency
 		value = new Text();
@@ -129,12 +138,15 @@ public class IndexedRecordReader extends LineRecordReader {
 				boolean result = super.nextKeyValue();
 
 				if (result) {
-					if (index.addLine(getCurrentValue().toString(), startPos, pos - 1)) {
+					// the index works on the bytes of the line, so lines that are not returned are never decoded
+					Text line = getCurrentValue();
+					if (index.addLine(line.getBytes(), 0, line.getLength(), startPos, pos - 1)) {
 						return result;
 					} else {
 						// ignore these
 					}
 				} else {
+					closePrefetcher();
 					index.close();
 					return result;
 				}
@@ -169,7 +181,7 @@ public class IndexedRecordReader extends LineRecordReader {
 			pos = currentRange.getTo() + 1;
 
 			currentRange = rangesIterator.hasNext() ? rangesIterator.next() : null;
-			currentRangeIterator = currentRange == null ? null : index.getIterator(currentRange);
+			currentRangeIterator = currentRange == null ? null : openRange(currentRange);
 
 			String next = nextFromIndex();
 
@@ -192,4 +204,22 @@ public class IndexedRecordReader extends LineRecordReader {
 		// if the currentIterator has more values
 		return currentRangeIterator.next();
 	}
+
+	/** @return the records of the range, which is the next range of the index */
+	private Iterator<String> openRange(Range<Long> range) throws IOException {
+		return prefetcher != null ? prefetcher.nextRange() : index.getIterator(range);
+	}
+
+	private void closePrefetcher() {
+		if (prefetcher != null) {
+			prefetcher.close();
+			prefetcher = null;
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		closePrefetcher();
+		super.close();
+	}
 }
@@ -69,9 +69,10 @@ public class LineRecordReader extends RecordReader<LongWritable, Text> {
 		compressionCodecs = new CompressionCodecFactory(job);
 		final CompressionCodec codec = compressionCodecs.getCodec(file);
 
-		// open the file and seek to the start of the split
+		// open the file and seek to the start of the split. Block compressed files are read like uncompressed ones,
+		// the positions are positions in the uncompressed file
 		FileSystem fs = file.getFileSystem(job);
-		fileIn = fs.open(split.getPath());
+		fileIn = BlockCompressedFile.open(fs, split.getPath());
 		boolean skipFirstLine = false;
 		if (codec != null) {
 			in = new LineReader(codec.createInputStream(fileIn), job);
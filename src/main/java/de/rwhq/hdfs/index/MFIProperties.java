@@ -1,9 +1,6 @@
 package de.rwhq.hdfs.index;
 
-import com.google.common.base.Function;
 import com.google.common.base.Objects;
-import com.google.common.base.Predicates;
-import com.google.common.collect.Collections2;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import de.rwhq.btree.Range;
@@ -24,6 +21,21 @@ public class MFIProperties implements Serializable {
 	private String            path;
 	private List<MFIProperty> properties;
 
+	/**
+	 * Interval index over the properties, for lookups by position without scanning all properties. The properties are
+	 * sorted by start position, ends holds the end positions in the same order and maxEnds the maximum end position
+	 * up to each index, so that lookups also work if properties overlap.
+	 * <p/>
+	 * The index is rebuilt lazily after the properties were read, written or handed out through asList(), or if the
+	 * number of properties changed.
+	 */
+	private transient MFIProperty[] sorted;
+	private transient long[]        starts;
+	private transient long[]        ends;
+	private transient long[]        maxEnds;
+	private transient int           indexedSize;
+	private transient boolean       dirty = true;
+
 	public int removeByPath(String path) {
 		checkNotNull(path);
 
@@ -38,6 +50,10 @@ public class MFIProperties implements Serializable {
 			}
 		}
 
+		if (removed > 0)
+			TreeCache.INSTANCE.invalidate(path);
+
+		dirty = true;
 		return removed;
 	}
 
@@ -50,13 +66,63 @@ public class MFIProperties implements Serializable {
 	 * @return MFIProperty or null, if pos is not contained
 	 */
 	public MFIProperty propertyForPos(long pos) {
+		ensureIndex();
+
+		// walk back from the last property starting at or before pos, as long as a property could still reach pos
+		for (int i = floor(pos); i >= 0 && maxEnds[i] >= pos; i--) {
+			if (ends[i] >= pos)
+				return sorted[i];
+		}
+
+		return null;
+	}
+
+	/** @return index of the last property with start <= pos, or -1 */
+	private int floor(long pos) {
+		int low = 0;
+		int high = starts.length - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (starts[mid] <= pos)
+				low = mid + 1;
+			else
+				high = mid - 1;
+		}
+
+		return high;
+	}
+
+	private void ensureIndex() {
+		// the size check catches properties added to a list obtained by asList() before the index was built
+		if (!dirty && sorted != null && indexedSize == properties.size())
+			return;
+
+		List<MFIProperty> complete = Lists.newArrayList();
 		for (MFIProperty p : properties) {
-			if (p.startPos <= pos && p.endPos >= pos) {
-				return p;
+			if (p.startPos != null && p.endPos != null)
+				complete.add(p);
+		}
+
+		Collections.sort(complete, new Comparator<MFIProperty>() {
+			@Override
+			public int compare(MFIProperty o1, MFIProperty o2) {
+				return o1.startPos.compareTo(o2.startPos);
 			}
+		});
+
+		int size = complete.size();
+		sorted = complete.toArray(new MFIProperty[size]);
+		starts = new long[size];
+		ends = new long[size];
+		maxEnds = new long[size];
+		for (int i = 0; i < size; i++) {
+			starts[i] = sorted[i].startPos;
+			ends[i] = sorted[i].endPos;
+			maxEnds[i] = i == 0 ? ends[i] : Math.max(maxEnds[i - 1], ends[i]);
 		}
 
-		return null;
+		indexedSize = properties.size();
+		dirty = false;
 	}
 
 	public SortedSet<Range<Long>> toRanges() {
@@ -65,42 +131,64 @@ public class MFIProperties implements Serializable {
 
 	public SortedSet<Range<Long>> toRanges(final Long min, final Long max) {
 		final TreeSet<Range<Long>> result = Sets.newTreeSet(Range.createRangeComparator(LongComparator.INSTANCE));
+		ensureIndex();
 
-		Collection<Range<Long>> transformed =
-				Collections2.transform(properties, new Function<MFIProperty, Range<Long>>() {
-					@Override
-					public Range<Long> apply(MFIProperty input) {
-
-						if (min == null || input.startPos >= min) {
-
-							// TODO: we cannot really detect altering filesplit sizes
-							// but since input.enPos is alway a little bit over, we just have to return it here
-							//if (max == null || input.endPos <= max)
-							//	return input.toRange();
+		// the properties with min <= startPos
+		int from = min == null ? 0 : floor(min - 1) + 1;
 
-							// as a replacement (for now), we need to check at least that input.startPos < max;
-							if (max == null || input.startPos < max)
-								return input.toRange();
-						}
+		// the properties with startPos <= max. A property belongs to the split its start is in, even if it ends behind
+		// the split. So every property belongs to exactly one split, whatever the split sizes are.
+		int to = max == null ? sorted.length : floor(max) + 1;
 
-						return null;
-					}
-				});
+		for (int i = from; i < to; i++)
+			result.add(sorted[i].toRange());
 
-
-		result.addAll(Collections2.filter(transformed, Predicates.notNull()));
 		return result;
 	}
 
 	public MFIProperty getPropertyForRange(Range<Long> range) {
-		for (MFIProperty p : properties) {
-			if (p.toRange().equals(range))
-				return p;
+		ensureIndex();
+
+		if (range.getFrom() == null || range.getTo() == null)
+			return null;
+
+		long start = range.getFrom();
+		long end = range.getTo();
+		for (int i = floor(start); i >= 0 && starts[i] == start; i--) {
+			if (ends[i] == end)
+				return sorted[i];
 		}
 
 		return null;
 	}
 
+	/**
+	 * @return the properties overlapping the positions from start to end, inclusive, ordered by their start. null if
+	 *         a position in between is not covered by any property.
+	 */
+	public List<MFIProperty> coveringProperties(long start, long end) {
+		ensureIndex();
+
+		int last = floor(end);
+		int first = last;
+		while (first >= 0 && maxEnds[first] >= start)
+			first--;
+
+		List<MFIProperty> result = Lists.newArrayList();
+		long covered = start - 1;
+		for (int i = first + 1; i <= last; i++) {
+			if (ends[i] < start)
+				continue;
+			if (starts[i] > covered + 1)
+				return null;
+
+			result.add(sorted[i]);
+			covered = Math.max(covered, ends[i]);
+		}
+
+		return covered >= end ? result : null;
+	}
+
 	public boolean contains(long startPos) {
 		return propertyForPos(startPos) != null;
 	}
@@ -112,6 +200,18 @@ public class MFIProperties implements Serializable {
 		public String filePath;
 		public Long   startPos;
 		public Long   endPos;
+		/**
+		 * format of the values stored in the partial, defined by the index. Partials written before formats were
+		 * introduced have format 0.
+		 */
+		public int    valueFormat;
+		/**
+		 * smallest and largest key of the partial, serialized with the key serializer, and the number of its
+		 * entries. null for partials written before they were recorded.
+		 */
+		public byte[] minKey;
+		public byte[] maxKey;
+		public Long   rowCount;
 
 		/** for serialization only */
 		public MFIProperty() {
@@ -130,7 +230,11 @@ public class MFIProperties implements Serializable {
 				MFIProperty p2 = (MFIProperty) other;
 				return Objects.equal(filePath, p2.filePath)
 						&& Objects.equal(startPos, p2.startPos)
-						&& Objects.equal(endPos, p2.endPos);
+						&& Objects.equal(endPos, p2.endPos)
+						&& valueFormat == p2.valueFormat
+						&& Arrays.equals(minKey, p2.minKey)
+						&& Arrays.equals(maxKey, p2.maxKey)
+						&& Objects.equal(rowCount, p2.rowCount);
 			} else {
 				return false;
 			}
@@ -142,12 +246,15 @@ public class MFIProperties implements Serializable {
 					.add("filePath", filePath)
 					.add("startPos", startPos)
 					.add("endPos", endPos)
+					.add("valueFormat", valueFormat)
+					.add("rowCount", rowCount)
 					.toString().replace(", ", "\t\t");
 		}
 
 		@Override
 		public int hashCode() {
-			return Objects.hashCode(filePath, startPos, endPos);
+			return Objects.hashCode(filePath, startPos, endPos, valueFormat, Arrays.hashCode(minKey),
+					Arrays.hashCode(maxKey), rowCount);
 		}
 
 		public File getFile() {
@@ -164,21 +271,18 @@ public class MFIProperties implements Serializable {
 		this.properties = Lists.newArrayList();
 	}
 
+	/**
+	 * @return the properties. The list can be changed, the position index is rebuilt on the next lookup. Changes of
+	 *         the positions of the entries have to be followed by write().
+	 */
 	public List<MFIProperty> asList() {
+		dirty = true;
 		return properties;
 	}
 
 	public void write() throws IOException {
-
-		// ensure all MFIProperties have all values set
-		for (MFIProperty p : properties) {
-			checkNotNull(p.filePath, "All attributes of MFIProperty must be set for writing %s", toString());
-			checkNotNull(p.startPos, "All attributes of MFIProperty must be set for writing %s", toString());
-			checkNotNull(p.endPos, "All attributes of MFIProperty must be set for writing %s", toString());
-
-			checkState(p.startPos < p.endPos, "MFIProperty.startPos must be < MFIProperty.endPos for writing %s",
-					toString());
-		}
+		checkComplete();
+		dirty = true;
 
 		ObjectOutputStream oStream = null;
 		FileLock lock = null;
@@ -200,6 +304,144 @@ public class MFIProperties implements Serializable {
 		}
 	}
 
+	/**
+	 * Atomically replaces the given properties with a new one. The properties file is read and written while holding
+	 * an exclusive lock on it, so no other process can add or change properties in between.
+	 *
+	 * @param old
+	 * 		properties to remove
+	 * @param replacement
+	 * 		property to add
+	 * @return false, if not all properties to be replaced are in the properties file anymore. Nothing is changed then.
+	 * @throws IOException
+	 */
+	public boolean replace(Collection<MFIProperty> old, MFIProperty replacement) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(path, "rw");
+		FileLock lock = null;
+
+		try {
+			FileChannel channel = raf.getChannel();
+			lock = channel.lock();
+
+			if (raf.length() > 0) {
+				try {
+					MFIProperties loaded =
+							(MFIProperties) new ObjectInputStream(Channels.newInputStream(channel)).readObject();
+					properties = loaded.asList();
+					dirty = true;
+				} catch (ClassNotFoundException e) {
+					throw new IOException("error when reading object", e);
+				}
+			}
+
+			if (!properties.containsAll(old))
+				return false;
+
+			properties.removeAll(old);
+			properties.add(replacement);
+			dirty = true;
+			for (MFIProperty p : old)
+				TreeCache.INSTANCE.invalidate(p.filePath);
+			checkComplete();
+
+			channel.truncate(0);
+			channel.position(0);
+			ObjectOutputStream oStream = new ObjectOutputStream(Channels.newOutputStream(channel));
+			oStream.writeObject(this);
+			oStream.flush();
+
+			return true;
+		} finally {
+			if (lock != null && lock.isValid())
+				lock.release();
+
+			raf.close();
+		}
+	}
+
+	/**
+	 * Atomically adds properties of partials written elsewhere, like replace(). Properties of partials with a file
+	 * name already in the properties file, or overlapping one of its properties, are not added. Otherwise lines would
+	 * be returned twice.
+	 *
+	 * @param entries
+	 * 		properties to add
+	 * @return number of properties added
+	 * @throws IOException
+	 */
+	public int merge(Collection<MFIProperty> entries) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(path, "rw");
+		FileLock lock = null;
+
+		try {
+			FileChannel channel = raf.getChannel();
+			lock = channel.lock();
+
+			if (raf.length() > 0) {
+				try {
+					MFIProperties loaded =
+							(MFIProperties) new ObjectInputStream(Channels.newInputStream(channel)).readObject();
+					properties = loaded.asList();
+				} catch (ClassNotFoundException e) {
+					throw new IOException("error when reading object", e);
+				}
+			}
+			dirty = true;
+
+			Set<String> names = Sets.newHashSet();
+			for (MFIProperty p : properties)
+				names.add(p.getFile().getName());
+
+			int added = 0;
+			for (MFIProperty entry : entries) {
+				if (names.contains(entry.getFile().getName()) || overlaps(entry))
+					continue;
+
+				properties.add(entry);
+				names.add(entry.getFile().getName());
+				added++;
+			}
+
+			if (added == 0)
+				return 0;
+
+			checkComplete();
+			channel.truncate(0);
+			channel.position(0);
+			ObjectOutputStream oStream = new ObjectOutputStream(Channels.newOutputStream(channel));
+			oStream.writeObject(this);
+			oStream.flush();
+
+			return added;
+		} finally {
+			if (lock != null && lock.isValid())
+				lock.release();
+
+			raf.close();
+		}
+	}
+
+	private boolean overlaps(MFIProperty entry) {
+		for (MFIProperty p : properties) {
+			if (p.startPos <= entry.endPos && entry.startPos <= p.endPos)
+				return true;
+		}
+
+		return false;
+	}
+
+	/** ensure all MFIProperties have all values set */
+	private void checkComplete() {
+		for (MFIProperty p : properties) {
+			checkNotNull(p.filePath, "All attributes of MFIProperty must be set for writing %s", toString());
+			checkNotNull(p.startPos, "All attributes of MFIProperty must be set for writing %s", toString());
+			checkNotNull(p.endPos, "All attributes of MFIProperty must be set for writing %s", toString());
+
+			checkState(p.startPos < p.endPos, "MFIProperty.startPos must be < MFIProperty.endPos for writing %s",
+					toString());
+		}
+	}
+
 	@Override
 	public String toString() {
 		return Objects.toStringHelper(this)
@@ -221,6 +463,7 @@ public class MFIProperties implements Serializable {
 			MFIProperties loaded = (MFIProperties) oStream.readObject();
 
 			properties = loaded.asList();
+			dirty = true;
 		} catch (ClassNotFoundException e) {
 			throw new IOException("error when reading object", e);
 		} finally {
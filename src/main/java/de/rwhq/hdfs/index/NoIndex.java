@@ -1,11 +1,10 @@
 package de.rwhq.hdfs.index;
 
-import com.google.common.base.Predicate;
-import com.google.common.collect.Collections2;
 import com.google.common.collect.Sets;
 import de.rwhq.btree.Range;
 import de.rwhq.hdfs.index.extractor.ExtractionException;
 import de.rwhq.hdfs.index.extractor.KeyExtractor;
+import de.rwhq.hdfs.index.extractor.KeyExtractors;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -18,16 +17,14 @@ public class NoIndex<K> implements Index {
 	private final TreeSet ranges = Sets.newTreeSet();
 	private KeyExtractor<K> keyExtractor;
 	private static Log LOG = LogFactory.getLog(NoIndex.class);
-	private TreeSet<Range<K>> defaultSearchRanges;
+	private SearchRanges<K> searchRanges;
 	private Comparator<K> comparator;
 
 	public NoIndex(IndexBuilder b) {
 		keyExtractor = checkNotNull(b.getKeyExtractor(), "keyExtractor is null");
 		comparator = checkNotNull(b.getComparator(), "comparator is null");
 
-		if (b.getDefaultSearchRanges() != null) {
-			this.defaultSearchRanges = Range.merge(b.getDefaultSearchRanges(), comparator);
-		}
+		this.searchRanges = new SearchRanges<K>(b.getDefaultSearchRanges(), comparator);
 	}
 
 	@Override
@@ -57,6 +54,19 @@ public class NoIndex<K> implements Index {
 		return lineMatchesSearchRange(line);
 	}
 
+	@Override
+	public boolean addLine(byte[] bytes, int offset, int length, long startPos, long endPos) {
+		final K key;
+		try {
+			key = KeyExtractors.extract(keyExtractor, bytes, offset, length);
+		} catch (ExtractionException e) {
+			LOG.warn("could not extract key from line at position " + startPos, e);
+			return true;
+		}
+
+		return lineMatchesSearchRange(key);
+	}
+
 	private boolean lineMatchesSearchRange(final String line) {
 		final K key;
 		try {
@@ -70,14 +80,7 @@ public class NoIndex<K> implements Index {
 	}
 
 	private boolean lineMatchesSearchRange(final K key) {
-		Collection<Range<K>> resultCollection = Collections2.filter(defaultSearchRanges, new Predicate<Range<K>>() {
-			@Override
-			public boolean apply(Range<K> input) {
-				return input.contains(key, comparator);
-			}
-		});
-
-		return !resultCollection.isEmpty();
+		return searchRanges.contains(key);
 	}
 
 	@Override
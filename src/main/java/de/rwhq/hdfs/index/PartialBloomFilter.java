@@ -0,0 +1,84 @@
+package de.rwhq.hdfs.index;
+
+import org.apache.hadoop.util.bloom.BloomFilter;
+import org.apache.hadoop.util.bloom.Key;
+import org.apache.hadoop.util.hash.Hash;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Bloom filter over the serialized keys of a partial, stored in a file next to the partial. Before a partial is
+ * searched for single keys, the keys are checked against the filter, so that partials not containing them are not
+ * loaded.
+ */
+class PartialBloomFilter {
+	/** the filter of a partial is named like the partial, with this suffix */
+	static final String SUFFIX = ".bloom";
+
+	private final BloomFilter filter;
+
+	private PartialBloomFilter(BloomFilter filter) {
+		this.filter = filter;
+	}
+
+	/**
+	 * @param expectedKeys
+	 * 		number of keys that will be added
+	 * @param bitsPerKey
+	 * 		size of the filter per key. 10 bits give about 1% false positives.
+	 * @return an empty filter
+	 */
+	static PartialBloomFilter create(long expectedKeys, int bitsPerKey) {
+		checkArgument(bitsPerKey > 0, "bitsPerKey must be > 0");
+
+		int vectorSize = (int) Math.min(Integer.MAX_VALUE, Math.max(64, expectedKeys * bitsPerKey));
+		// the optimal number of hash functions is bitsPerKey * ln(2)
+		int hashes = Math.max(1, (int) Math.round(bitsPerKey * Math.log(2)));
+
+		return new PartialBloomFilter(new BloomFilter(vectorSize, hashes, Hash.MURMUR_HASH));
+	}
+
+	/** @return the filter of the partial, or null if the partial has no filter */
+	static PartialBloomFilter read(String partialPath) throws IOException {
+		File file = new File(partialPath + SUFFIX);
+		if (!file.exists())
+			return null;
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			BloomFilter filter = new BloomFilter();
+			filter.readFields(in);
+			return new PartialBloomFilter(filter);
+		} finally {
+			in.close();
+		}
+	}
+
+	void write(String partialPath) throws IOException {
+		DataOutputStream out =
+				new DataOutputStream(new BufferedOutputStream(new FileOutputStream(partialPath + SUFFIX)));
+		try {
+			filter.write(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	void add(byte[] key) {
+		filter.add(new Key(key));
+	}
+
+	/** @return false, if the key is certainly not in the partial */
+	boolean mightContain(byte[] key) {
+		return filter.membershipTest(new Key(key));
+	}
+}
@@ -0,0 +1,182 @@
+package de.rwhq.hdfs.index;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.AbstractIterator;
+import org.apache.hadoop.fs.FSDataInputStream;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Reads the lines at the positions returned by a secondary index.
+ * <p/>
+ * Instead of seeking to every position, the positions are taken from the tree in batches and sorted. Positions that
+ * are close to each other are read with one positioned read into a block, and the lines are cut out of the block. So
+ * the lines of a batch are returned in the order of their positions, not in the order of their keys.
+ * <p/>
+ * If the values contain the lengths of the lines (SecondaryIndex.POSITIONS_WITH_LENGTHS), exactly the bytes of the
+ * lines are read. Otherwise, the end of a line is not known and some bytes after the last position of a block are
+ * read as well.
+ * <p/>
+ * Positioned reads do not change the position of the input stream, which is shared with the record reader.
+ */
+class PositionedLineIterator extends AbstractIterator<String> {
+	/** upper bound for the size of a block, positions further apart are read in separate blocks */
+	static final int MAX_BLOCK_SIZE = 4 * 1024 * 1024;
+
+	private final Iterator<Long>    values;
+	private final FSDataInputStream in;
+	/** positions further apart than this are not read with one read */
+	private final int               maxGap;
+	private final boolean           withLengths;
+
+	/** the current batch of values, sorted by position */
+	private final long[] batch;
+	private       int    batchLength;
+	private       int    next;
+
+	private byte[] block = new byte[0];
+	private long   blockStart;
+	private int    blockLength;
+	/** number of bytes requested for the current block. If less were read, the block ends at the end of the file */
+	private int    requested;
+	/** bytes read after a position with unknown line length, doubled whenever a line does not fit */
+	private int    lineLength = 1024;
+
+	PositionedLineIterator(Iterator<Long> positions, FSDataInputStream in, int batchSize, int maxGap) {
+		this(positions, in, batchSize, maxGap, false);
+	}
+
+	/**
+	 * @param values
+	 * 		values of a secondary index
+	 * @param in
+	 * 		stream to read the lines from
+	 * @param batchSize
+	 * 		number of positions sorted and read together
+	 * @param maxGap
+	 * 		maximum number of bytes between two lines read with one read
+	 * @param withLengths
+	 * 		whether the values contain the lengths of the lines
+	 */
+	PositionedLineIterator(Iterator<Long> values, FSDataInputStream in, int batchSize, int maxGap,
+	                       boolean withLengths) {
+		checkArgument(batchSize > 0, "batchSize must be > 0");
+		checkArgument(maxGap >= 0, "maxGap must be >= 0");
+
+		this.values = values;
+		this.in = in;
+		this.batch = new long[batchSize];
+		this.maxGap = maxGap;
+		this.withLengths = withLengths;
+	}
+
+	@Override
+	protected String computeNext() {
+		if (next == batchLength && !nextBatch())
+			return endOfData();
+
+		try {
+			return readLine(next++);
+		} catch (IOException e) {
+			throw new RuntimeException("error when reading from inputStream", e);
+		}
+	}
+
+	private boolean nextBatch() {
+		batchLength = 0;
+		next = 0;
+		while (batchLength < batch.length && values.hasNext())
+			batch[batchLength++] = values.next();
+
+		// the position is in the upper bits, so values with lengths are sorted by position as well
+		Arrays.sort(batch, 0, batchLength);
+		return batchLength > 0;
+	}
+
+	private long position(int index) {
+		return withLengths ? batch[index] >>> SecondaryIndex.LENGTH_BITS : batch[index];
+	}
+
+	/** @return length of the line including the terminator, or 0 if it is not known */
+	private int length(int index) {
+		return withLengths ? (int) (batch[index] & SecondaryIndex.MAX_LENGTH) : 0;
+	}
+
+	/** @return the end of the bytes to read for the line, exclusive */
+	private long end(int index) {
+		int length = length(index);
+		return position(index) + (length > 0 ? length : lineLength);
+	}
+
+	/**
+	 * @return the line at the position with the given index in the batch, without the line terminator, or null if the
+	 *         position is at the end of the file
+	 */
+	private String readLine(int index) throws IOException {
+		long pos = position(index);
+		int length = length(index);
+		while (true) {
+			if (pos < blockStart || pos + Math.max(length, 1) > blockStart + blockLength)
+				readBlock(index);
+
+			int from = (int) (pos - blockStart);
+			if (length > 0)
+				return toLine(from, Math.min(from + length, blockLength));
+
+			for (int i = from; i < blockLength; i++) {
+				if (block[i] == '\n')
+					return toLine(from, i);
+			}
+
+			// the end of the file
+			if (blockLength < requested)
+				return from == blockLength ? null : toLine(from, blockLength);
+
+			// the line is longer than the bytes read after the position
+			checkState(lineLength <= Integer.MAX_VALUE / 2, "line at %s is too long", pos);
+			lineLength *= 2;
+			blockLength = 0;
+		}
+	}
+
+	/** @return the bytes between from and to, without a line terminator at the end */
+	private String toLine(int from, int to) {
+		if (to > from && block[to - 1] == '\n')
+			to--;
+		if (to > from && block[to - 1] == '\r')
+			to--;
+
+		return new String(block, from, to - from, Charsets.UTF_8);
+	}
+
+	/** reads the block starting at the position with the given index, covering all close positions after it */
+	private void readBlock(int index) throws IOException {
+		long start = position(index);
+		long end = end(index);
+		int last = index;
+		while (last + 1 < batchLength && position(last + 1) - end <= maxGap && end(last + 1) - start <= MAX_BLOCK_SIZE) {
+			last++;
+			end = Math.max(end, end(last));
+		}
+
+		requested = (int) Math.min(end - start, Integer.MAX_VALUE);
+		if (block.length < requested)
+			block = new byte[requested];
+
+		int read = 0;
+		while (read < requested) {
+			int n = in.read(start + read, block, read, requested - read);
+			if (n < 0)
+				break;
+			read += n;
+		}
+
+		blockStart = start;
+		blockLength = read;
+	}
+}
@@ -1,25 +1,134 @@
 package de.rwhq.hdfs.index;
 
+import com.google.common.base.Charsets;
 import de.rwhq.btree.Range;
+import de.rwhq.hdfs.index.extractor.AbstractCSVExtractor;
+import de.rwhq.hdfs.index.extractor.CSVProjection;
 import de.rwhq.hdfs.index.extractor.ExtractionException;
+import de.rwhq.hdfs.index.extractor.Projection;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.io.IOException;
-import java.util.AbstractMap;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 public class PrimaryIndex<K> extends AbstractMultiFileIndex<K, String> {
 
 	private static Log LOG = LogFactory.getLog(PrimaryIndex.class);
 
+	/** the lines are stored in the tree */
+	static final int VALUES_INLINE     = 0;
+	/** the lines are stored in compressed blocks in a value file, see BlockValueStore */
+	static final int VALUES_COMPRESSED = 1;
+	/** the lines are stored whole in a value file, as UTF-8 bytes without padding, see HeapValueStore */
+	static final int VALUES_HEAP       = 2;
+
+	/** number of bytes read at once from value heaps */
+	private static final int HEAP_WINDOW_SIZE = 64 * 1024;
+
+	/** reduces the stored lines, or null to store the whole lines */
+	private final Projection projection;
+	/** buffer for projected lines */
+	private       byte[]     projected = new byte[0];
+	/** format of the values of new partials */
+	private final int        valueFormat;
+	/** compressed values. Partials with compressed values are read with it even if new partials are not compressed */
+	private final ValueStore blockValues;
+	private final ValueStore heapValues = new HeapValueStore(HEAP_WINDOW_SIZE);
+
 	protected PrimaryIndex(IndexBuilder b) {
 		super(b);
+
+		projection = b.getProjection();
+		if (projection instanceof CSVProjection && keyExtractor instanceof AbstractCSVExtractor) {
+			int keyColumn = ((AbstractCSVExtractor) keyExtractor).getColumn();
+			checkArgument(((CSVProjection) projection).contains(keyColumn),
+					"the projection must keep the key column %s", keyColumn);
+		}
+
+		checkArgument(!(b.isCompressValues() && b.isValueHeap()), "values can either be compressed or kept in a heap");
+		if (b.isCompressValues())
+			valueFormat = VALUES_COMPRESSED;
+		else if (b.isValueHeap())
+			valueFormat = VALUES_HEAP;
+		else
+			valueFormat = VALUES_INLINE;
+
+		blockValues = new BlockValueStore(b.getValueCodec(), b.getValueBlockSize(), valueSerializer.getSerializedLength());
+	}
+
+	@Override
+	protected int valueFormat() {
+		return valueFormat;
+	}
+
+	@Override
+	ValueStore valueStore(int valueFormat) {
+		switch (valueFormat) {
+			case VALUES_COMPRESSED:
+				return blockValues;
+			case VALUES_HEAP:
+				return heapValues;
+			default:
+				return null;
+		}
+	}
+
+	/** lines of the value heap are not cut, their values are as long as the lines */
+	@Override
+	protected int maxValueLength(int lineLength) {
+		return valueFormat == VALUES_HEAP ? lineLength : super.maxValueLength(lineLength);
+	}
+
+	@Override
+	protected void extractValue(String line, long startPos, long endPos, ByteBuffer value)
+			throws ExtractionException {
+		value.put(serializeValue(projection == null ? line : projection.project(line), valueFormat));
+	}
+
+	/** copies the bytes if the value serializer supports it, otherwise the line is decoded first */
+	@Override
+	protected void extractValue(byte[] bytes, int offset, int length, long startPos, long endPos, ByteBuffer value)
+			throws ExtractionException {
+		if (projection != null) {
+			if (projected.length < length)
+				projected = new byte[Math.max(length, 2 * projected.length)];
+
+			length = projection.project(bytes, offset, length, projected);
+			bytes = projected;
+			offset = 0;
+		}
+
+		if (valueFormat == VALUES_HEAP)
+			value.put(bytes, offset, length);
+		else if (valueSerializer instanceof ByteValueSerializer)
+			((ByteValueSerializer) valueSerializer).serialize(bytes, offset, length, value);
+		else
+			value.put(valueSerializer.serialize(new String(bytes, offset, length, Charsets.UTF_8)));
+	}
+
+	@Override
+	protected String deserializeValue(byte[] value, int length, int valueFormat) {
+		if (valueFormat == VALUES_HEAP)
+			return new String(value, 0, length, Charsets.UTF_8);
+
+		return super.deserializeValue(value, length, valueFormat);
+	}
+
+	@Override
+	protected byte[] serializeValue(String value, int valueFormat) {
+		if (valueFormat == VALUES_HEAP)
+			return value.getBytes(Charsets.UTF_8);
+
+		return super.serializeValue(value, valueFormat);
 	}
 
 	@Override
-	protected AbstractMap.SimpleEntry<K, ?> extractEntry(String line, long pos) throws ExtractionException {
-		return new AbstractMap.SimpleEntry<K, byte[]>(keyExtractor.extract(line), valueSerializer.serialize(line));
+	protected K keyForValue(String value, int valueFormat) throws ExtractionException {
+		return keyExtractor.extract(value);
 	}
 
 	@Override
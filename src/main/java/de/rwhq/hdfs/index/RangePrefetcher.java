@@ -0,0 +1,202 @@
+package de.rwhq.hdfs.index;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import de.rwhq.btree.Range;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Reads the records of the ranges of an index ahead on background threads, so that the tree of the next partial is
+ * already loaded when the record reader reaches it.
+ * <p/>
+ * One thread opens the iterators of the ranges in order. When the record reader takes a range, the iterators of the
+ * next rangesAhead ranges are opened. A second thread reads the records of the opened ranges into a bounded queue, so
+ * the number of records read ahead is bounded independently of the opened ranges. nextRange() returns the records of
+ * the next range, the ranges are returned in the order they were given.
+ * <p/>
+ * The threads are never interrupted, an interrupt would close the channels of partials shared through the TreeCache.
+ * close() sets a flag and empties the queue instead, the threads stop at the next record or range.
+ */
+class RangePrefetcher {
+	private static final Log LOG = LogFactory.getLog(RangePrefetcher.class);
+
+	/** marks the end of the records of a range in the queue */
+	private static final Object END_OF_RANGE = new Object();
+	/** put into the queue of opened ranges when no more ranges are opened */
+	private static final Object NO_MORE_RANGES = new Object();
+
+	/** iterators of the opened ranges, a Failure or NO_MORE_RANGES */
+	private final BlockingQueue<Object> openedRanges = new LinkedBlockingQueue<Object>();
+	private final BlockingQueue<Object> records;
+	/** a permit for every range that may be opened before the record reader takes it */
+	private final Semaphore             openRanges;
+	private final int                   rangeCount;
+	private volatile boolean            closed;
+	private          int                remainingRanges;
+
+	/** put into the queue if opening or reading a range failed */
+	private static class Failure {
+		private final Throwable cause;
+
+		private Failure(Throwable cause) {
+			this.cause = cause;
+		}
+	}
+
+	/**
+	 * @param index
+	 * 		opened index
+	 * @param ranges
+	 * 		ranges of the index, in the order the record reader reads them
+	 * @param rangesAhead
+	 * 		maximum number of ranges opened before the record reader reaches them
+	 * @param queueSize
+	 * 		maximum number of records read ahead
+	 */
+	RangePrefetcher(final Index index, Collection<Range<Long>> ranges, int rangesAhead, int queueSize) {
+		checkArgument(rangesAhead > 0, "rangesAhead must be > 0");
+		checkArgument(queueSize > 0, "queueSize must be > 0");
+
+		final List<Range<Long>> rangeList = Lists.newArrayList(ranges);
+		this.rangeCount = rangeList.size();
+		this.remainingRanges = rangeCount;
+		this.records = new ArrayBlockingQueue<Object>(queueSize);
+		// the record reader reads from the first range while the next ones are opened
+		this.openRanges = new Semaphore(rangesAhead + 1);
+
+		ThreadFactory threads = new ThreadFactoryBuilder().setDaemon(true).setNameFormat("range-prefetcher-%d").build();
+		threads.newThread(new Runnable() {
+			@Override
+			public void run() {
+				openRanges(index, rangeList);
+			}
+		}).start();
+		threads.newThread(new Runnable() {
+			@Override
+			public void run() {
+				readRecords();
+			}
+		}).start();
+	}
+
+	private void openRanges(Index index, List<Range<Long>> rangeList) {
+		try {
+			for (Range<Long> range : rangeList) {
+				openRanges.acquireUninterruptibly();
+				if (closed)
+					return;
+
+				openedRanges.add(index.getIterator(range));
+			}
+		} catch (Throwable t) {
+			LOG.error("error when opening index ranges", t);
+			openedRanges.add(new Failure(t));
+		} finally {
+			openedRanges.add(NO_MORE_RANGES);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void readRecords() {
+		try {
+			for (int i = 0; i < rangeCount; i++) {
+				Object opened = openedRanges.take();
+				if (opened == NO_MORE_RANGES)
+					return;
+				if (opened instanceof Failure) {
+					put(opened);
+					return;
+				}
+
+				Iterator<String> iterator = (Iterator<String>) opened;
+				while (iterator.hasNext()) {
+					if (!put(iterator.next()))
+						return;
+				}
+
+				if (!put(END_OF_RANGE))
+					return;
+			}
+		} catch (InterruptedException e) {
+			// the prefetcher does not interrupt its threads, someone else wants the thread to stop
+			Thread.currentThread().interrupt();
+		} catch (Throwable t) {
+			LOG.error("error when prefetching index ranges", t);
+			try {
+				put(new Failure(t));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * puts the record into the queue, unless the prefetcher is closed. close() empties the queue after setting the
+	 * flag, so a put that started before is not blocked forever.
+	 *
+	 * @return false, if the prefetcher is closed
+	 */
+	private boolean put(Object record) throws InterruptedException {
+		if (closed)
+			return false;
+
+		records.put(record);
+		return true;
+	}
+
+	/** @return the records of the next range. The records of the previous range must be read completely. */
+	Iterator<String> nextRange() {
+		checkState(remainingRanges > 0, "all ranges were returned");
+		// the previous range is done, so one more range can be opened ahead
+		if (remainingRanges < rangeCount)
+			openRanges.release();
+		remainingRanges--;
+
+		return new AbstractIterator<String>() {
+			@Override
+			protected String computeNext() {
+				Object next;
+				try {
+					next = records.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException("interrupted while waiting for prefetched records", e);
+				}
+
+				if (next == END_OF_RANGE)
+					return endOfData();
+
+				if (next instanceof Failure)
+					throw new RuntimeException("error when prefetching index ranges", ((Failure) next).cause);
+
+				return (String) next;
+			}
+		};
+	}
+
+	/**
+	 * stops the background threads, records not read yet are dropped. Ranges being opened or records being read are
+	 * finished first, the threads are not interrupted.
+	 */
+	void close() {
+		closed = true;
+		// wakes up the thread opening ranges, it stops when it sees the flag
+		openRanges.release(rangeCount);
+		// wakes up the thread reading records, if it waits for room in the queue
+		records.clear();
+	}
+}
@@ -0,0 +1,80 @@
+package de.rwhq.hdfs.index;
+
+import com.google.common.collect.Lists;
+import de.rwhq.btree.Range;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The search ranges of an index, for checking every line read against them.
+ * <p/>
+ * The ranges are merged into disjoint ranges and stored sorted in two arrays, so a key is matched by a binary search
+ * for the last range starting before the key. Nothing is allocated per check.
+ * <p/>
+ * Like the tree iterators, which return all entries if no search range is given, an empty set of ranges matches
+ * every key.
+ */
+class SearchRanges<K> {
+	private final Comparator<K> comparator;
+	/** start of the ranges in ascending order. Only the first one can be null (open start) */
+	private final K[]           froms;
+	/** end of the ranges. Only the last one can be null (open end) */
+	private final K[]           tos;
+
+	@SuppressWarnings("unchecked")
+	SearchRanges(Collection<Range<K>> ranges, final Comparator<K> comparator) {
+		this.comparator = comparator;
+
+		List<Range<K>> sorted = Lists.newArrayList(ranges);
+		Collections.sort(sorted, Range.createRangeComparator(comparator));
+
+		List<K> fromList = Lists.newArrayList();
+		List<K> toList = Lists.newArrayList();
+		for (Range<K> range : sorted) {
+			int last = toList.size() - 1;
+
+			// overlapping the previous range
+			if (last >= 0 && (toList.get(last) == null || range.getFrom() == null ||
+					comparator.compare(range.getFrom(), toList.get(last)) <= 0)) {
+				if (toList.get(last) != null &&
+						(range.getTo() == null || comparator.compare(range.getTo(), toList.get(last)) > 0))
+					toList.set(last, range.getTo());
+			} else {
+				fromList.add(range.getFrom());
+				toList.add(range.getTo());
+			}
+		}
+
+		froms = (K[]) fromList.toArray();
+		tos = (K[]) toList.toArray();
+	}
+
+	boolean isEmpty() {
+		return froms.length == 0;
+	}
+
+	/** @return true, if the key is in one of the ranges or if there are no ranges */
+	boolean contains(K key) {
+		if (froms.length == 0)
+			return true;
+
+		// binary search for the last range with from <= key
+		int low = 0;
+		int high = froms.length - 1;
+		int floor = -1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (froms[mid] == null || comparator.compare(froms[mid], key) <= 0) {
+				floor = mid;
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+
+		return floor >= 0 && (tos[floor] == null || comparator.compare(key, tos[floor]) <= 0);
+	}
+}
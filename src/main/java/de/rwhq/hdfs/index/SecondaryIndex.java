@@ -1,32 +1,51 @@
 package de.rwhq.hdfs.index;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.base.Function;
-import com.google.common.collect.Iterators;
 import de.rwhq.btree.Range;
 import de.rwhq.hdfs.index.extractor.ExtractionException;
 import de.rwhq.serializer.LongSerializer;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 
-import javax.annotation.Nullable;
 import java.io.BufferedReader;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.AbstractMap;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 public class SecondaryIndex<K> extends AbstractMultiFileIndex<K, Long> {
+	private static Log LOG = LogFactory.getLog(SecondaryIndex.class);
+
+	/** the values are the start positions of the lines */
+	static final int POSITIONS              = 0;
+	/**
+	 * the values hold the start position in the upper 39 bits and the length of the line, including the line
+	 * terminator, in the lower 24 bits. A length of 0 means that the line was too long to be stored. The sign bit is
+	 * never set, so the values sort like the positions.
+	 */
+	static final int POSITIONS_WITH_LENGTHS = 1;
+
+	static final int  LENGTH_BITS  = 24;
+	static final long MAX_LENGTH   = (1L << LENGTH_BITS) - 1;
+	static final long MAX_POSITION = (1L << (63 - LENGTH_BITS)) - 1;
 
 	@VisibleForTesting
 	FSDataInputStream inputStream;
 
 	private Configuration   jobConf;
+	/** number of positions read together */
+	private int             readBufferSize;
+	/** positions at most this many bytes apart are read with one read */
+	private int             readGap;
+	private boolean         storeLengths;
 
 	@VisibleForTesting
 	InputStreamReader inReader;
@@ -35,15 +54,63 @@ public class SecondaryIndex<K> extends AbstractMultiFileIndex<K, Long> {
 		super(b.valueSerializer(LongSerializer.INSTANCE));
 
 		checkArgument(b.getSecondaryIndexReadBufferSize() > 0, "secondary index read buffer size must be > 0");
+		checkArgument(b.getProjection() == null, "a secondary index stores positions, it can not project lines");
 
 		this.inputStream = b.getInputStream();
 		this.jobConf = b.getJobConfiguration();
-		
+		this.readBufferSize = b.getSecondaryIndexReadBufferSize();
+		this.readGap = b.getSecondaryIndexReadGap();
+
+		FileSplit split = b.getFileSplit();
+		this.storeLengths = b.isSecondaryIndexStoreLengths();
+		if (storeLengths && split.getStart() + split.getLength() > MAX_POSITION) {
+			LOG.warn("positions of " + split.getPath() + " are too large to be stored with lengths, storing only " +
+					"positions");
+			storeLengths = false;
+		}
+	}
+
+	/** writes the same bytes as LongSerializer, without boxing the value */
+	@Override
+	protected void extractValue(String line, long startPos, long endPos, ByteBuffer value) throws ExtractionException {
+		value.putLong(toValue(startPos, endPos));
 	}
 
 	@Override
-	protected AbstractMap.SimpleEntry<K, ?> extractEntry(String line, long pos) throws ExtractionException {
-		return new AbstractMap.SimpleEntry<K, byte[]>(keyExtractor.extract(line), valueSerializer.serialize(pos));
+	protected void extractValue(byte[] bytes, int offset, int length, long startPos, long endPos, ByteBuffer value)
+			throws ExtractionException {
+		value.putLong(toValue(startPos, endPos));
+	}
+
+	private long toValue(long startPos, long endPos) {
+		if (!storeLengths)
+			return startPos;
+
+		long length = endPos - startPos + 1;
+		return startPos << LENGTH_BITS | (length <= MAX_LENGTH ? length : 0);
+	}
+
+	@Override
+	protected int valueFormat() {
+		return storeLengths ? POSITIONS_WITH_LENGTHS : POSITIONS;
+	}
+
+	@Override
+	protected K keyForValue(Long value, int valueFormat) throws IOException, ExtractionException {
+		ensureIteratorRequirements();
+		return keyExtractor.extract(readLine(valueFormat == POSITIONS_WITH_LENGTHS ? value >>> LENGTH_BITS : value));
+	}
+
+	/** reads the line at the given position and restores the position of the input stream */
+	private String readLine(long pos) throws IOException {
+		long oldPos = inputStream.getPos();
+		inputStream.seek(pos);
+
+		// use a new reader, a shared one would still buffer data from the old position
+		String result = new BufferedReader(new InputStreamReader(inputStream)).readLine();
+		inputStream.seek(oldPos);
+
+		return result;
 	}
 
 	private void ensureIteratorRequirements() {
@@ -59,24 +126,15 @@ public class SecondaryIndex<K> extends AbstractMultiFileIndex<K, Long> {
 		return super.getIterator();
 	}
 
+	/**
+	 * The positions are read in batches of secondaryIndexReadBufferSize, and the lines of a batch are returned in the
+	 * order of their positions. See PositionedLineIterator.
+	 */
 	@Override
 	public Iterator<String> getIterator(Range<Long> range) throws IOException {
 		ensureIteratorRequirements();
 
-		return Iterators.transform(getTreeIterator(range), new Function<Long, String>() {
-			@Override
-			public String apply(@Nullable Long input) {
-
-				try {
-					long oldPos = inputStream.getPos();
-					inputStream.seek(input);
-					String result = new BufferedReader(inReader).readLine();
-					inputStream.seek(oldPos);
-					return result;
-				} catch (IOException e) {
-					throw new RuntimeException("error when reading from inputStream", e);
-				}
-			}
-		});
+		return new PositionedLineIterator(getTreeIterator(range), inputStream, readBufferSize, readGap,
+				valueFormatOf(range) == POSITIONS_WITH_LENGTHS);
 	}
 }
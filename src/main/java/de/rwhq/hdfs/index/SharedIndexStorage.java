@@ -0,0 +1,586 @@
+package de.rwhq.hdfs.index;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Index folder on a hadoop file system, shared by all nodes of the cluster. The partials written on a node are
+ * published into it, so that splits of the same file running on other nodes do not index the file again.
+ * <p/>
+ * The shared folder has the same layout as the local index root folder: a folder per hdfs file with the partials and
+ * a properties file per index id. The properties only hold the file names of the partials.
+ * <p/>
+ * Partials of other nodes are read from a node-local cache folder, again with the same layout. A partial is copied
+ * into the cache when it is used first. If the cache grows larger than its maximum size, the partials used least
+ * recently are deleted. They are copied again when they are used the next time. As the cache is only a folder,
+ * it is shared by all task JVMs of the node. The last use of a partial is recorded in a marker file next to it, the
+ * modification time of the tree itself is what the TreeCache compares. Copying and evicting is done while holding a
+ * file lock on the cache, and partials used within the last EVICTION_GRACE_TIME are never evicted, so a partial is not
+ * deleted between being localized and being opened by another JVM.
+ * <p/>
+ * The shared properties are changed while holding a lock file in the shared folder. If the lock can not be taken,
+ * the partials are not published, they are still used on the node that wrote them. Every change is written into a
+ * new properties file with the next version number, readers use the newest one. The previous version is kept, so
+ * the properties can always be read while another node publishes.
+ */
+class SharedIndexStorage {
+	private static Log LOG = LogFactory.getLog(SharedIndexStorage.class);
+
+	/** folder of the cache, if none is configured. Within the local index root folder. */
+	static final String DEFAULT_CACHE_FOLDER = "_partialCache";
+	static final long   DEFAULT_CACHE_SIZE   = 1024L * 1024 * 1024;
+
+	/** locks older than this are left over by crashed tasks and are removed */
+	static final long STALE_LOCK_AGE      = 10 * 60 * 1000;
+	/** partials in the cache used within this time are not evicted */
+	static final long EVICTION_GRACE_TIME = 5 * 60 * 1000;
+	private static final int  LOCK_ATTEMPTS = 50;
+	private static final long LOCK_WAIT     = 100;
+	private static final int  READ_ATTEMPTS = 3;
+
+	/** suffix of the marker file recording the last use of a partial in the cache */
+	static final String USED_SUFFIX = ".used";
+
+	private static final String[] SIDECAR_SUFFIXES = {ValueStore.SUFFIX, PartialBloomFilter.SUFFIX};
+	private static final String   CACHE_LOCK       = ".lock";
+
+	/** file locks are held by the JVM, threads of the same JVM exclude each other with this monitor */
+	private static final Object CACHE_MONITOR = new Object();
+
+	private final FileSystem fs;
+	/** folder of the hdfs file in the shared index folder */
+	private final Path       folder;
+	private final File       cacheRoot;
+	/** folder of the hdfs file in the cache */
+	private final File       cacheFolder;
+	private final long       cacheSize;
+	private final String     indexId;
+
+	/**
+	 * @param fs
+	 * 		file system of the shared folder
+	 * @param sharedRoot
+	 * 		shared index folder
+	 * @param cacheRoot
+	 * 		local folder for the partials read from the shared folder
+	 * @param cacheSize
+	 * 		maximum size of the cache folder in bytes
+	 * @param hdfsFile
+	 * 		path of the indexed file, starting with /
+	 * @param indexId
+	 * 		id of the index, see IndexBuilder.getIndexId()
+	 */
+	SharedIndexStorage(FileSystem fs, Path sharedRoot, File cacheRoot, long cacheSize, String hdfsFile,
+	                   String indexId) {
+		checkArgument(cacheSize > 0, "cacheSize must be > 0");
+		checkArgument(hdfsFile.startsWith("/"), "hdfsFile must start with /");
+
+		this.fs = checkNotNull(fs, "fs must not be null");
+		this.folder = new Path(sharedRoot.toString() + hdfsFile);
+		this.cacheRoot = checkNotNull(cacheRoot, "cacheRoot must not be null");
+		this.cacheFolder = new File(cacheRoot.getPath() + hdfsFile);
+		this.cacheSize = cacheSize;
+		this.indexId = indexId;
+	}
+
+	private String getPropertiesPrefix() {
+		return "properties_" + indexId + ".";
+	}
+
+	private Path getPropertiesPath(long version) {
+		return new Path(folder, getPropertiesPrefix() + version);
+	}
+
+	private Path getLockPath() {
+		return new Path(folder, "lock_" + indexId);
+	}
+
+	/** created by the process removing a stale lock */
+	private Path getBreakerPath() {
+		return new Path(folder, "lock_" + indexId + ".break");
+	}
+
+	/**
+	 * @return the properties of the published partials. The file paths point into the cache, the partials are copied
+	 *         there by localize().
+	 */
+	List<MFIProperties.MFIProperty> read() throws IOException {
+		List<MFIProperties.MFIProperty> result = readShared();
+		for (MFIProperties.MFIProperty p : result)
+			p.filePath = new File(cacheFolder, p.filePath).getPath();
+
+		return result;
+	}
+
+	/** @return the published properties, with the file names of the partials as file paths */
+	private List<MFIProperties.MFIProperty> readShared() throws IOException {
+		FileNotFoundException notFound = null;
+		for (int i = 0; i < READ_ATTEMPTS; i++) {
+			long version = getVersion();
+			if (version < 0)
+				return Lists.newArrayList();
+
+			try {
+				return readShared(version);
+			} catch (FileNotFoundException e) {
+				// two newer versions were written in the meantime
+				notFound = e;
+			}
+		}
+
+		throw notFound;
+	}
+
+	/** @return the newest version of the properties, or -1 if there are none */
+	private long getVersion() throws IOException {
+		FileStatus[] files = fs.exists(folder) ? fs.listStatus(folder) : null;
+		if (files == null)
+			return -1;
+
+		long version = -1;
+		for (FileStatus file : files) {
+			String name = file.getPath().getName();
+			if (!name.startsWith(getPropertiesPrefix()))
+				continue;
+
+			try {
+				version = Math.max(version, Long.parseLong(name.substring(getPropertiesPrefix().length())));
+			} catch (NumberFormatException e) {
+				LOG.warn("ignoring " + file.getPath() + ", it is no properties file");
+			}
+		}
+
+		return version;
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<MFIProperties.MFIProperty> readShared(long version) throws IOException {
+		ObjectInputStream in = new ObjectInputStream(fs.open(getPropertiesPath(version)));
+		try {
+			return (List<MFIProperties.MFIProperty>) in.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("error when reading object", e);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * copies the partials and their sidecar files into the shared folder and adds their properties to the shared
+	 * properties. Partials with the name of a partial in the shared folder, like the ones already published, are
+	 * skipped.
+	 *
+	 * @param partials
+	 * 		properties of partials in the local index folder
+	 * @return false, if the shared properties were locked, nothing was published then
+	 */
+	boolean publish(Collection<MFIProperties.MFIProperty> partials) throws IOException {
+		fs.mkdirs(folder);
+
+		List<MFIProperties.MFIProperty> toPublish = Lists.newArrayList();
+		for (MFIProperties.MFIProperty p : partials) {
+			if (!fs.exists(new Path(folder, p.getFile().getName())))
+				toPublish.add(p);
+		}
+
+		if (toPublish.isEmpty())
+			return true;
+
+		List<Path> copied = Lists.newArrayList();
+		try {
+			for (MFIProperties.MFIProperty p : toPublish)
+				copyToShared(p.filePath, copied);
+		} catch (IOException e) {
+			deleteShared(copied);
+			throw e;
+		}
+
+		if (!lock()) {
+			LOG.warn(getLockPath() + " is locked, not publishing " + toPublish.size() + " partials");
+			deleteShared(copied);
+			return false;
+		}
+
+		try {
+			long version = getVersion();
+			List<MFIProperties.MFIProperty> shared =
+					version < 0 ? new ArrayList<MFIProperties.MFIProperty>() : readShared(version);
+			Set<String> names = Sets.newHashSet();
+			for (MFIProperties.MFIProperty p : shared)
+				names.add(p.filePath);
+
+			for (MFIProperties.MFIProperty p : toPublish) {
+				String name = p.getFile().getName();
+				if (names.add(name)) {
+					MFIProperties.MFIProperty entry = copyOf(p);
+					entry.filePath = name;
+					shared.add(entry);
+				}
+			}
+
+			writeShared(shared, version + 1);
+			return true;
+		} finally {
+			unlock();
+		}
+	}
+
+	/**
+	 * publishes a partial merged by compaction and removes the entries of the partials it replaces from the shared
+	 * properties. The files of the replaced partials stay in the shared folder, nodes that read the properties before
+	 * may still copy them.
+	 *
+	 * @param replaced
+	 * 		properties of the partials merged into the new partial
+	 * @param merged
+	 * 		properties of the new partial in the local index folder
+	 * @return false, if the shared properties were locked, nothing was changed then
+	 */
+	boolean replace(Collection<MFIProperties.MFIProperty> replaced, MFIProperties.MFIProperty merged)
+			throws IOException {
+		fs.mkdirs(folder);
+
+		List<Path> copied = Lists.newArrayList();
+		try {
+			copyToShared(merged.filePath, copied);
+		} catch (IOException e) {
+			deleteShared(copied);
+			throw e;
+		}
+
+		if (!lock()) {
+			LOG.warn(getLockPath() + " is locked, not replacing " + replaced.size() + " partials");
+			deleteShared(copied);
+			return false;
+		}
+
+		try {
+			long version = getVersion();
+			List<MFIProperties.MFIProperty> shared =
+					version < 0 ? new ArrayList<MFIProperties.MFIProperty>() : readShared(version);
+
+			Set<String> names = Sets.newHashSet();
+			for (MFIProperties.MFIProperty p : replaced)
+				names.add(p.getFile().getName());
+
+			Iterator<MFIProperties.MFIProperty> iterator = shared.iterator();
+			while (iterator.hasNext()) {
+				if (names.contains(iterator.next().filePath))
+					iterator.remove();
+			}
+
+			MFIProperties.MFIProperty entry = copyOf(merged);
+			entry.filePath = merged.getFile().getName();
+			shared.add(entry);
+
+			writeShared(shared, version + 1);
+			return true;
+		} finally {
+			unlock();
+		}
+	}
+
+	private static MFIProperties.MFIProperty copyOf(MFIProperties.MFIProperty p) {
+		MFIProperties.MFIProperty copy = new MFIProperties.MFIProperty(p.filePath, p.startPos, p.endPos);
+		copy.valueFormat = p.valueFormat;
+		copy.minKey = p.minKey;
+		copy.maxKey = p.maxKey;
+		copy.rowCount = p.rowCount;
+		return copy;
+	}
+
+	/**
+	 * copies the partial and its sidecar files, the tree is copied last
+	 *
+	 * @param copied
+	 * 		the copied files are added to it, also if copying fails
+	 */
+	private void copyToShared(String partialPath, List<Path> copied) throws IOException {
+		for (String suffix : SIDECAR_SUFFIXES) {
+			File sidecar = new File(partialPath + suffix);
+			if (sidecar.exists())
+				copied.add(copyToShared(sidecar));
+		}
+		copied.add(copyToShared(new File(partialPath)));
+	}
+
+	private Path copyToShared(File file) throws IOException {
+		Path target = new Path(folder, file.getName());
+		fs.copyFromLocalFile(false, true, new Path(file.getPath()), target);
+		return target;
+	}
+
+	private void deleteShared(List<Path> paths) {
+		for (Path path : paths) {
+			try {
+				fs.delete(path, false);
+			} catch (IOException e) {
+				LOG.warn("could not delete " + path, e);
+			}
+		}
+	}
+
+	/**
+	 * writes the properties as the given version. Only versions older than the previous one are deleted, readers that
+	 * found the previous version as the newest one can still read it. Requires the lock.
+	 */
+	private void writeShared(List<MFIProperties.MFIProperty> shared, long version) throws IOException {
+		Path path = getPropertiesPath(version);
+		Path tmp = new Path(folder, "." + path.getName() + ".tmp");
+		ObjectOutputStream out = new ObjectOutputStream(fs.create(tmp, true));
+		try {
+			out.writeObject(new ArrayList<MFIProperties.MFIProperty>(shared));
+		} finally {
+			out.close();
+		}
+
+		// the new version appears completely or not at all, the old versions are untouched if this fails
+		if (!fs.rename(tmp, path)) {
+			fs.delete(tmp, false);
+			throw new IOException("could not rename " + tmp + " to " + path);
+		}
+
+		for (long old = version - 2; old >= 0; old--) {
+			if (!fs.delete(getPropertiesPath(old), false))
+				break;
+		}
+	}
+
+	private boolean lock() throws IOException {
+		Path lock = getLockPath();
+		for (int i = 0; i < LOCK_ATTEMPTS; i++) {
+			if (fs.createNewFile(lock))
+				return true;
+
+			if (isStale(lock)) {
+				breakStaleLock(lock);
+				continue;
+			}
+
+			try {
+				Thread.sleep(LOCK_WAIT);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * removes a lock left over by a crashed task. Only the process that creates the breaker file may remove the lock,
+	 * and only if it is still stale then, so a lock taken by another process in the meantime is never removed.
+	 */
+	private void breakStaleLock(Path lock) throws IOException {
+		Path breaker = getBreakerPath();
+		if (!fs.createNewFile(breaker)) {
+			// breakers only live for a moment, an old one is left over by a crash
+			if (isStale(breaker))
+				fs.delete(breaker, false);
+			return;
+		}
+
+		try {
+			if (isStale(lock)) {
+				LOG.warn("removing stale lock " + lock);
+				fs.delete(lock, false);
+			}
+		} finally {
+			fs.delete(breaker, false);
+		}
+	}
+
+	private boolean isStale(Path path) throws IOException {
+		try {
+			return System.currentTimeMillis() - fs.getFileStatus(path).getModificationTime() > STALE_LOCK_AGE;
+		} catch (FileNotFoundException e) {
+			// released in the meantime
+			return false;
+		}
+	}
+
+	private void unlock() {
+		try {
+			fs.delete(getLockPath(), false);
+		} catch (IOException e) {
+			LOG.warn("could not delete " + getLockPath(), e);
+		}
+	}
+
+	/** @return true, if the path is the path of a partial in the cache */
+	boolean isCached(String partialPath) {
+		return new File(partialPath).getParentFile().equals(cacheFolder);
+	}
+
+	/**
+	 * copies the partial and its sidecar files from the shared folder into the cache, if it is not there yet, and marks
+	 * it as used. Then the cache is shrunk to its maximum size.
+	 *
+	 * @param partialPath
+	 * 		path of the partial in the cache
+	 */
+	void localize(String partialPath) throws IOException {
+		File partial = new File(partialPath);
+
+		synchronized (CACHE_MONITOR) {
+			cacheFolder.mkdirs();
+			RandomAccessFile raf = new RandomAccessFile(new File(cacheRoot, CACHE_LOCK), "rw");
+			FileLock lock = null;
+
+			try {
+				lock = raf.getChannel().lock();
+
+				boolean copied = false;
+				if (!partial.exists()) {
+					for (String suffix : SIDECAR_SUFFIXES) {
+						Path sidecar = new Path(folder, partial.getName() + suffix);
+						if (fs.exists(sidecar))
+							copyToCache(sidecar, new File(partialPath + suffix));
+					}
+
+					// the tree is copied last, its existence shows that the partial is complete
+					copyToCache(new Path(folder, partial.getName()), partial);
+					LOG.info("copied partial " + partial.getName() + " from " + folder);
+					copied = true;
+				}
+
+				// the tree itself is not touched, its modification time tells the TreeCache whether it was replaced
+				File used = new File(partialPath + USED_SUFFIX);
+				if (!used.createNewFile())
+					used.setLastModified(System.currentTimeMillis());
+
+				if (copied)
+					evict();
+			} finally {
+				if (lock != null && lock.isValid())
+					lock.release();
+				raf.close();
+			}
+		}
+	}
+
+	/** copies into a temp file first, so that other JVMs never see an incomplete file */
+	private void copyToCache(Path source, File target) throws IOException {
+		File tmp = new File(target.getParentFile(), "." + target.getName() + "." + System.nanoTime() + ".tmp");
+		IOUtils.copyBytes(fs.open(source), new FileOutputStream(tmp), 64 * 1024, true);
+
+		if (!tmp.renameTo(target) && !target.exists())
+			throw new IOException("could not rename " + tmp + " to " + target);
+		tmp.delete();
+	}
+
+	/**
+	 * deletes the partials used least recently, until the cache is not larger than its maximum size. Partials used
+	 * within the EVICTION_GRACE_TIME are kept, even if the cache stays larger. Requires the cache lock.
+	 */
+	private void evict() {
+		List<File> files = Lists.newArrayList();
+		listFiles(cacheRoot, files);
+
+		long size = 0;
+		final Map<File, Long> lastUsed = Maps.newHashMap();
+		long now = System.currentTimeMillis();
+		for (File file : files) {
+			size += file.length();
+			if (!isTree(file))
+				continue;
+
+			long used = lastUsed(file);
+			if (now - used > EVICTION_GRACE_TIME)
+				lastUsed.put(file, used);
+		}
+
+		if (size <= cacheSize)
+			return;
+
+		List<File> partials = Lists.newArrayList(lastUsed.keySet());
+		Collections.sort(partials, new Comparator<File>() {
+			@Override
+			public int compare(File o1, File o2) {
+				long m1 = lastUsed.get(o1);
+				long m2 = lastUsed.get(o2);
+				return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+			}
+		});
+
+		for (File partial : partials) {
+			if (size <= cacheSize)
+				break;
+
+			new File(partial.getPath() + USED_SUFFIX).delete();
+			for (String suffix : SIDECAR_SUFFIXES) {
+				File sidecar = new File(partial.getPath() + suffix);
+				long length = sidecar.length();
+				if (sidecar.delete())
+					size -= length;
+			}
+
+			long length = partial.length();
+			if (partial.delete()) {
+				size -= length;
+				// trees loaded from the file before can still read it, only new loads copy it again
+				if (LOG.isDebugEnabled())
+					LOG.debug("evicted partial " + partial + " from the cache");
+			}
+		}
+	}
+
+	/** @return the time the partial was localized last, the time it was copied if it was never marked */
+	private static long lastUsed(File partial) {
+		File used = new File(partial.getPath() + USED_SUFFIX);
+		return used.exists() ? used.lastModified() : partial.lastModified();
+	}
+
+	private static boolean isTree(File file) {
+		if (file.getName().startsWith(".") || file.getName().endsWith(USED_SUFFIX))
+			return false;
+
+		for (String suffix : SIDECAR_SUFFIXES) {
+			if (file.getName().endsWith(suffix))
+				return false;
+		}
+
+		return true;
+	}
+
+	private static void listFiles(File folder, List<File> result) {
+		File[] files = folder.listFiles();
+		if (files == null)
+			return;
+
+		for (File file : files) {
+			if (file.isDirectory())
+				listFiles(file, result);
+			else
+				result.add(file);
+		}
+	}
+}
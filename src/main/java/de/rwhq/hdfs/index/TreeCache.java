@@ -0,0 +1,176 @@
+package de.rwhq.hdfs.index;
+
+import com.google.common.annotations.VisibleForTesting;
+import de.rwhq.btree.BTree;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Process-wide cache of loaded partial trees. With JVM reuse, the tasks of a job query the same partials over and over
+ * again, so loading a tree is only done the first time.
+ * <p/>
+ * Trees are keyed by the path of the partial and its modification time, a partial rewritten under the same path is
+ * loaded again. Every tree handed out by acquire() has to be given back with release(). Only trees that are not in
+ * use are closed when the cache is over capacity, so it can grow beyond the capacity while all trees are in use.
+ * <p/>
+ * When a partial is removed from the properties, invalidate() drops its tree. It is closed once it is not in use
+ * anymore.
+ */
+class TreeCache {
+	private static Log LOG = LogFactory.getLog(TreeCache.class);
+
+	static final int DEFAULT_CAPACITY = 32;
+
+	static final TreeCache INSTANCE = new TreeCache(DEFAULT_CAPACITY);
+
+	/** loads the tree of a partial on a cache miss */
+	interface Loader<K, V> {
+		BTree<K, V> load(String path) throws IOException;
+	}
+
+	private static class Entry {
+		private final String      path;
+		private final long        lastModified;
+		private final BTree<?, ?> tree;
+		private       int         references;
+		/** removed from the cache, closed on the last release */
+		private       boolean     invalid;
+
+		private Entry(String path, long lastModified, BTree<?, ?> tree) {
+			this.path = path;
+			this.lastModified = lastModified;
+			this.tree = tree;
+		}
+	}
+
+	/** entries by path, least recently used first */
+	private final Map<String, Entry>      entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	/** entries of the trees handed out, including invalidated ones */
+	private final Map<BTree<?, ?>, Entry> inUse   = new IdentityHashMap<BTree<?, ?>, Entry>();
+	private       int                     capacity;
+
+	@VisibleForTesting
+	TreeCache(int capacity) {
+		setCapacity(capacity);
+	}
+
+	/**
+	 * @param capacity
+	 * 		number of trees kept loaded when they are not in use, 0 disables caching
+	 */
+	synchronized void setCapacity(int capacity) {
+		checkArgument(capacity >= 0, "capacity must be >= 0");
+		this.capacity = capacity;
+		evict();
+	}
+
+	/**
+	 * @return the tree of the partial, loaded by the loader if it is not cached. Must be released after use.
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	<K, V> BTree<K, V> acquire(String path, Loader<K, V> loader) throws IOException {
+		long lastModified = new File(path).lastModified();
+
+		synchronized (this) {
+			Entry entry = entries.get(path);
+			if (entry != null && entry.lastModified == lastModified)
+				return (BTree<K, V>) reference(entry).tree;
+
+			if (entry != null)
+				invalidate(path);
+		}
+
+		// load outside of the lock, other threads can use the cache meanwhile
+		BTree<K, V> tree = loader.load(path);
+
+		synchronized (this) {
+			Entry entry = entries.get(path);
+
+			// loaded by another thread in the meantime
+			if (entry != null && entry.lastModified == lastModified) {
+				close(tree, path);
+				return (BTree<K, V>) reference(entry).tree;
+			}
+
+			if (entry != null)
+				invalidate(path);
+
+			entry = new Entry(path, lastModified, tree);
+			entries.put(path, entry);
+			reference(entry);
+			evict();
+
+			return tree;
+		}
+	}
+
+	/** gives back a tree handed out by acquire() */
+	synchronized void release(BTree<?, ?> tree) {
+		Entry entry = inUse.get(tree);
+		checkState(entry != null, "tree was not acquired from the cache");
+
+		if (--entry.references > 0)
+			return;
+
+		inUse.remove(tree);
+		if (entry.invalid)
+			close(entry.tree, entry.path);
+		else
+			evict();
+	}
+
+	/** drops the tree of the partial. It is closed as soon as it is not used anymore. */
+	synchronized void invalidate(String path) {
+		Entry entry = entries.remove(path);
+		if (entry == null)
+			return;
+
+		if (entry.references > 0)
+			entry.invalid = true;
+		else
+			close(entry.tree, entry.path);
+	}
+
+	@VisibleForTesting
+	synchronized int size() {
+		return entries.size();
+	}
+
+	private Entry reference(Entry entry) {
+		if (entry.references++ == 0)
+			inUse.put(entry.tree, entry);
+		return entry;
+	}
+
+	/** closes least recently used trees not in use until the cache fits its capacity */
+	private void evict() {
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (entries.size() > capacity && iterator.hasNext()) {
+			Entry entry = iterator.next();
+			if (entry.references > 0)
+				continue;
+
+			iterator.remove();
+			close(entry.tree, entry.path);
+		}
+	}
+
+	private static void close(BTree<?, ?> tree, String path) {
+		try {
+			tree.close();
+		} catch (IOException e) {
+			LOG.warn("could not close tree " + path, e);
+		}
+	}
+}
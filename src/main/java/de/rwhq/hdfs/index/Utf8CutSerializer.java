@@ -0,0 +1,77 @@
+package de.rwhq.hdfs.index;
+
+import com.google.common.base.Charsets;
+import de.rwhq.serializer.FixLengthSerializer;
+
+import java.nio.ByteBuffer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Serializes lines of a primary index into a fixed number of bytes: two bytes for the length, followed by the UTF-8
+ * bytes of the line. Lines that are too long are cut, at a character boundary.
+ * <p/>
+ * Lines read from the hdfs file are already UTF-8 encoded, so they are copied without decoding and encoding them.
+ */
+public class Utf8CutSerializer implements FixLengthSerializer<String, byte[]>, ByteValueSerializer {
+	private final int    size;
+	/** zero bytes for padding, never written */
+	private final byte[] padding;
+
+	private Utf8CutSerializer(int size) {
+		checkArgument(size > 2 && size <= 0xFFFF + 2, "size must be between 3 and %s", 0xFFFF + 2);
+		this.size = size;
+		this.padding = new byte[size];
+	}
+
+	/**
+	 * @param size
+	 * 		serialized length in bytes
+	 * @return serializer
+	 */
+	public static Utf8CutSerializer get(int size) {
+		return new Utf8CutSerializer(size);
+	}
+
+	@Override
+	public byte[] serialize(String line) {
+		byte[] bytes = line.getBytes(Charsets.UTF_8);
+		return serialize(bytes, 0, bytes.length);
+	}
+
+	@Override
+	public byte[] serialize(byte[] bytes, int offset, int length) {
+		byte[] result = new byte[size];
+		serialize(bytes, offset, length, ByteBuffer.wrap(result));
+
+		return result;
+	}
+
+	@Override
+	public void serialize(byte[] bytes, int offset, int length, ByteBuffer buffer) {
+		int cut = Math.min(length, size - 2);
+
+		// do not cut within a multi-byte character, continuation bytes start with 10
+		if (cut < length) {
+			while (cut > 0 && (bytes[offset + cut] & 0xC0) == 0x80)
+				cut--;
+		}
+
+		buffer.put((byte) (cut >>> 8));
+		buffer.put((byte) cut);
+		buffer.put(bytes, offset, cut);
+		// the buffer may hold old bytes
+		buffer.put(padding, 0, size - 2 - cut);
+	}
+
+	@Override
+	public String deserialize(byte[] bytes) {
+		int length = ((bytes[0] & 0xFF) << 8) | (bytes[1] & 0xFF);
+		return new String(bytes, 2, length, Charsets.UTF_8);
+	}
+
+	@Override
+	public int getSerializedLength() {
+		return size;
+	}
+}
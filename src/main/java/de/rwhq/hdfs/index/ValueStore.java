@@ -0,0 +1,51 @@
+package de.rwhq.hdfs.index;
+
+import java.io.IOException;
+
+/**
+ * Stores the values of a partial in a file next to its tree, so that the tree only holds a reference of every value.
+ * The values are appended in key order while the partial is written, so reading a range of the tree reads the value
+ * file sequentially.
+ */
+interface ValueStore {
+	/** the value file of a partial is named like the partial, with this suffix */
+	String SUFFIX = ".values";
+
+	/** @return writer for the values of the partial at the given path */
+	Writer create(String partialPath) throws IOException;
+
+	/** @return reader for the values of the partial at the given path */
+	Reader open(String partialPath) throws IOException;
+
+	interface Writer {
+		/**
+		 * appends the given bytes of the array as a value
+		 *
+		 * @return the reference of the value, stored in the tree
+		 */
+		long append(byte[] value, int offset, int length) throws IOException;
+
+		void close() throws IOException;
+	}
+
+	interface Reader {
+		/**
+		 * @param reference
+		 * 		returned by Writer.append()
+		 * @return length of the value in bytes
+		 */
+		int length(long reference) throws IOException;
+
+		/**
+		 * reads a value
+		 *
+		 * @param reference
+		 * 		returned by Writer.append()
+		 * @param value
+		 * 		buffer for the value, at least as long as the value
+		 */
+		void read(long reference, byte[] value) throws IOException;
+
+		void close() throws IOException;
+	}
+}
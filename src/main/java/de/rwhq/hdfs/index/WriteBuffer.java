@@ -0,0 +1,286 @@
+package de.rwhq.hdfs.index;
+
+import com.google.common.collect.AbstractIterator;
+import de.rwhq.serializer.FixLengthSerializer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Write cache for index partials.
+ * <p/>
+ * Keys and values are appended in their serialized form to a direct (off-heap) ByteBuffer arena, so a full cache
+ * does not consist of thousands of entry, key and value objects living on the heap until the partial is saved. The
+ * key is serialized into the arena by a BufferSerializer and the index writes the value into it with append() and
+ * commit(), so adding a line does not allocate arrays.
+ * <p/>
+ * Keys have a fixed length, values can have any length. An entry is the key, the length of the value as int and the
+ * value. An int table holds the offset of every entry in the arena. For bulk loading, only this table is sorted, the
+ * arena is never moved. The sorted entries are read from the arena while they are bulk loaded.
+ * <p/>
+ * The buffer is not thread-safe. It is filled by the reader and, once full, handed over to the flusher.
+ */
+class WriteBuffer<K> {
+	/** bytes in front of every value, holding its length */
+	static final         int LENGTH_BYTES    = 4;
+	private static final int INITIAL_ENTRIES = 1024;
+
+	private final FixLengthSerializer<K, byte[]> keySerializer;
+	private final BufferSerializer<K>            keyWriter;
+	private final int                            keyLength;
+
+	private ByteBuffer arena;
+	private int[]      offsets;
+	private int        size;
+	/** end of the last entry in the arena */
+	private int        end;
+
+	/**
+	 * @param keySerializer
+	 * @param sizeInBytes
+	 * 		size of the off-heap arena, determines the number of entries the buffer can hold
+	 */
+	WriteBuffer(FixLengthSerializer<K, byte[]> keySerializer, int sizeInBytes) {
+		this.keySerializer = keySerializer;
+		this.keyWriter = BufferSerializers.of(keySerializer);
+		this.keyLength = keySerializer.getSerializedLength();
+
+		checkArgument(sizeInBytes >= keyLength + LENGTH_BYTES, "buffer of %s bytes cannot hold an entry", sizeInBytes);
+
+		this.arena = ByteBuffer.allocateDirect(sizeInBytes);
+		this.offsets = new int[Math.min(INITIAL_ENTRIES, sizeInBytes / (keyLength + LENGTH_BYTES))];
+	}
+
+	/**
+	 * @param valueLength
+	 * 		length of the serialized value
+	 * @return true, if an entry with a value of the given length can be added. An empty buffer takes every entry, its
+	 *         arena is enlarged for entries larger than the arena.
+	 */
+	boolean fits(int valueLength) {
+		return isEmpty() || end + keyLength + LENGTH_BYTES + valueLength <= arena.capacity();
+	}
+
+	/**
+	 * starts a new entry by serializing the key into the arena. The value is written into the returned arena at its
+	 * position, then the entry is added by commit(). An entry that is not committed is overwritten by the next one.
+	 *
+	 * @param key
+	 * @param maxValueLength
+	 * 		upper bound of the length of the value
+	 * @return the arena, positioned at the value
+	 */
+	ByteBuffer append(K key, int maxValueLength) {
+		checkState(fits(maxValueLength), "write buffer is full");
+
+		int entryLength = keyLength + LENGTH_BYTES + maxValueLength;
+		if (entryLength > arena.capacity())
+			arena = ByteBuffer.allocateDirect(entryLength);
+
+		arena.position(end);
+		keyWriter.serialize(key, arena);
+		arena.position(end + keyLength + LENGTH_BYTES);
+
+		return arena;
+	}
+
+	/** adds the entry started by append(), the value ends at the position of the arena */
+	void commit() {
+		arena.putInt(end + keyLength, arena.position() - end - keyLength - LENGTH_BYTES);
+
+		if (size == offsets.length)
+			offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+
+		offsets[size++] = end;
+		end = arena.position();
+	}
+
+	/**
+	 * appends the serialized key and value to the arena
+	 *
+	 * @param key
+	 * @param value
+	 * 		serialized value
+	 */
+	void add(K key, byte[] value) {
+		append(key, value.length).put(value);
+		commit();
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	/** resets the buffer for reuse. The arena is kept. */
+	void clear() {
+		size = 0;
+		end = 0;
+	}
+
+	/**
+	 * sorts the offset table by the keys of the entries. The sort is stable, so entries with equal keys stay in
+	 * insertion (and thus file position) order.
+	 * <p/>
+	 * If the order of the serialized keys is known, see BufferSerializers.comparator(), the keys are compared where
+	 * they are in the arena. Otherwise, the byte order of serialized keys does not have to match the order of the
+	 * comparator, and the keys are deserialized once into a scratch array.
+	 *
+	 * @param comparator
+	 */
+	@SuppressWarnings("unchecked")
+	void sort(final Comparator<K> comparator) {
+		final BufferComparator keyOrder = BufferSerializers.comparator(keySerializer, comparator);
+		if (keyOrder != null) {
+			mergeSort(offsets, new int[size], 0, size, new IntOrder() {
+				@Override
+				public int compare(int offset1, int offset2) {
+					return keyOrder.compare(arena, offset1, offset2);
+				}
+			});
+			return;
+		}
+
+		final K[] keys = (K[]) new Object[size];
+		for (int i = 0; i < size; i++)
+			keys[i] = readKey(offsets[i]);
+
+		int[] permutation = new int[size];
+		for (int i = 0; i < size; i++)
+			permutation[i] = i;
+
+		mergeSort(permutation, new int[size], 0, size, new IntOrder() {
+			@Override
+			public int compare(int i1, int i2) {
+				return comparator.compare(keys[i1], keys[i2]);
+			}
+		});
+
+		int[] sorted = new int[size];
+		for (int i = 0; i < size; i++)
+			sorted[i] = offsets[permutation[i]];
+		System.arraycopy(sorted, 0, offsets, 0, size);
+	}
+
+	/**
+	 * @return the entries in the order of the offset table, with serialized values. They are read from the arena one
+	 *         by one, while they are iterated.
+	 */
+	Iterator<AbstractMap.SimpleEntry<K, byte[]>> iterator() {
+		return new AbstractIterator<AbstractMap.SimpleEntry<K, byte[]>>() {
+			private int next;
+
+			@Override
+			protected AbstractMap.SimpleEntry<K, byte[]> computeNext() {
+				if (next == size)
+					return endOfData();
+
+				AbstractMap.SimpleEntry<K, byte[]> result =
+						new AbstractMap.SimpleEntry<K, byte[]>(getKey(next), getValue(next));
+				next++;
+
+				return result;
+			}
+		};
+	}
+
+	/**
+	 * writes the serialized entries in the order of the offset table
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	void writeTo(OutputStream out) throws IOException {
+		byte[] entry = new byte[0];
+		ByteBuffer view = arena.duplicate();
+
+		for (int i = 0; i < size; i++) {
+			int entryLength = keyLength + LENGTH_BYTES + view.getInt(offsets[i] + keyLength);
+			if (entry.length < entryLength)
+				entry = new byte[Math.max(entryLength, 2 * entry.length)];
+
+			view.position(offsets[i]);
+			view.get(entry, 0, entryLength);
+			out.write(entry, 0, entryLength);
+		}
+	}
+
+	K getKey(int i) {
+		return readKey(offsets[i]);
+	}
+
+	byte[] getValue(int i) {
+		return readValue(offsets[i]);
+	}
+
+	/** @return length of the i-th value in bytes */
+	int getValueLength(int i) {
+		return arena.getInt(offsets[i] + keyLength);
+	}
+
+	/**
+	 * copies the i-th value into the given array
+	 *
+	 * @param value
+	 * 		at least as long as the value, see getValueLength()
+	 */
+	void getValue(int i, byte[] value) {
+		ByteBuffer view = arena.duplicate();
+		view.position(offsets[i] + keyLength + LENGTH_BYTES);
+		view.get(value, 0, getValueLength(i));
+	}
+
+	private K readKey(int offset) {
+		byte[] bytes = new byte[keyLength];
+		ByteBuffer view = arena.duplicate();
+		view.position(offset);
+		view.get(bytes);
+		return keySerializer.deserialize(bytes);
+	}
+
+	private byte[] readValue(int offset) {
+		ByteBuffer view = arena.duplicate();
+		view.position(offset + keyLength);
+		byte[] bytes = new byte[view.getInt()];
+		view.get(bytes);
+		return bytes;
+	}
+
+	/** order of the ints sorted by mergeSort() */
+	private static interface IntOrder {
+		int compare(int i1, int i2);
+	}
+
+	private static void mergeSort(int[] a, int[] aux, int from, int to, IntOrder order) {
+		if (to - from < 2)
+			return;
+
+		int mid = (from + to) >>> 1;
+		mergeSort(a, aux, from, mid, order);
+		mergeSort(a, aux, mid, to, order);
+
+		// already in order
+		if (order.compare(a[mid - 1], a[mid]) <= 0)
+			return;
+
+		System.arraycopy(a, from, aux, from, to - from);
+		int left = from, right = mid;
+		for (int i = from; i < to; i++) {
+			if (right >= to || (left < mid && order.compare(aux[left], aux[right]) <= 0))
+				a[i] = aux[left++];
+			else
+				a[i] = aux[right++];
+		}
+	}
+}
@@ -0,0 +1,243 @@
+package de.rwhq.hdfs.index.extractor;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+
+/**
+ * Base class for extractors of a column of a delimiter separated line.
+ * <p/>
+ * If the delimiter is a single ASCII character, the line is scanned up to the column and the column is parsed in
+ * place, no matter if the line is given as String or as UTF-8 bytes. No array of all columns and no String of the
+ * column is created. Delimiters that are real regular expressions fall back to String.split().
+ * <p/>
+ * The id of the extractor is the column.
+ */
+public abstract class AbstractCSVExtractor<T> implements ByteKeyExtractor<T> {
+
+	/**
+	 * the last line split by the current thread. When several columns of the same line are extracted, as done by a
+	 * composite index, the line is only split once. Only used for regular expression delimiters.
+	 */
+	private static final ThreadLocal<SplitLine> lastSplit = new ThreadLocal<SplitLine>() {
+		@Override
+		protected SplitLine initialValue() {
+			return new SplitLine();
+		}
+	};
+
+	/** reusable CharSequence view on the bytes of a line */
+	private static final ThreadLocal<AsciiBytes> asciiBytes = new ThreadLocal<AsciiBytes>() {
+		@Override
+		protected AsciiBytes initialValue() {
+			return new AsciiBytes();
+		}
+	};
+
+	protected final String delimiter;
+	protected final int    column;
+	/** the delimiter as single character, or -1 if the delimiter is a real regular expression */
+	private final   int    delimiterChar;
+
+	protected AbstractCSVExtractor(int column, String delimiter) {
+		this.column = column;
+		this.delimiter = delimiter;
+		this.delimiterChar = toDelimiterChar(delimiter);
+	}
+
+	/**
+	 * parses the column
+	 *
+	 * @param line
+	 * @param from
+	 * 		start of the column in the line
+	 * @param to
+	 * 		end of the column in the line, exclusive
+	 * @return the key
+	 * @throws ExtractionException
+	 */
+	protected abstract T parse(CharSequence line, int from, int to) throws ExtractionException;
+
+	/**
+	 * parses the column of an UTF-8 encoded line. By default, the bytes are parsed as ASCII characters, which is
+	 * enough for numbers and dates.
+	 *
+	 * @param bytes
+	 * @param from
+	 * 		start of the column in the array
+	 * @param to
+	 * 		end of the column in the array, exclusive
+	 * @return the key
+	 * @throws ExtractionException
+	 */
+	protected T parse(byte[] bytes, int from, int to) throws ExtractionException {
+		AsciiBytes chars = asciiBytes.get();
+		chars.bytes = bytes;
+		try {
+			return parse(chars, from, to);
+		} finally {
+			chars.bytes = null;
+		}
+	}
+
+	@Override
+	public T extract(String line) throws ExtractionException {
+		if (delimiterChar < 0) {
+			String[] tokens = split(line);
+			if (column >= tokens.length)
+				throw new ExtractionException("line has less than " + (column + 1) + " columns");
+
+			return parse(tokens[column], 0, tokens[column].length());
+		}
+
+		int from = 0;
+		for (int i = 0; i < column; i++) {
+			from = line.indexOf(delimiterChar, from);
+			if (from < 0)
+				throw new ExtractionException("line has less than " + (column + 1) + " columns");
+			from++;
+		}
+
+		int to = line.indexOf(delimiterChar, from);
+		return parse(line, from, to < 0 ? line.length() : to);
+	}
+
+	@Override
+	public T extract(byte[] bytes, int offset, int length) throws ExtractionException {
+		if (delimiterChar < 0)
+			return extract(new String(bytes, offset, length, Charsets.UTF_8));
+
+		int end = offset + length;
+		int from = offset;
+		for (int i = 0; i < column; i++) {
+			while (from < end && bytes[from] != delimiterChar)
+				from++;
+
+			if (from == end)
+				throw new ExtractionException("line has less than " + (column + 1) + " columns");
+			from++;
+		}
+
+		int to = from;
+		while (to < end && bytes[to] != delimiterChar)
+			to++;
+
+		return parse(bytes, from, to);
+	}
+
+	/** @return whether keys are extracted from the bytes of a line, false if the line is decoded to be split */
+	public boolean scansBytes() {
+		return delimiterChar >= 0;
+	}
+
+	@Override
+	public String getId() {
+		return String.valueOf(column);
+	}
+
+	public int getColumn() {
+		return column;
+	}
+
+	private String[] split(String line) {
+		SplitLine last = lastSplit.get();
+
+		// the same line instance is passed to all extractors of an index
+		if (last.line != line || !delimiter.equals(last.delimiter)) {
+			last.tokens = line.split(delimiter);
+			last.line = line;
+			last.delimiter = delimiter;
+		}
+
+		return last.tokens;
+	}
+
+	/** @return the delimiter if it matches exactly one ASCII character, -1 otherwise */
+	static int toDelimiterChar(String delimiter) {
+		char c;
+		if (delimiter.length() == 1 && ".$|()[{^?*+\\".indexOf(delimiter.charAt(0)) < 0)
+			c = delimiter.charAt(0);
+		else if (delimiter.length() == 2 && delimiter.charAt(0) == '\\' &&
+				!Character.isLetterOrDigit(delimiter.charAt(1)))
+			c = delimiter.charAt(1);
+		else
+			return -1;
+
+		return c < 128 ? c : -1;
+	}
+
+	/**
+	 * same as Long.parseLong(), without creating a String of the column
+	 *
+	 * @return the number
+	 * @throws ExtractionException
+	 * 		if the column is not a number or does not fit into a long
+	 */
+	protected static long parseLong(CharSequence chars, int from, int to) throws ExtractionException {
+		if (from >= to)
+			throw new ExtractionException("empty column");
+
+		int i = from;
+		boolean negative = false;
+		char first = chars.charAt(i);
+		if (first == '-' || first == '+') {
+			negative = first == '-';
+			if (++i == to)
+				throw new ExtractionException("column is only a sign");
+		}
+
+		// accumulate negatively, the range of negative longs is larger
+		long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+		long multmin = limit / 10;
+		long result = 0;
+		for (; i < to; i++) {
+			int digit = chars.charAt(i) - '0';
+			if (digit < 0 || digit > 9)
+				throw new ExtractionException("not a number: " + chars.subSequence(from, to));
+			if (result < multmin || result * 10 < limit + digit)
+				throw new ExtractionException("number too large: " + chars.subSequence(from, to));
+
+			result = result * 10 - digit;
+		}
+
+		return negative ? result : -result;
+	}
+
+	@Override
+	public String toString() {
+		return Objects.toStringHelper(this)
+				.add("delimiter", delimiter)
+				.add("column", column)
+				.toString();
+	}
+
+	private static class SplitLine {
+		private String   line;
+		private String   delimiter;
+		private String[] tokens;
+	}
+
+	/** the bytes of an UTF-8 encoded line as characters. Only correct for ASCII characters. */
+	private static class AsciiBytes implements CharSequence {
+		private byte[] bytes;
+
+		@Override
+		public int length() {
+			return bytes.length;
+		}
+
+		@Override
+		public char charAt(int index) {
+			return (char) (bytes[index] & 0xFF);
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return new String(bytes, start, end - start, Charsets.UTF_8);
+		}
+
+		@Override
+		public String toString() {
+			return new String(bytes, Charsets.UTF_8);
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package de.rwhq.hdfs.index.extractor;
+
+/**
+ * A KeyExtractor that can extract the key directly from the UTF-8 bytes of a line, as they are read from the hdfs
+ * file. This avoids decoding every line into a String.
+ */
+public interface ByteKeyExtractor<T> extends KeyExtractor<T> {
+
+	/**
+	 * @param bytes
+	 * 		UTF-8 encoded line, without line terminator
+	 * @param offset
+	 * 		start of the line in bytes
+	 * @param length
+	 * 		length of the line in bytes
+	 * @return the key
+	 * @throws ExtractionException
+	 */
+	T extract(byte[] bytes, int offset, int length) throws ExtractionException;
+}
@@ -0,0 +1,131 @@
+package de.rwhq.hdfs.index.extractor;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Objects;
+import com.google.common.collect.Sets;
+
+import java.util.SortedSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Keeps only some columns of a delimiter separated line. The other columns are emptied, but their delimiters are kept,
+ * so the reduced line has the same column numbers as the original one and can be handled by the same extractors and
+ * mappers. Columns after the last kept column are dropped.
+ * <p/>
+ * Example: with the columns 0 and 2, "1,Peter,Berlin,42" is reduced to "1,,Berlin".
+ * <p/>
+ * The id of the projection is the list of kept columns.
+ */
+public class CSVProjection implements Projection {
+	private final String    delimiter;
+	/** the delimiter as single character, or -1 if the delimiter is a real regular expression */
+	private final int       delimiterChar;
+	private final Pattern   pattern;
+	/** whether a column is kept, by column */
+	private final boolean[] keep;
+	private final String    id;
+
+	public CSVProjection(String delimiter, int... columns) {
+		checkArgument(columns.length > 0, "at least one column must be kept");
+
+		SortedSet<Integer> sorted = Sets.newTreeSet();
+		for (int column : columns) {
+			checkArgument(column >= 0, "columns must be >= 0");
+			sorted.add(column);
+		}
+
+		this.delimiter = delimiter;
+		this.delimiterChar = AbstractCSVExtractor.toDelimiterChar(delimiter);
+		this.pattern = delimiterChar < 0 ? Pattern.compile(delimiter) : null;
+		this.keep = new boolean[sorted.last() + 1];
+		for (int column : sorted)
+			keep[column] = true;
+		this.id = Joiner.on('.').join(sorted);
+	}
+
+	/** @return whether the column is kept */
+	public boolean contains(int column) {
+		return column < keep.length && keep[column];
+	}
+
+	@Override
+	public String project(String line) {
+		StringBuilder result = new StringBuilder(line.length());
+		Matcher matcher = pattern == null ? null : pattern.matcher(line);
+
+		int from = 0;
+		for (int column = 0; column < keep.length; column++) {
+			int to;
+			int next;
+			if (matcher == null) {
+				to = line.indexOf(delimiterChar, from);
+				next = to + 1;
+			} else if (matcher.find()) {
+				to = matcher.start();
+				next = matcher.end();
+			} else {
+				to = -1;
+				next = 0;
+			}
+
+			if (keep[column])
+				result.append(line, from, to < 0 ? line.length() : to);
+
+			if (to < 0 || column == keep.length - 1)
+				break;
+
+			result.append(line, to, next);
+			from = next;
+		}
+
+		return result.toString();
+	}
+
+	@Override
+	public int project(byte[] bytes, int offset, int length, byte[] out) {
+		if (delimiterChar < 0) {
+			byte[] projected = project(new String(bytes, offset, length, Charsets.UTF_8)).getBytes(Charsets.UTF_8);
+			System.arraycopy(projected, 0, out, 0, projected.length);
+			return projected.length;
+		}
+
+		int end = offset + length;
+		int written = 0;
+		int pos = offset;
+		for (int column = 0; column < keep.length; column++) {
+			int to = pos;
+			while (to < end && bytes[to] != delimiterChar)
+				to++;
+
+			if (keep[column]) {
+				System.arraycopy(bytes, pos, out, written, to - pos);
+				written += to - pos;
+			}
+
+			if (to == end || column == keep.length - 1)
+				break;
+
+			out[written++] = (byte) delimiterChar;
+			pos = to + 1;
+		}
+
+		return written;
+	}
+
+	@Override
+	public String getId() {
+		return id;
+	}
+
+	@Override
+	public String toString() {
+		return Objects.toStringHelper(this)
+				.add("delimiter", delimiter)
+				.add("columns", id)
+				.toString();
+	}
+}
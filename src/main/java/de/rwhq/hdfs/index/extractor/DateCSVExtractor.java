@@ -0,0 +1,77 @@
+package de.rwhq.hdfs.index.extractor;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Extracts a date of a fixed format, e.g. yyyy-MM-dd or yyyy-MM-dd HH:mm:ss, as milliseconds since the epoch (UTC).
+ * <p/>
+ * Supported pattern letters are y (year), M (month), d (day), H (hour), m (minute) and s (second). Every letter is
+ * one digit, all other characters must appear as they are. Unlike SimpleDateFormat, no Calendar or String is created
+ * for a line.
+ */
+public class DateCSVExtractor extends AbstractCSVExtractor<Long> {
+	private static final String FIELDS = "yMdHms";
+
+	private final String pattern;
+
+	public DateCSVExtractor(int column, String delimiter, String pattern) {
+		super(column, delimiter);
+
+		checkArgument(pattern.indexOf('y') >= 0 && pattern.indexOf('M') >= 0 && pattern.indexOf('d') >= 0,
+				"pattern must contain year, month and day: %s", pattern);
+		this.pattern = pattern;
+	}
+
+	@Override
+	protected Long parse(CharSequence line, int from, int to) throws ExtractionException {
+		if (to - from != pattern.length())
+			throw new ExtractionException("column does not match pattern " + pattern + ": " + line.subSequence(from, to));
+
+		int year = 0, month = 0, day = 0, hour = 0, minute = 0, second = 0;
+		for (int i = 0; i < pattern.length(); i++) {
+			char p = pattern.charAt(i);
+			char c = line.charAt(from + i);
+
+			if (FIELDS.indexOf(p) < 0) {
+				if (c != p)
+					throw new ExtractionException(
+							"column does not match pattern " + pattern + ": " + line.subSequence(from, to));
+				continue;
+			}
+
+			int digit = c - '0';
+			if (digit < 0 || digit > 9)
+				throw new ExtractionException("not a date: " + line.subSequence(from, to));
+
+			switch (p) {
+				case 'y': year = year * 10 + digit; break;
+				case 'M': month = month * 10 + digit; break;
+				case 'd': day = day * 10 + digit; break;
+				case 'H': hour = hour * 10 + digit; break;
+				case 'm': minute = minute * 10 + digit; break;
+				case 's': second = second * 10 + digit; break;
+			}
+		}
+
+		if (month < 1 || month > 12 || day < 1 || day > 31 || hour > 23 || minute > 59 || second > 59)
+			throw new ExtractionException("not a date: " + line.subSequence(from, to));
+
+		long seconds = daysFromCivil(year, month, day) * 86400L + hour * 3600 + minute * 60 + second;
+		return seconds * 1000;
+	}
+
+	/** @return days since 1970-01-01 of the given date in the proleptic gregorian calendar */
+	private static long daysFromCivil(int year, int month, int day) {
+		year -= month <= 2 ? 1 : 0;
+		long era = (year >= 0 ? year : year - 399) / 400;
+		long yearOfEra = year - era * 400;
+		long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString() + "[" + pattern + "]";
+	}
+}
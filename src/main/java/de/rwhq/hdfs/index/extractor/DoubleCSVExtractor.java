@@ -0,0 +1,81 @@
+package de.rwhq.hdfs.index.extractor;
+
+/**
+ * Extracts a decimal number. Plain decimals with up to 18 significant digits are parsed in place. Anything else,
+ * e.g. NaN or a very long fraction, is handed to Double.parseDouble().
+ */
+public class DoubleCSVExtractor extends AbstractCSVExtractor<Double> {
+
+	/** powers of ten that are exact doubles */
+	private static final double[] POWERS_OF_TEN = {
+			1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+			1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+	/** mantissas up to this value are exact doubles */
+	private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+	public DoubleCSVExtractor(int column, String delimiter) {
+		super(column, delimiter);
+	}
+
+	@Override
+	protected Double parse(CharSequence line, int from, int to) throws ExtractionException {
+		if (from >= to)
+			throw new ExtractionException("empty column");
+
+		int i = from;
+		boolean negative = false;
+		if (line.charAt(i) == '-' || line.charAt(i) == '+') {
+			negative = line.charAt(i) == '-';
+			i++;
+		}
+
+		long mantissa = 0;
+		int exponent = 0;
+		int digits = 0;
+		boolean fraction = false;
+		for (; i < to; i++) {
+			char c = line.charAt(i);
+
+			if (c == '.' && !fraction) {
+				fraction = true;
+				continue;
+			}
+
+			int digit = c - '0';
+			if (digit < 0 || digit > 9)
+				break;
+
+			// more than 18 digits could overflow the mantissa
+			if (++digits > 18)
+				return parseSlow(line, from, to);
+
+			mantissa = mantissa * 10 + digit;
+			if (fraction)
+				exponent--;
+		}
+
+		if (i < to) {
+			char c = line.charAt(i);
+			if ((c != 'e' && c != 'E') || digits == 0 || to - i > 5)
+				return parseSlow(line, from, to);
+
+			exponent += (int) parseLong(line, i + 1, to);
+		}
+
+		if (digits == 0 || mantissa > MAX_EXACT_MANTISSA || Math.abs(exponent) >= POWERS_OF_TEN.length)
+			return parseSlow(line, from, to);
+
+		// both mantissa and power of ten are exact, so the result is correctly rounded
+		double result = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+		return negative ? -result : result;
+	}
+
+	private static Double parseSlow(CharSequence line, int from, int to) throws ExtractionException {
+		try {
+			return Double.parseDouble(line.subSequence(from, to).toString());
+		} catch (NumberFormatException e) {
+			throw new ExtractionException(e);
+		}
+	}
+}
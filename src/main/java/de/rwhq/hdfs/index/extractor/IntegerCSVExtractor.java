@@ -1,21 +1,15 @@
 package de.rwhq.hdfs.index.extractor;
 
-import com.google.common.base.Objects;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-public class IntegerCSVExtractor implements KeyExtractor<Integer> {
-
-	private String delimiter;
-	private int    column;
+public class IntegerCSVExtractor extends AbstractCSVExtractor<Integer> {
 
 	private static Log LOG = LogFactory.getLog(IntegerCSVExtractor.class);
 
-
 	public IntegerCSVExtractor(int column,
 	                           String delimiter) {
-		this.column = column;
-		this.delimiter = delimiter;
+		super(column, delimiter);
 
 		if (LOG.isDebugEnabled()) {
 			LOG.debug("constructed: " + this);
@@ -23,25 +17,11 @@ public class IntegerCSVExtractor implements KeyExtractor<Integer> {
 	}
 
 	@Override
-	public Integer extract(String line) throws ExtractionException {
-		try {
-			String[] splits = line.split(delimiter);
-			return Integer.parseInt(splits[column]);
-		} catch (Exception e) {
-			throw new ExtractionException(e);
-		}
-	}
-
-	@Override
-	public String getId() {
-		return String.valueOf(column);
-	}
+	protected Integer parse(CharSequence line, int from, int to) throws ExtractionException {
+		long result = parseLong(line, from, to);
+		if (result < Integer.MIN_VALUE || result > Integer.MAX_VALUE)
+			throw new ExtractionException("number too large: " + line.subSequence(from, to));
 
-	@Override
-	public String toString(){
-		return Objects.toStringHelper(this)
-				.add("delimiter", delimiter)
-				.add("column", column)
-				.toString();
+		return (int) result;
 	}
 }
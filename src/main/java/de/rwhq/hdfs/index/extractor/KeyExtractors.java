@@ -0,0 +1,40 @@
+package de.rwhq.hdfs.index.extractor;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Static helpers for KeyExtractors
+ */
+public final class KeyExtractors {
+
+	private KeyExtractors() {
+	}
+
+	/**
+	 * extracts the key from the UTF-8 bytes of a line. If the extractor is not a ByteKeyExtractor, the line is decoded
+	 * first.
+	 *
+	 * @param extractor
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 * @return the key
+	 * @throws ExtractionException
+	 */
+	@SuppressWarnings("unchecked")
+	public static <K> K extract(KeyExtractor<K> extractor, byte[] bytes, int offset, int length)
+			throws ExtractionException {
+		if (extractor instanceof ByteKeyExtractor)
+			return ((ByteKeyExtractor<K>) extractor).extract(bytes, offset, length);
+
+		return extractor.extract(new String(bytes, offset, length, Charsets.UTF_8));
+	}
+
+	/** @return whether the extractor extracts keys from the bytes of a line without decoding it into a String */
+	public static boolean scansBytes(KeyExtractor<?> extractor) {
+		if (extractor instanceof AbstractCSVExtractor)
+			return ((AbstractCSVExtractor<?>) extractor).scansBytes();
+
+		return extractor instanceof ByteKeyExtractor;
+	}
+}
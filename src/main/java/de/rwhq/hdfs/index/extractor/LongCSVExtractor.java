@@ -0,0 +1,13 @@
+package de.rwhq.hdfs.index.extractor;
+
+public class LongCSVExtractor extends AbstractCSVExtractor<Long> {
+
+	public LongCSVExtractor(int column, String delimiter) {
+		super(column, delimiter);
+	}
+
+	@Override
+	protected Long parse(CharSequence line, int from, int to) throws ExtractionException {
+		return parseLong(line, from, to);
+	}
+}
@@ -0,0 +1,26 @@
+package de.rwhq.hdfs.index.extractor;
+
+/**
+ * Reduces a line to the parts a primary index stores. The reduced line must still contain the key of the line, so
+ * that the key extractor can extract it when partials are compacted.
+ */
+public interface Projection {
+
+	/** @return the reduced line */
+	String project(String line);
+
+	/**
+	 * reduces an UTF-8 encoded line
+	 *
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 * @param out
+	 * 		buffer for the reduced line, at least length bytes long
+	 * @return number of bytes written to out
+	 */
+	int project(byte[] bytes, int offset, int length, byte[] out);
+
+	/** @return identifies the projection. Indexes with different projections store their partials separately. */
+	String getId();
+}
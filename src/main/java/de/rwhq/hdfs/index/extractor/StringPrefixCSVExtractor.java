@@ -0,0 +1,41 @@
+package de.rwhq.hdfs.index.extractor;
+
+import com.google.common.base.Charsets;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Extracts the first characters of a column as String key. Only the prefix is decoded, the rest of the line is not
+ * touched. The prefix length should match the StringCutSerializer used for the keys.
+ */
+public class StringPrefixCSVExtractor extends AbstractCSVExtractor<String> {
+	private final int prefixLength;
+
+	public StringPrefixCSVExtractor(int column, String delimiter, int prefixLength) {
+		super(column, delimiter);
+
+		checkArgument(prefixLength > 0, "prefixLength must be > 0");
+		this.prefixLength = prefixLength;
+	}
+
+	@Override
+	protected String parse(CharSequence line, int from, int to) {
+		return line.subSequence(from, Math.min(to, from + prefixLength)).toString();
+	}
+
+	/** decodes the UTF-8 bytes of the first prefixLength characters */
+	@Override
+	protected String parse(byte[] bytes, int from, int to) {
+		int end = from;
+		int chars = 0;
+		while (end < to && chars < prefixLength) {
+			int lead = bytes[end] & 0xFF;
+			end += lead < 0x80 ? 1 : lead < 0xE0 ? 2 : lead < 0xF0 ? 3 : 4;
+
+			// four byte characters are two chars in a String
+			chars += lead < 0xF0 ? 1 : 2;
+		}
+
+		return new String(bytes, from, Math.min(end, to) - from, Charsets.UTF_8);
+	}
+}
@@ -16,6 +16,7 @@ import org.mockito.MockitoAnnotations;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.SortedSet;
 
@@ -68,6 +69,43 @@ public abstract class AbstractMultiFileIndexTest {
 		afterSyncTests();
 	}
 
+	/** partials listed in the properties file that all extractors shared before are moved to the index's own file */
+	@Test
+	public void migrateLegacyProperties() throws IOException {
+		fillIndex(0, 10);
+		index.close();
+
+		File legacyFile = new File(index.getIndexFolder(), "properties");
+		MFIProperties.MFIProperty own = MFIProperties.read(index.getPropertiesFile().getPath()).asList().get(0);
+		MFIProperties.MFIProperty other = new MFIProperties.MFIProperty(index.getIndexFolder() + "/other_1", 0L, 99L);
+		assertThat(index.getPropertiesFile().delete()).isTrue();
+		writeProperties(legacyFile, own, other);
+
+		index = (AbstractMultiFileIndex) setupBuilder().build();
+		index.open();
+
+		assertThat(index.toRanges()).containsOnly(new Range(0L, 99L));
+		assertThat(MFIProperties.read(legacyFile.getPath()).asList()).containsOnly(other);
+		index.close();
+
+		// the legacy file is deleted with the last partial moved out of it
+		assertThat(index.getPropertiesFile().delete()).isTrue();
+		writeProperties(legacyFile, own);
+
+		index = (AbstractMultiFileIndex) setupBuilder().build();
+		index.open();
+
+		assertThat(index.toRanges()).containsOnly(new Range(0L, 99L));
+		assertThat(legacyFile).doesNotExist();
+	}
+
+	private void writeProperties(File file, MFIProperties.MFIProperty... entries) throws IOException {
+		file.delete();
+		MFIProperties properties = new MFIProperties(file.getPath());
+		properties.asList().addAll(Arrays.asList(entries));
+		properties.write();
+	}
+
 	@Test
 	public void toRanges() throws IOException {
 		fillIndex(70, 40);
@@ -94,6 +132,120 @@ public abstract class AbstractMultiFileIndexTest {
 		assertThat(ranges.last()).isEqualTo(new Range(700L, 1099L));
 	}
 
+	@Test
+	public void partialsBelongToTheSplitTheyStartIn() throws IOException {
+		fillIndex(0, 20);
+		index.close();
+
+		// the split ends in the middle of the partial, its reader returns the whole partial
+		when(fileSplit.getLength()).thenReturn(100L);
+		index = (AbstractMultiFileIndex) setupBuilder().build();
+		index.open();
+		assertThat(index.toRanges()).containsOnly(new Range(0L, 199L));
+		index.close();
+
+		// the next split skips the lines of the partial, even if it is not indexing
+		when(fileSplit.getStart()).thenReturn(100L);
+		index = (AbstractMultiFileIndex) setupBuilder().maxPartialsPerSplit(0).build();
+		index.open();
+		assertThat(index.toRanges()).isEmpty();
+		assertThat(index.addLine("15,name,", 150L, 159L)).isFalse();
+		assertThat(index.addLine("25,name,", 250L, 259L)).isTrue();
+		index.close();
+
+		// a partial starting at the last byte of a split belongs to the split
+		when(fileSplit.getStart()).thenReturn(0L);
+		when(fileSplit.getLength()).thenReturn(1L);
+		index = (AbstractMultiFileIndex) setupBuilder().build();
+		index.open();
+		assertThat(index.toRanges()).containsOnly(new Range(0L, 199L));
+	}
+
+	@Test
+	public void sharePartialsBetweenNodes() throws IOException {
+		File otherNode = new File(indexRootFolder.getPath() + "_otherNode");
+		File sharedFolder = new File(indexRootFolder.getPath() + "_shared");
+		FileUtils.deleteDirectory(otherNode);
+		FileUtils.deleteDirectory(sharedFolder);
+		otherNode.mkdir();
+		File cacheFolder = new File(otherNode, "cache");
+
+		index = (AbstractMultiFileIndex) setupBuilder().sharedIndexFolder(new Path(sharedFolder.getPath())).build();
+		index.open();
+		fillIndex(0, 10);
+		index.close();
+
+		// the other node has an empty index root folder, it reads the partial from the shared folder
+		when(fileSplit.getLength()).thenReturn(100L);
+		index = (AbstractMultiFileIndex) setupBuilder()
+				.indexRootFolder(otherNode)
+				.sharedIndexFolder(new Path(sharedFolder.getPath()))
+				.partialCache(cacheFolder, 1024 * 1024)
+				.addDefaultRange(new Range(3, 4))
+				.build();
+		index.open();
+		assertThat(index.toRanges()).containsOnly(new Range(0L, 99L));
+
+		Iterator<String> iterator = index.getIterator();
+		assertThat(iterator.next()).startsWith("3,");
+		assertThat(iterator.next()).startsWith("4,");
+		assertThat(iterator.hasNext()).isFalse();
+		assertThat(new File(cacheFolder.getPath() + hdfsFilePath).list()).isNotEmpty();
+
+		// lines of the shared partial are not indexed again
+		assertThat(index.addLine("5,name,", 50L, 59L)).isFalse();
+		index.close();
+	}
+
+	/** partials are compacted by the node that wrote them, the merged partial replaces them in the shared folder */
+	@Test
+	public void compactSharedPartials() throws IOException {
+		File otherNode = new File(indexRootFolder.getPath() + "_otherNode");
+		File sharedFolder = new File(indexRootFolder.getPath() + "_shared");
+		FileUtils.deleteDirectory(otherNode);
+		FileUtils.deleteDirectory(sharedFolder);
+		otherNode.mkdir();
+
+		index = (AbstractMultiFileIndex) setupBuilder().sharedIndexFolder(new Path(sharedFolder.getPath())).build();
+		index.open();
+		fillIndex(0, 10);
+		index.sync();
+		fillIndex(10, 10);
+		index.close();
+
+		// the copies in the partial cache of the other node are not compacted
+		index = (AbstractMultiFileIndex) setupBuilder()
+				.indexRootFolder(otherNode)
+				.sharedIndexFolder(new Path(sharedFolder.getPath()))
+				.partialCache(new File(otherNode, "cache"), 1024 * 1024)
+				.build();
+		index.open();
+		assertThat(index.toRanges()).containsOnly(new Range(0L, 99L), new Range(100L, 199L));
+		assertThat(index.compact(1000)).isEqualTo(0);
+		index.close();
+
+		index = (AbstractMultiFileIndex) setupBuilder().sharedIndexFolder(new Path(sharedFolder.getPath())).build();
+		index.open();
+		assertThat(index.compact(1000)).isEqualTo(1);
+		index.close();
+
+		// a node reading the shared properties now only uses the merged partial
+		FileUtils.deleteDirectory(otherNode);
+		otherNode.mkdir();
+		index = (AbstractMultiFileIndex) setupBuilder()
+				.indexRootFolder(otherNode)
+				.sharedIndexFolder(new Path(sharedFolder.getPath()))
+				.partialCache(new File(otherNode, "cache"), 1024 * 1024)
+				.build();
+		index.open();
+		assertThat(index.toRanges()).containsOnly(new Range(0L, 199L));
+
+		Iterator<String> iterator = index.getIterator();
+		for (int i = 0; i < 20; i++)
+			assertThat(iterator.next()).isNotNull();
+		assertThat(iterator.hasNext()).isFalse();
+	}
+
 	@Test @Ignore("I dont know why this isn't working")
 	public void containsPos() throws IOException {
 		fillIndex(50, 10);
@@ -192,6 +344,52 @@ public abstract class AbstractMultiFileIndexTest {
 		assertThat(iterator.hasNext()).isFalse();
 	}
 
+
+	/** primary indexes ignore the option */
+	@Test
+	public void iteratorWithStoredLengths() throws IOException {
+		index.close();
+		index = (AbstractMultiFileIndex) setupBuilder().secondaryIndexStoreLengths().build();
+		index.open();
+		fillIndex(0, 10);
+		when(fileSplit.getLength()).thenReturn(100L);
+		index.close();
+
+		index = (AbstractMultiFileIndex) setupBuilder()
+				.secondaryIndexStoreLengths()
+				.addDefaultRange(new Range(2, 4))
+				.build();
+		index.open();
+
+		Iterator<String> iterator = index.getIterator();
+		for (int i = 2; i <= 4; i++)
+			assertThat(iterator.next()).startsWith(i + ",name,").hasSize(9);
+		assertThat(iterator.hasNext()).isFalse();
+	}
+
+	@Test
+	public void addLineFromBytes() throws IOException {
+		for (int i = 0; i < 10; i++) {
+			String line = i + ",name,0";
+			addToIndexInputStream(index, line + "\n", i * 10L);
+
+			// the line is embedded in a larger array, like in a Text object
+			byte[] bytes = ("xx" + line + "yy").getBytes();
+			index.addLine(bytes, 2, line.length(), i * 10L, i * 10L + 9L);
+		}
+		index.close();
+
+		index = (AbstractMultiFileIndex) setupBuilder()
+				.addDefaultRange(new Range(3, 4))
+				.build();
+		index.open();
+		Iterator<String> iterator = index.getIterator();
+
+		assertThat(iterator.next()).isEqualTo("3,name,0");
+		assertThat(iterator.next()).isEqualTo("4,name,0");
+		assertThat(iterator.hasNext()).isFalse();
+	}
+
 	@Test
 	public void continuousFill() throws IOException {
 		fillIndex(0, 50);
@@ -206,6 +404,224 @@ public abstract class AbstractMultiFileIndexTest {
 		assertThat(index.toRanges()).hasSize(2).contains(new Range(0L, 499L), new Range(500L, 599L));
 	}
 
+	@Test
+	public void flushFullCachesInBackground() throws IOException {
+		index = (AbstractMultiFileIndex) setupBuilder().cacheSize(10).build();
+		index.open();
+
+		fillIndex(0, 35);
+		index.close();
+
+		MFIProperties properties = new MFIProperties(index.getPropertiesFile().getPath());
+		properties.read();
+		assertThat(properties.asList()).hasSize(4);
+
+		index = (AbstractMultiFileIndex) setupBuilder().build();
+		index.open();
+
+		assertThat(index.toRanges()).containsOnly(new Range(0L, 99L), new Range(100L, 199L), new Range(200L, 299L),
+				new Range(300L, 349L));
+
+		Iterator iterator = index.getIterator();
+		for (int i = 0; i < 35; i++) {
+			assertThat(iterator.next()).isNotNull();
+		}
+		assertThat(iterator.hasNext()).isFalse();
+	}
+
+	@Test
+	public void spillSortedRunsIntoOnePartial() throws IOException {
+		File spillFolder = new File(indexRootFolder, "spill");
+		spillFolder.mkdir();
+
+		index = (AbstractMultiFileIndex) setupBuilder().cacheSize(10).spillFolder(spillFolder).build();
+		index.open();
+
+		// fill in reverse key order, so that the runs have to be merged
+		for (int i = 34; i >= 0; i--) {
+			String line = (100 + i) + ",name";
+			long pos = (34 - i) * 10L;
+			addToIndexInputStream(index, line + "\n", pos);
+			index.addLine(line, pos, pos + 9L);
+		}
+		index.close();
+
+		assertThat(spillFolder.list()).isEmpty();
+		assertThat(index.toRanges()).containsOnly(new Range(0L, 349L));
+
+		index = (AbstractMultiFileIndex) setupBuilder()
+				.addDefaultRange(new Range(105, 107))
+				.addDefaultRange(new Range(120, 121))
+				.build();
+		index.open();
+
+		String matchString = "(105|106|107|120|121),name";
+		Iterator<String> iterator = index.getIterator();
+		for (int i = 0; i < 5; i++) {
+			assertThat(iterator.next()).matches(matchString);
+		}
+		assertThat(iterator.hasNext()).isFalse();
+	}
+
+	@Test
+	public void compact() throws IOException {
+		fillIndex(0, 10);
+		index.sync();
+		fillIndex(10, 10);
+		index.sync();
+		fillIndex(20, 10);
+		index.sync();
+
+		// not contiguous
+		fillIndex(50, 10);
+		index.sync();
+
+		File first = new File(getRangeProperty(new Range(0L, 99L)).filePath);
+
+		// split size 150: only the partials starting at 0 and 100 belong to the same split
+		assertThat(index.compact(150)).isEqualTo(1);
+		assertThat(index.toRanges()).containsOnly(new Range(0L, 199L), new Range(200L, 299L), new Range(500L, 599L));
+		// readers that read the properties before may still open the merged-away partials
+		assertThat(first).exists();
+		assertThat(new File(first + AbstractMultiFileIndex.OBSOLETE_SUFFIX)).exists();
+
+		assertThat(index.compact(1000)).isEqualTo(1);
+		assertThat(index.toRanges()).containsOnly(new Range(0L, 299L), new Range(500L, 599L));
+		assertThat(index.getLockFile()).doesNotExist();
+		assertThat(first).exists();
+
+		// deleted by a later compaction after the grace time
+		expireObsoleteMarker(first);
+		assertThat(index.compact(1000)).isEqualTo(0);
+		assertThat(first).doesNotExist();
+		assertThat(new File(first + AbstractMultiFileIndex.OBSOLETE_SUFFIX)).doesNotExist();
+
+		Iterator iterator = index.getIterator();
+		for (int i = 0; i < 40; i++) {
+			assertThat(iterator.next()).isNotNull();
+		}
+		assertThat(iterator.hasNext()).isFalse();
+	}
+
+	@Test
+	public void skipPartialsOutsideSearchRanges() throws IOException {
+		fillIndex(0, 10);
+		index.sync();
+		fillIndex(10, 10);
+		index.sync();
+		when(fileSplit.getLength()).thenReturn(200L);
+		index.close();
+
+		MFIProperties.MFIProperty first = getRangeProperty(new Range(0L, 99L));
+		assertThat(first.rowCount).isEqualTo(10L);
+		assertThat(IntegerSerializer.INSTANCE.deserialize(first.minKey)).isEqualTo(0);
+		assertThat(IntegerSerializer.INSTANCE.deserialize(first.maxKey)).isEqualTo(9);
+
+		// the first partial must not be loaded
+		assertThat(first.getFile().delete()).isTrue();
+
+		index = (AbstractMultiFileIndex) setupBuilder()
+				.addDefaultRange(new Range(12, 14))
+				.build();
+		index.open();
+
+		Iterator<String> iterator = index.getIterator();
+		for (int i = 12; i <= 14; i++)
+			assertThat(iterator.next()).startsWith(i + ",name,");
+		assertThat(iterator.hasNext()).isFalse();
+	}
+
+	@Test
+	public void emptySplits() throws IOException {
+		fillIndex(0, 10);
+		index.sync();
+		fillIndex(10, 10);
+		index.sync();
+		fillIndex(30, 5);
+		index.close();
+
+		index = (AbstractMultiFileIndex) setupBuilder()
+				.addDefaultRange(new Range(12, 14))
+				.build();
+		index.open();
+
+		assertThat(index.isEmptySplit(0, 99)).isTrue();
+		assertThat(index.isEmptySplit(50, 150)).isFalse();
+		assertThat(index.isEmptySplit(100, 199)).isFalse();
+		// not indexed
+		assertThat(index.isEmptySplit(300, 399)).isFalse();
+		assertThat(index.isEmptySplit(300, 349)).isTrue();
+	}
+
+	@Test
+	public void skipPartialsByBloomFilter() throws IOException {
+		index.close();
+		index = (AbstractMultiFileIndex) setupBuilder().bloomFilter(10).build();
+		index.open();
+		// the key range of the first partial contains the key of the second one
+		addLine("10,name,", 0);
+		addLine("20,name,", 9);
+		index.sync();
+		addLine("13,name,", 18);
+		index.sync();
+		when(fileSplit.getLength()).thenReturn(27L);
+		index.close();
+
+		MFIProperties.MFIProperty first = getRangeProperty(new Range(0L, 17L));
+		assertThat(new File(first.filePath + PartialBloomFilter.SUFFIX)).exists();
+		assertThat(first.getFile().delete()).isTrue();
+
+		index = (AbstractMultiFileIndex) setupBuilder()
+				.addDefaultRange(new Range(13, 13))
+				.build();
+		index.open();
+
+		Iterator<String> iterator = index.getIterator();
+		assertThat(iterator.next()).startsWith("13,name,");
+		assertThat(iterator.hasNext()).isFalse();
+	}
+
+	/** secondary indexes ignore the option */
+	@Test
+	public void compactCompressedValues() throws IOException {
+		index.close();
+		index = (AbstractMultiFileIndex) setupBuilder().compressValues(new DeflateCodec(), 64).build();
+		index.open();
+		fillIndex(0, 10);
+		index.sync();
+		fillIndex(10, 10);
+		index.sync();
+
+		File first = new File(getRangeProperty(new Range(0L, 99L)).filePath);
+		assertThat(index.compact(1000)).isEqualTo(1);
+		assertThat(first).exists();
+		expireObsoleteMarker(first);
+		index.compact(1000);
+		assertThat(new File(first + ValueStore.SUFFIX)).doesNotExist();
+		when(fileSplit.getLength()).thenReturn(200L);
+		index.close();
+
+		index = (AbstractMultiFileIndex) setupBuilder()
+				.compressValues()
+				.addDefaultRange(new Range(8, 12))
+				.build();
+		index.open();
+
+		Iterator<String> iterator = index.getIterator();
+		for (int i = 8; i <= 12; i++)
+			assertThat(iterator.next()).startsWith(i + ",name,");
+		assertThat(iterator.hasNext()).isFalse();
+	}
+
+	private static void expireObsoleteMarker(File partial) {
+		new File(partial + AbstractMultiFileIndex.OBSOLETE_SUFFIX).setLastModified(
+				System.currentTimeMillis() - AbstractMultiFileIndex.OBSOLETE_GRACE_TIME - 10000);
+	}
+
+	private MFIProperties.MFIProperty getRangeProperty(Range<Long> range) throws IOException {
+		return MFIProperties.read(index.getPropertiesFile().getPath()).getPropertyForRange(range);
+	}
+
 	@Test
 	public void complyToRecordReaderSplitSize() throws IOException {
 		fillIndex(0, 50);
@@ -239,7 +655,7 @@ public abstract class AbstractMultiFileIndexTest {
 		assertThat(index.getIndexFolder()).exists();
 
 		// ensure properties file is created
-		File propertiesFile = new File(index.getIndexFolder().getAbsolutePath() + "/properties");
+		File propertiesFile = index.getPropertiesFile();
 		assertThat(propertiesFile).exists();
 
 		// ensure properties can be read
@@ -272,6 +688,12 @@ public abstract class AbstractMultiFileIndexTest {
 		}
 	}
 
+	/** adds the line at the position, the next line starts right after it */
+	private void addLine(String line, long pos) {
+		addToIndexInputStream(index, line + "\n", pos);
+		index.addLine(line, pos, pos + line.length());
+	}
+
 	protected abstract void addToIndexInputStream(AbstractMultiFileIndex index, String line, long pos);
 
 	private IndexBuilder setupBuilder() {
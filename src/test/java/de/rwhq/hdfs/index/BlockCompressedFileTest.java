@@ -0,0 +1,131 @@
+package de.rwhq.hdfs.index;
+
+import com.google.common.collect.Lists;
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class BlockCompressedFileTest {
+	private static final File FOLDER = new File("/tmp/blockCompressedFileTest");
+
+	private Configuration conf;
+	private FileSystem    fs;
+	private Path          file;
+	private List<String>  lines     = Lists.newArrayList();
+	private List<Long>    positions = Lists.newArrayList();
+
+	@Before
+	public void setUp() throws IOException {
+		FileUtils.deleteDirectory(FOLDER);
+
+		conf = new Configuration();
+		conf.setLong("mapred.max.split.size", 1000);
+		fs = FileSystem.getLocal(conf);
+		file = fs.makeQualified(new Path(FOLDER.getPath(), "file.csv" + BlockCompressedFile.SUFFIX));
+
+		// small blocks, so that lines span several blocks
+		OutputStream out = BlockCompressedFile.create(fs, file, 100);
+		long pos = 0;
+		for (int i = 0; i < 1000; i++) {
+			String line = i + ",name" + i;
+			out.write((line + "\n").getBytes());
+			lines.add(line);
+			positions.add(pos);
+			pos += line.length() + 1;
+		}
+		out.close();
+	}
+
+	@Test
+	public void readUncompressedBytes() throws IOException {
+		FSDataInputStream in = BlockCompressedFile.open(fs, file);
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+		for (String line : lines)
+			assertThat(reader.readLine()).isEqualTo(line);
+		assertThat(reader.readLine()).isNull();
+		in.close();
+
+		// the compressed file is smaller
+		long length = BlockCompressedFile.length(fs, fs.getFileStatus(file));
+		assertThat(length).isEqualTo(positions.get(999) + lines.get(999).length() + 1);
+		assertThat(fs.getFileStatus(file).getLen()).isLessThan(length);
+	}
+
+	@Test
+	public void sidecarIsNoInput() throws IOException {
+		assertThat(fs.exists(BlockCompressedFile.offsetsPath(file))).isTrue();
+		assertThat(BlockCompressedFile.offsetsPath(file).getName()).startsWith(".");
+	}
+
+	@Test
+	public void seekToUncompressedPositions() throws IOException {
+		FSDataInputStream in = BlockCompressedFile.open(fs, file);
+		for (int i = 999; i >= 0; i -= 7) {
+			in.seek(positions.get(i));
+			assertThat(new BufferedReader(new InputStreamReader(in)).readLine()).isEqualTo(lines.get(i));
+		}
+
+		// positioned reads do not change the position
+		in.seek(positions.get(500));
+		byte[] bytes = new byte[lines.get(10).length()];
+		in.readFully(positions.get(10), bytes);
+		assertThat(new String(bytes)).isEqualTo(lines.get(10));
+		assertThat(in.getPos()).isEqualTo(positions.get(500));
+		in.close();
+	}
+
+	@Test
+	public void readLinesAtPositions() throws IOException {
+		FSDataInputStream in = BlockCompressedFile.open(fs, file);
+		Iterator<String> iterator = new PositionedLineIterator(positions.iterator(), in, 10, 100);
+
+		for (String line : lines)
+			assertThat(iterator.next()).isEqualTo(line);
+		assertThat(iterator.hasNext()).isFalse();
+		in.close();
+	}
+
+	@Test
+	public void readAllSplits() throws IOException {
+		FileStatus status = fs.getFileStatus(file);
+		List<FileSplit> splits = new IndexedInputFormat().getSplits(status, conf);
+		assertThat(splits.size()).isGreaterThan(4);
+
+		// every line is read exactly once, by the split it starts in
+		List<String> read = Lists.newArrayList();
+		long next = 0;
+		for (FileSplit split : splits) {
+			assertThat(split.getStart()).isEqualTo(next);
+			next = split.getStart() + split.getLength();
+
+			LineRecordReader reader = new LineRecordReader();
+			reader.initialize(split, new TaskAttemptContext(conf, new TaskAttemptID()));
+			while (reader.nextKeyValue()) {
+				assertThat(reader.getCurrentKey().get()).isEqualTo(positions.get(read.size()));
+				read.add(reader.getCurrentValue().toString());
+			}
+			reader.close();
+		}
+
+		assertThat(next).isEqualTo(BlockCompressedFile.length(fs, status));
+		assertThat(read).isEqualTo(lines);
+	}
+}
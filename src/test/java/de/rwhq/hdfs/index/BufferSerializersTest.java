@@ -0,0 +1,69 @@
+package de.rwhq.hdfs.index;
+
+import de.rwhq.comparator.IntegerComparator;
+import de.rwhq.comparator.LongComparator;
+import de.rwhq.serializer.FixLengthSerializer;
+import de.rwhq.serializer.IntegerSerializer;
+import de.rwhq.serializer.LongSerializer;
+import de.rwhq.serializer.StringCutSerializer;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class BufferSerializersTest {
+
+	@Test
+	public void sameBytesAsJbTree() {
+		for (int i : new int[]{0, 1, -1, Integer.MIN_VALUE, Integer.MAX_VALUE, 4711})
+			assertSameBytes(IntegerSerializer.INSTANCE, i);
+
+		for (long l : new long[]{0, 1, -1, Long.MIN_VALUE, Long.MAX_VALUE, 1L << 40 | 17})
+			assertSameBytes(LongSerializer.INSTANCE, l);
+
+		assertSameBytes(StringCutSerializer.get(20), "some line");
+	}
+
+	private static <T> void assertSameBytes(FixLengthSerializer<T, byte[]> serializer, T o) {
+		ByteBuffer buffer = ByteBuffer.allocate(serializer.getSerializedLength() + 1);
+		buffer.put((byte) 1);
+		BufferSerializers.of(serializer).serialize(o, buffer);
+
+		assertThat(buffer.position()).isEqualTo(buffer.capacity());
+		assertThat(Arrays.copyOfRange(buffer.array(), 1, buffer.capacity())).isEqualTo(serializer.serialize(o));
+	}
+
+	@Test
+	public void sameOrderAsJbTree() {
+		int[] ints = {0, 1, -1, Integer.MIN_VALUE, Integer.MAX_VALUE, 4711};
+		for (int i1 : ints) {
+			for (int i2 : ints)
+				assertSameOrder(IntegerSerializer.INSTANCE, IntegerComparator.INSTANCE, i1, i2);
+		}
+
+		long[] longs = {0, 1, -1, Long.MIN_VALUE, Long.MAX_VALUE, 1L << 40 | 17};
+		for (long l1 : longs) {
+			for (long l2 : longs)
+				assertSameOrder(LongSerializer.INSTANCE, LongComparator.INSTANCE, l1, l2);
+		}
+
+		// the order of the bytes of other comparators is not known
+		assertThat(BufferSerializers.comparator(IntegerSerializer.INSTANCE,
+				Collections.reverseOrder(IntegerComparator.INSTANCE))).isNull();
+	}
+
+	private static <T> void assertSameOrder(FixLengthSerializer<T, byte[]> serializer, Comparator<T> comparator,
+	                                        T o1, T o2) {
+		int length = serializer.getSerializedLength();
+		ByteBuffer buffer = ByteBuffer.allocateDirect(2 * length + 1);
+		buffer.position(1);
+		buffer.put(serializer.serialize(o1)).put(serializer.serialize(o2));
+
+		int result = BufferSerializers.comparator(serializer, comparator).compare(buffer, 1, 1 + length);
+		assertThat(Integer.signum(result)).isEqualTo(Integer.signum(comparator.compare(o1, o2)));
+	}
+}
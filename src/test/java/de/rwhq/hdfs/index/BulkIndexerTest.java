@@ -0,0 +1,141 @@
+package de.rwhq.hdfs.index;
+
+import de.rwhq.btree.Range;
+import de.rwhq.comparator.IntegerComparator;
+import de.rwhq.hdfs.index.extractor.IntegerCSVExtractor;
+import de.rwhq.serializer.IntegerSerializer;
+import de.rwhq.serializer.StringCutSerializer;
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.List;
+import java.util.SortedSet;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class BulkIndexerTest {
+	private static final File   INDEX      = new File("/tmp/bulkIndexerTest/index");
+	private static final String INPUT_FILE = "/tmp/bulkIndexerTest/input.csv";
+
+	private Configuration conf;
+	private FileSystem    fs;
+	private Path          input;
+
+	@Before
+	public void setUp() throws IOException {
+		FileUtils.deleteDirectory(new File("/tmp/bulkIndexerTest"));
+		INDEX.mkdirs();
+
+		conf = new Configuration();
+		conf.setLong("mapred.max.split.size", 1000);
+		fs = FileSystem.getLocal(conf);
+		input = fs.makeQualified(new Path(INPUT_FILE));
+
+		OutputStream out = fs.create(input);
+		for (int i = 0; i < 1000; i++)
+			out.write((i + ",name" + i + "\n").getBytes());
+		out.close();
+	}
+
+	@Test
+	public void indexAllSplits() throws IOException {
+		FileStatus status = fs.getFileStatus(input);
+		List<FileSplit> splits = new IndexedInputFormat().getSplits(status, conf);
+		assertThat(splits.size()).isGreaterThan(4);
+
+		int partials = new BulkIndexer(conf, Builder.class, 4).build(input);
+		assertThat(partials).isEqualTo(splits.size());
+
+		// the builder spills, so every split produces one partial. The whole file is covered without gaps
+		SortedSet<Range<Long>> ranges = MFIProperties.read(INDEX + INPUT_FILE + "/properties_0").toRanges();
+		assertThat(ranges).hasSize(splits.size());
+		long next = 0;
+		for (Range<Long> range : ranges) {
+			assertThat(range.getFrom()).isEqualTo(next);
+			next = range.getTo() + 1;
+		}
+		assertThat(next).isEqualTo(status.getLen());
+
+		// the index of a split can be used by the record reader
+		FileSplit split = splits.get(1);
+		Index index = new Builder().addDefaultRange(new Range(0, 10000)).fileSplit(split).build();
+		index.open();
+		Iterator<String> iterator = index.getIterator();
+		int count = 0;
+		while (iterator.hasNext()) {
+			assertThat(iterator.next()).contains(",name");
+			count++;
+		}
+		index.close();
+		assertThat(count).isGreaterThan(0);
+
+		assertThat(new File(INDEX + INPUT_FILE + "/lock_0")).doesNotExist();
+	}
+
+	@Test
+	public void lockedIndexFolder() throws IOException {
+		File folder = new File(INDEX + INPUT_FILE);
+		folder.mkdirs();
+		FileUtils.touch(new File(folder, "lock_0"));
+
+		assertThat(new BulkIndexer(conf, Builder.class, 2).build(input)).isEqualTo(-1);
+		assertThat(new File(folder, "properties")).doesNotExist();
+	}
+
+	@Test
+	public void compactCompositeIndex() throws IOException {
+		OutputStream out = fs.create(input, true);
+		for (int i = 0; i < 1000; i++)
+			out.write((i + ",name," + (1000 - i) + "\n").getBytes());
+		out.close();
+
+		int partials = new BulkIndexer(conf, CompositeBuilder.class, 2).build(input);
+
+		// larger splits let the partials of several small splits be merged
+		conf.setLong("mapred.max.split.size", 4000);
+		int removed = new IndexCompactor(conf, CompositeBuilder.class).compact(input);
+
+		int left = 0;
+		for (String id : new String[]{"0", "2"}) {
+			List<MFIProperties.MFIProperty> properties = MFIProperties.read(INDEX + INPUT_FILE + "/properties_" + id)
+					.asList();
+			assertThat(properties.size()).isLessThan(partials / 2);
+			left += properties.size();
+		}
+		assertThat(removed).isEqualTo(partials - left);
+	}
+
+	public static class Builder extends AbstractIndexBuilder {
+		@Override
+		public IndexBuilder configure(IndexBuilder builder) {
+			return builder
+					.indexRootFolder(INDEX)
+					.primaryIndex()
+					.spillToDisk()
+					.cacheSize(10)
+					.keySerializer(IntegerSerializer.INSTANCE)
+					.valueSerializer(StringCutSerializer.get(20))
+					.keyExtractor(new IntegerCSVExtractor(0, ","))
+					.treePageSize(4 * 1024)
+					.comparator(IntegerComparator.INSTANCE);
+		}
+	}
+
+	public static class CompositeBuilder extends Builder {
+		@Override
+		public IndexBuilder configure(IndexBuilder builder) {
+			return super.configure(builder)
+					.alsoIndex(new IntegerCSVExtractor(2, ","), IntegerSerializer.INSTANCE, IntegerComparator.INSTANCE);
+		}
+	}
+}
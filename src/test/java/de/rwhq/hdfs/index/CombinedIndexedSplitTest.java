@@ -0,0 +1,54 @@
+package de.rwhq.hdfs.index;
+
+import com.google.common.collect.Lists;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class CombinedIndexedSplitTest {
+	private FileSplit first  = new FileSplit(new Path("/a.csv"), 0, 100, new String[]{"host1", "host2"});
+	private FileSplit second = new FileSplit(new Path("/a.csv"), 100, 50, new String[]{"host2"});
+	private FileSplit third  = new FileSplit(new Path("/b.csv"), 0, 100, new String[]{"host3"});
+
+	@Test
+	public void lengthAndLocations() throws IOException {
+		CombinedIndexedSplit split = new CombinedIndexedSplit(Lists.newArrayList(first, second, third));
+
+		assertThat(split.getLength()).isEqualTo(250);
+		assertThat(split.getLocations()).containsOnly("host1", "host2", "host3");
+	}
+
+	@Test
+	public void serialization() throws IOException {
+		DataOutputBuffer out = new DataOutputBuffer();
+		new CombinedIndexedSplit(Lists.newArrayList(first, third)).write(out);
+
+		DataInputBuffer in = new DataInputBuffer();
+		in.reset(out.getData(), out.getLength());
+		CombinedIndexedSplit read = new CombinedIndexedSplit();
+		read.readFields(in);
+
+		assertThat(read.getSplits()).hasSize(2);
+		assertThat(read.getSplits().get(1).getPath()).isEqualTo(new Path("/b.csv"));
+		assertThat(read.getSplits().get(1).getLength()).isEqualTo(100);
+		assertThat(read.getLength()).isEqualTo(200);
+	}
+
+	@Test
+	public void combineAcrossFiles() throws IOException {
+		List<InputSplit> combined =
+				new IndexedInputFormat().combine(Lists.newArrayList(first, second, third), 150);
+
+		assertThat(combined).hasSize(2);
+		assertThat(((CombinedIndexedSplit) combined.get(0)).getSplits()).containsExactly(first, second);
+		assertThat(((CombinedIndexedSplit) combined.get(1)).getSplits()).containsExactly(third);
+	}
+}
@@ -0,0 +1,237 @@
+package de.rwhq.hdfs.index;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import de.rwhq.btree.Range;
+import de.rwhq.comparator.IntegerComparator;
+import de.rwhq.hdfs.index.extractor.ExtractionException;
+import de.rwhq.hdfs.index.extractor.IntegerCSVExtractor;
+import de.rwhq.serializer.IntegerSerializer;
+import de.rwhq.serializer.StringCutSerializer;
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+public class CompositeIndexTest {
+	private File   indexRootFolder = new File("/tmp/compositeIndexTest");
+	private String hdfsFilePath    = "/path/to/hdfs/file.csv";
+	@Mock private FileSplit fileSplit;
+
+	@Before
+	public void setUp() throws IOException {
+		MockitoAnnotations.initMocks(this);
+		when(fileSplit.getStart()).thenReturn(0L);
+		when(fileSplit.getLength()).thenReturn(1000000L);
+		when(fileSplit.getPath()).thenReturn(new Path(hdfsFilePath));
+
+		FileUtils.deleteDirectory(indexRootFolder);
+		indexRootFolder.mkdir();
+	}
+
+	@Test
+	public void indexAllColumnsInOnePass() throws IOException {
+		Index index = setupBuilder(null, null).build();
+		assertThat(index).isInstanceOf(CompositeIndex.class);
+
+		index.open();
+		fillIndex(index);
+		index.close();
+
+		File folder = new File(indexRootFolder + hdfsFilePath);
+		assertThat(new File(folder, "properties_0")).exists();
+		assertThat(new File(folder, "properties_1")).exists();
+		assertThat(new File(folder, "lock_0")).doesNotExist();
+		assertThat(new File(folder, "lock_1")).doesNotExist();
+	}
+
+	@Test
+	public void serveFromColumnWithSearchRanges() throws IOException {
+		Index index = setupBuilder(null, null).build();
+		index.open();
+		fillIndex(index);
+		index.close();
+
+		// second column is 1000 - first column
+		index = setupBuilder(null, new Range(950, 960)).build();
+		index.open();
+		assertThat(index.toRanges()).containsOnly(new Range(0L, 999L));
+		assertThat(count(index.getIterator())).isEqualTo(11);
+		index.close();
+
+		index = setupBuilder(new Range(45, 100), new Range(950, 960)).build();
+		index.open();
+		assertThat(count(index.getIterator())).isEqualTo(6);
+		index.close();
+	}
+
+	@Test
+	public void addLineMatchesAllSearchRanges() throws IOException {
+		Index index = setupBuilder(new Range(45, 100), new Range(950, 960)).build();
+		index.open();
+
+		assertThat(index.addLine(line(44), 0, 9)).isFalse();
+		assertThat(index.addLine(line(45), 10, 19)).isTrue();
+		assertThat(index.addLine(line(60), 20, 29)).isFalse();
+		index.close();
+	}
+
+	@Test
+	public void columnsWithDifferentCoverage() throws IOException {
+		// only the second column covers the first half of the lines
+		Index index = new IndexBuilder()
+				.indexRootFolder(indexRootFolder)
+				.primaryIndex()
+				.valueSerializer(StringCutSerializer.get(20))
+				.fileSplit(fileSplit)
+				.cacheSize(1000)
+				.treePageSize(4 * 1024)
+				.keyExtractor(new IntegerCSVExtractor(1, ","))
+				.keySerializer(IntegerSerializer.INSTANCE)
+				.comparator(IntegerComparator.INSTANCE)
+				.build();
+		index.open();
+		for (int i = 0; i < 50; i++)
+			index.addLine(line(i), i * 10L, i * 10L + 9L);
+		index.close();
+
+		// the first column is the query index, the second one filters
+		index = setupBuilder(new Range(0, 100), new Range(950, 990)).build();
+		index.open();
+		assertThat(index.toRanges()).isEmpty();
+
+		// lines covered by the second column only are still returned, they are not in the query index
+		int matching = 0;
+		for (int i = 0; i < 100; i++) {
+			if (index.addLine(line(i), i * 10L, i * 10L + 9L))
+				matching++;
+		}
+		assertThat(matching).isEqualTo(41);
+		index.close();
+	}
+
+	@Test
+	public void noDuplicatesWithoutSearchRanges() throws IOException {
+		Index index = setupBuilder(null, null).build();
+		index.open();
+		for (int i = 0; i < 50; i++)
+			index.addLine(line(i), i * 10L, i * 10L + 9L);
+		index.close();
+
+		index = setupBuilder(null, null).build();
+		index.open();
+		assertThat(count(index.getIterator())).isEqualTo(50);
+
+		// lines served from the query index are not returned again when read from the file
+		int returned = 0;
+		for (int i = 0; i < 100; i++) {
+			if (index.addLine(line(i), i * 10L, i * 10L + 9L))
+				returned++;
+		}
+		assertThat(returned).isEqualTo(50);
+		index.close();
+	}
+
+	/** extractors that split with a regular expression get the same decoded line, so it is only split once */
+	@Test
+	public void decodeLinesOnce() throws IOException {
+		final List<String> lines = Lists.newArrayList();
+		Index index = new IndexBuilder()
+				.indexRootFolder(indexRootFolder)
+				.primaryIndex()
+				.valueSerializer(StringCutSerializer.get(20))
+				.fileSplit(fileSplit)
+				.keyExtractor(new RecordingExtractor(0, lines))
+				.keySerializer(IntegerSerializer.INSTANCE)
+				.comparator(IntegerComparator.INSTANCE)
+				.alsoIndex(new RecordingExtractor(1, lines), IntegerSerializer.INSTANCE, IntegerComparator.INSTANCE)
+				.build();
+		index.open();
+
+		byte[] bytes = line(5).getBytes(Charsets.UTF_8);
+		assertThat(index.addLine(bytes, 0, bytes.length, 0, 9)).isTrue();
+		index.close();
+
+		assertThat(lines).hasSize(2);
+		assertThat(lines.get(1)).isSameAs(lines.get(0));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void uniqueExtractorIds() {
+		new IndexBuilder()
+				.indexRootFolder(indexRootFolder)
+				.primaryIndex()
+				.valueSerializer(StringCutSerializer.get(20))
+				.fileSplit(fileSplit)
+				.keyExtractor(new IntegerCSVExtractor(0, ","))
+				.keySerializer(IntegerSerializer.INSTANCE)
+				.comparator(IntegerComparator.INSTANCE)
+				.alsoIndex(new IntegerCSVExtractor(0, ";"), IntegerSerializer.INSTANCE, IntegerComparator.INSTANCE)
+				.build();
+	}
+
+	private int count(Iterator<String> iterator) {
+		int count = 0;
+		while (iterator.hasNext()) {
+			iterator.next();
+			count++;
+		}
+		return count;
+	}
+
+	private String line(int i) {
+		return i + "," + (1000 - i) + ",name";
+	}
+
+	private void fillIndex(Index index) {
+		for (int i = 0; i < 100; i++)
+			index.addLine(line(i), i * 10L, i * 10L + 9L);
+	}
+
+	private IndexBuilder setupBuilder(Range firstColumn, Range secondColumn) {
+		IndexBuilder b = new IndexBuilder()
+				.indexRootFolder(indexRootFolder)
+				.primaryIndex()
+				.valueSerializer(StringCutSerializer.get(20))
+				.fileSplit(fileSplit)
+				.cacheSize(1000)
+				.treePageSize(4 * 1024)
+				.keyExtractor(new IntegerCSVExtractor(0, ","))
+				.keySerializer(IntegerSerializer.INSTANCE)
+				.comparator(IntegerComparator.INSTANCE);
+
+		if (firstColumn != null)
+			b.addDefaultRange(firstColumn);
+
+		List<Range> secondRanges = secondColumn == null ? null : Lists.newArrayList(secondColumn);
+		return b.alsoIndex(new IntegerCSVExtractor(1, ","), IntegerSerializer.INSTANCE, IntegerComparator.INSTANCE,
+				secondRanges);
+	}
+
+	/** splits at a regular expression and records the lines it extracts from */
+	private static class RecordingExtractor extends IntegerCSVExtractor {
+		private final List<String> lines;
+
+		RecordingExtractor(int column, List<String> lines) {
+			super(column, ",+");
+			this.lines = lines;
+		}
+
+		@Override
+		public Integer extract(String line) throws ExtractionException {
+			lines.add(line);
+			return super.extract(line);
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package de.rwhq.hdfs.index;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class HeapValueStoreTest {
+	private static final File   FOLDER  = new File("/tmp/heapValueStoreTest");
+	private static final String PARTIAL = FOLDER + "/0_1";
+
+	private HeapValueStore store;
+
+	@Before
+	public void setUp() throws IOException {
+		FileUtils.deleteDirectory(FOLDER);
+		FOLDER.mkdirs();
+		store = new HeapValueStore(16);
+	}
+
+	@Test
+	public void valuesOfAnyLength() throws IOException {
+		byte[] small = {1, 2, 3};
+		// the length does not fit into the reference
+		byte[] large = new byte[(1 << 24) + 10];
+		Arrays.fill(large, (byte) 7);
+
+		ValueStore.Writer writer = store.create(PARTIAL);
+		long first = writer.append(small, 0, small.length);
+		long second = writer.append(large, 0, large.length);
+		long third = writer.append(small, 1, 2);
+		writer.close();
+
+		assertThat(new File(PARTIAL + ValueStore.SUFFIX).length()).isEqualTo(3 + 4 + large.length + 2);
+
+		ValueStore.Reader reader = store.open(PARTIAL);
+		assertThat(reader.length(first)).isEqualTo(3);
+		assertThat(reader.length(second)).isEqualTo(large.length);
+		assertThat(reader.length(third)).isEqualTo(2);
+
+		byte[] value = new byte[large.length];
+		reader.read(second, value);
+		assertThat(value).isEqualTo(large);
+		reader.read(third, value);
+		assertThat(Arrays.copyOf(value, 2)).isEqualTo(new byte[]{2, 3});
+		reader.read(first, value);
+		assertThat(Arrays.copyOf(value, 3)).isEqualTo(small);
+		reader.close();
+	}
+}
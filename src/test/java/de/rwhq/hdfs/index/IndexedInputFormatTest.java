@@ -0,0 +1,198 @@
+package de.rwhq.hdfs.index;
+
+import com.google.common.collect.Lists;
+import de.rwhq.btree.Range;
+import de.rwhq.comparator.IntegerComparator;
+import de.rwhq.hdfs.index.extractor.IntegerCSVExtractor;
+import de.rwhq.serializer.IntegerSerializer;
+import de.rwhq.serializer.StringCutSerializer;
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.JobID;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import static de.rwhq.hdfs.index.IndexedInputFormat.Coverage.EMPTY;
+import static de.rwhq.hdfs.index.IndexedInputFormat.Coverage.INDEXED;
+import static de.rwhq.hdfs.index.IndexedInputFormat.Coverage.NOT_INDEXED;
+import static org.fest.assertions.Assertions.assertThat;
+
+public class IndexedInputFormatTest {
+	private static final File   FOLDER = new File("/tmp/indexedInputFormatTest");
+	private static final File   INDEX  = new File(FOLDER, "index");
+	private static final String INPUT  = FOLDER + "/input";
+
+	private Configuration conf;
+	private FileSystem    fs;
+	private Path          indexed;
+	private Path          notIndexed;
+	private List<String>  matching = Lists.newArrayList();
+
+	@Before
+	public void setUp() throws IOException {
+		FileUtils.deleteDirectory(FOLDER);
+		INDEX.mkdirs();
+
+		conf = new Configuration();
+		conf.setLong("mapred.max.split.size", 1000);
+		conf.set("mapred.input.dir", INPUT);
+		conf.setClass("indexBuilder", Builder.class, IndexBuilder.class);
+		fs = FileSystem.getLocal(conf);
+
+		indexed = fs.makeQualified(new Path(INPUT, "indexed.csv"));
+		notIndexed = fs.makeQualified(new Path(INPUT, "notIndexed.csv"));
+		for (Path file : new Path[]{indexed, notIndexed}) {
+			OutputStream out = fs.create(file);
+			for (int i = 0; i < 1000; i++)
+				out.write((i + ",name," + (1000 - i) + "\n").getBytes());
+			out.close();
+		}
+
+		for (int i = 100; i <= 150; i++)
+			matching.add(i + ",name," + (1000 - i));
+	}
+
+	@Test
+	public void coverage() throws IOException {
+		FileStatus status = fs.getFileStatus(indexed);
+		List<FileSplit> splits = new IndexedInputFormat().getSplits(status, conf);
+		assertThat(splits.size()).isGreaterThan(4);
+
+		assertThat(new IndexedInputFormat().getCoverage(status, splits, conf)).containsOnly(NOT_INDEXED);
+
+		new BulkIndexer(conf, CompositeBuilder.class, 2).build(indexed);
+
+		// the lines with keys 100 to 150 are in the second split. Its partial ends with the line read beyond the split,
+		// which overlaps the third split
+		List<IndexedInputFormat.Coverage> coverage = new IndexedInputFormat().getCoverage(status, splits, conf);
+		assertThat(coverage).hasSize(splits.size());
+		assertThat(coverage.subList(0, 3)).containsExactly(EMPTY, INDEXED, INDEXED);
+		assertThat(coverage.subList(3, coverage.size())).containsOnly(EMPTY);
+
+		// the coverage of a composite index is the one of its query index, which matches the same lines
+		conf.setClass("indexBuilder", CompositeBuilder.class, IndexBuilder.class);
+		assertThat(new IndexedInputFormat().getCoverage(status, splits, conf)).isEqualTo(coverage);
+	}
+
+	@Test
+	public void pruneAndCombineSplits() throws IOException {
+		new BulkIndexer(conf, Builder.class, 2).build(indexed);
+		int fileSplits = new IndexedInputFormat().getSplits(fs.getFileStatus(indexed), conf).size();
+
+		List<InputSplit> splits = getSplits(false, 0);
+		assertThat(splits).hasSize(2 * fileSplits);
+		assertThat(countCombined(splits)).isEqualTo(0);
+
+		// only the two splits that may contain matching lines are left of the indexed file
+		splits = getSplits(true, 0);
+		assertThat(splits).hasSize(fileSplits + 2);
+		assertThat(countCombined(splits)).isEqualTo(0);
+
+		// the splits of the file without index are not combined
+		splits = getSplits(false, 1000000);
+		assertThat(splits).hasSize(fileSplits + 1);
+		assertThat(((CombinedIndexedSplit) splits.get(fileSplits)).getSplits()).hasSize(fileSplits);
+
+		splits = getSplits(true, 1000000);
+		assertThat(splits).hasSize(fileSplits + 1);
+		assertThat(((CombinedIndexedSplit) splits.get(fileSplits)).getSplits()).hasSize(2);
+		for (InputSplit split : splits.subList(0, fileSplits))
+			assertThat(((FileSplit) split).getPath()).isEqualTo(notIndexed);
+	}
+
+	@Test
+	public void readCombinedSplits() throws IOException, InterruptedException {
+		new BulkIndexer(conf, Builder.class, 2).build(indexed);
+		List<InputSplit> splits = getSplits(true, 1000000);
+		CombinedIndexedSplit combined = (CombinedIndexedSplit) splits.get(splits.size() - 1);
+
+		List<String> expected = Lists.newArrayList();
+		for (FileSplit split : combined.getSplits())
+			expected.addAll(read(new IndexedRecordReader(), split));
+
+		List<String> lines = read(new IndexedInputFormat().createRecordReader(combined, null), combined);
+		assertThat(lines).isEqualTo(expected);
+		assertThat(lines).hasSize(matching.size()).containsOnly(matching.toArray());
+	}
+
+	private List<InputSplit> getSplits(boolean prune, long combinedSplitSize) throws IOException {
+		Configuration jobConf = new Configuration(conf);
+		jobConf.setBoolean(IndexedInputFormat.PRUNE_SPLITS, prune);
+		jobConf.setLong(IndexedInputFormat.COMBINED_SPLIT_SIZE, combinedSplitSize);
+
+		return new IndexedInputFormat().getSplits(new JobContext(jobConf, new JobID()));
+	}
+
+	private int countCombined(List<InputSplit> splits) {
+		int count = 0;
+		for (InputSplit split : splits) {
+			if (split instanceof CombinedIndexedSplit)
+				count++;
+		}
+		return count;
+	}
+
+	private List<String> read(RecordReader<LongWritable, Text> reader, InputSplit split)
+			throws IOException, InterruptedException {
+		reader.initialize(split, new TaskAttemptContext(conf, new TaskAttemptID()));
+
+		List<String> lines = Lists.newArrayList();
+		while (reader.nextKeyValue())
+			lines.add(reader.getCurrentValue().toString());
+		reader.close();
+
+		return lines;
+	}
+
+	public static class Builder extends AbstractIndexBuilder {
+		@Override
+		public IndexBuilder configure(IndexBuilder builder) {
+			return builder
+					.indexRootFolder(INDEX)
+					.primaryIndex()
+					.spillToDisk()
+					.cacheSize(10)
+					.keySerializer(IntegerSerializer.INSTANCE)
+					.valueSerializer(StringCutSerializer.get(20))
+					.keyExtractor(new IntegerCSVExtractor(0, ","))
+					.addDefaultRange(new Range(100, 150))
+					.treePageSize(4 * 1024)
+					.comparator(IntegerComparator.INSTANCE);
+		}
+	}
+
+	/** indexes the first column too, lines are served from the third one */
+	public static class CompositeBuilder extends AbstractIndexBuilder {
+		@Override
+		public IndexBuilder configure(IndexBuilder builder) {
+			return builder
+					.indexRootFolder(INDEX)
+					.primaryIndex()
+					.spillToDisk()
+					.cacheSize(10)
+					.keySerializer(IntegerSerializer.INSTANCE)
+					.valueSerializer(StringCutSerializer.get(20))
+					.keyExtractor(new IntegerCSVExtractor(0, ","))
+					.treePageSize(4 * 1024)
+					.comparator(IntegerComparator.INSTANCE)
+					.alsoIndex(new IntegerCSVExtractor(2, ","), IntegerSerializer.INSTANCE, IntegerComparator.INSTANCE,
+							Lists.newArrayList(new Range(850, 900)));
+		}
+	}
+}
@@ -143,7 +143,7 @@ public abstract class IndexedRecordReaderTest {
 
 		assertThat(out).isEqualTo("1\t5\n2\t5\n3\t7\n4\t5\n");
 		assertThat(new File(INDEX.getAbsolutePath() + INPUT_FILE_PATH)).isDirectory();
-		assertThat(new File(INDEX.getAbsolutePath() + INPUT_FILE_PATH + "/properties")).isFile();
+		assertThat(new File(INDEX.getAbsolutePath() + INPUT_FILE_PATH + "/properties_0")).isFile();
 		assertThat(new File(INDEX.getAbsolutePath() + INPUT_FILE_PATH).list().length).isGreaterThan(1);
 		assertThat(SpyBuilder.instances).hasSize(1);
 		verify(SpyBuilder.instances.get(0), atLeastOnce()).addLine(anyString(), anyLong(), anyLong());
@@ -36,4 +36,51 @@ public class MFIPropertiesTest {
 		SortedSet<Range<Long>> ranges = properties.toRanges(100L, 199L);
 		assertThat(ranges).hasSize(1);
 	}
+
+	@Test
+	public void toRangeOwnsPropertiesStartingInIt() {
+		assertThat(properties.toRanges(50L, 150L)).containsOnly(new Range<Long>(100L, 199L));
+		assertThat(properties.toRanges(0L, 100L)).containsOnly(new Range<Long>(0L, 99L), new Range<Long>(100L, 199L));
+		assertThat(properties.toRanges(101L, 199L)).isEmpty();
+	}
+
+	@Test
+	public void propertyForPos() {
+		assertThat(properties.propertyForPos(0L).filePath).isEqualTo("/a");
+		assertThat(properties.propertyForPos(150L).filePath).isEqualTo("/b");
+		assertThat(properties.propertyForPos(299L).filePath).isEqualTo("/c");
+		assertThat(properties.propertyForPos(300L)).isNull();
+		assertThat(properties.propertyForPos(-1L)).isNull();
+	}
+
+	@Test
+	public void propertyForPosWithOverlappingProperties() {
+		properties.asList().add(new MFIProperties.MFIProperty("/d", 50L, 500L));
+		properties.asList().add(new MFIProperties.MFIProperty("/e", 400L, 410L));
+
+		assertThat(properties.propertyForPos(450L).filePath).isEqualTo("/d");
+		assertThat(properties.propertyForPos(405L).filePath).isIn("/d", "/e");
+		assertThat(properties.propertyForPos(501L)).isNull();
+	}
+
+	@Test
+	public void lookupsSeeChangedProperties() throws IOException {
+		assertThat(properties.contains(350L)).isFalse();
+
+		// as done when extending a partial
+		properties.propertyForPos(299L).endPos = 399L;
+		properties.write();
+		assertThat(properties.contains(350L)).isTrue();
+
+		List<MFIProperties.MFIProperty> list = properties.asList();
+		assertThat(properties.contains(450L)).isFalse();
+		list.add(new MFIProperties.MFIProperty("/d", 400L, 499L));
+		assertThat(properties.contains(450L)).isTrue();
+	}
+
+	@Test
+	public void getPropertyForRange() {
+		assertThat(properties.getPropertyForRange(new Range<Long>(100L, 199L)).filePath).isEqualTo("/b");
+		assertThat(properties.getPropertyForRange(new Range<Long>(100L, 198L))).isNull();
+	}
 }
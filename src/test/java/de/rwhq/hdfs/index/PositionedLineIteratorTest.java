@@ -0,0 +1,108 @@
+package de.rwhq.hdfs.index;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class PositionedLineIteratorTest {
+	private File              file = new File("/tmp/positionedLineIteratorTest");
+	private FSDataInputStream in;
+	private List<Long>        positions;
+
+	@Before
+	public void setUp() throws IOException {
+		StringBuilder content = new StringBuilder();
+		positions = Lists.newArrayList();
+		for (int i = 0; i < 100; i++) {
+			positions.add((long) content.length());
+			content.append(i).append(",name\n");
+		}
+
+		// no line terminator at the end of the file
+		positions.add((long) content.length());
+		content.append("last");
+
+		FileUtils.writeStringToFile(file, content.toString());
+		in = FileSystem.getLocal(new Configuration()).open(new Path(file.getPath()));
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		in.close();
+		file.delete();
+	}
+
+	@Test
+	public void linesInPositionOrder() throws IOException {
+		List<Long> unsorted = Arrays.asList(positions.get(50), positions.get(3), positions.get(99), positions.get(4));
+		List<String> lines = Lists.newArrayList(new PositionedLineIterator(unsorted.iterator(), in, 10, 100));
+
+		assertThat(lines).containsExactly("3,name", "4,name", "50,name", "99,name");
+	}
+
+	@Test
+	public void allLinesWithSmallBatchesAndGaps() throws IOException {
+		List<String> lines = Lists.newArrayList(new PositionedLineIterator(positions.iterator(), in, 7, 0));
+
+		assertThat(lines).hasSize(101);
+		assertThat(lines.get(0)).isEqualTo("0,name");
+		assertThat(lines.get(99)).isEqualTo("99,name");
+		assertThat(lines.get(100)).isEqualTo("last");
+	}
+
+	@Test
+	public void exactReadsWithLengths() throws IOException {
+		List<Long> values = Lists.newArrayList();
+		for (int i : new int[]{60, 10, 11, 99})
+			values.add(positions.get(i) << SecondaryIndex.LENGTH_BITS | (positions.get(i + 1) - positions.get(i)));
+
+		// the line is too long to store its length
+		values.add(positions.get(5) << SecondaryIndex.LENGTH_BITS);
+
+		List<String> lines = Lists.newArrayList(new PositionedLineIterator(values.iterator(), in, 10, 100, true));
+		assertThat(lines).containsExactly("5,name", "10,name", "11,name", "60,name", "99,name");
+	}
+
+	@Test
+	public void packedValuesSortLikePositions() {
+		long last = SecondaryIndex.MAX_POSITION << SecondaryIndex.LENGTH_BITS | SecondaryIndex.MAX_LENGTH;
+
+		assertThat(last).isGreaterThan(0);
+		assertThat(last).isGreaterThan((SecondaryIndex.MAX_POSITION - 1) << SecondaryIndex.LENGTH_BITS);
+	}
+
+	@Test
+	public void streamPositionIsNotChanged() throws IOException {
+		in.seek(42);
+		Lists.newArrayList(new PositionedLineIterator(positions.iterator(), in, 500, 64 * 1024));
+
+		assertThat(in.getPos()).isEqualTo(42);
+	}
+
+	@Test
+	public void linesLongerThanTheReadAhead() throws IOException {
+		String longLine = Strings.repeat("x", 5000);
+		FileUtils.writeStringToFile(file, "a\r\n" + longLine + "\nb\n");
+		in.close();
+		in = FileSystem.getLocal(new Configuration()).open(new Path(file.getPath()));
+
+		List<String> lines = Lists.newArrayList(new PositionedLineIterator(Arrays.asList(0L, 3L, 5004L).iterator(), in,
+				10, 0));
+
+		assertThat(lines).containsExactly("a", longLine, "b");
+	}
+}
@@ -1,10 +1,27 @@
 package de.rwhq.hdfs.index;
 
+import com.google.common.collect.Lists;
+import de.rwhq.comparator.IntegerComparator;
+import de.rwhq.hdfs.index.extractor.CSVProjection;
+import de.rwhq.hdfs.index.extractor.IntegerCSVExtractor;
+import de.rwhq.serializer.IntegerSerializer;
 import de.rwhq.serializer.StringCutSerializer;
+import org.apache.commons.io.filefilter.SuffixFileFilter;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 import org.junit.Test;
 import org.junit.experimental.runners.Enclosed;
 import org.junit.runner.RunWith;
 
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
 @RunWith(Enclosed.class)
 public class PrimaryIndexTest {
 
@@ -19,6 +36,73 @@ public class PrimaryIndexTest {
 			return b.primaryIndex().valueSerializer(StringCutSerializer.get(500));
 		}
 
+		@Test
+		public void storeProjectedLines() throws IOException {
+			IndexBuilder b = projectingBuilder(new CSVProjection(",", 0, 2));
+
+			Index index = b.build();
+			index.open();
+			index.addLine("1,Peter,Berlin,42", 0, 17);
+			index.addLine("2,Paul,Hamburg,23".getBytes(), 0, 17, 18, 35);
+			index.close();
+
+			index = b.build();
+			index.open();
+			assertThat(Lists.newArrayList(index.getIterator())).containsExactly("1,,Berlin", "2,,Hamburg");
+			assertThat(new File("/tmp/primaryIndexTest/path/to/hdfs/projected.csv/properties_0p0.2")).exists();
+			index.close();
+		}
+
+		@Test(expected = IllegalArgumentException.class)
+		public void projectionMustKeepTheKey() {
+			projectingBuilder(new CSVProjection(",", 1, 2)).build();
+		}
+
+		@Test
+		public void storeLinesInValueHeap() throws IOException {
+			char[] chars = new char[3000];
+			Arrays.fill(chars, 'x');
+			String longLine = "2," + new String(chars);
+
+			// longer than the value serializer, lines of the heap are not cut
+			IndexBuilder b = builder("/path/to/hdfs/heap.csv").valueHeap();
+
+			Index index = b.build();
+			index.open();
+			index.addLine("1,short", 0, 7);
+			index.addLine(longLine, 8, 8 + longLine.length());
+			index.close();
+
+			index = b.build();
+			index.open();
+			assertThat(Lists.newArrayList(index.getIterator())).containsExactly("1,short", longLine);
+			index.close();
+
+			File folder = new File("/tmp/primaryIndexTest/path/to/hdfs/heap.csv");
+			File[] values = folder.listFiles((FilenameFilter) new SuffixFileFilter(ValueStore.SUFFIX));
+			assertThat(values).hasSize(1);
+			// only the bytes of the lines are stored
+			assertThat(values[0].length()).isEqualTo(7 + longLine.length());
+		}
+
+		private IndexBuilder projectingBuilder(CSVProjection projection) {
+			return builder("/path/to/hdfs/projected.csv").projection(projection);
+		}
+
+		private IndexBuilder builder(String hdfsFile) {
+			FileSplit split = mock(FileSplit.class);
+			when(split.getLength()).thenReturn(10000L);
+			when(split.getPath()).thenReturn(new Path(hdfsFile));
+
+			return new IndexBuilder()
+					.indexRootFolder(new File("/tmp/primaryIndexTest"))
+					.primaryIndex()
+					.valueSerializer(StringCutSerializer.get(500))
+					.keyExtractor(new IntegerCSVExtractor(0, ","))
+					.keySerializer(IntegerSerializer.INSTANCE)
+					.comparator(IntegerComparator.INSTANCE)
+					.fileSplit(split);
+		}
 	}
 
 	public static class IndexedRecordReader extends IndexedRecordReaderTest {
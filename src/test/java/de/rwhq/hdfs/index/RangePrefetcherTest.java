@@ -0,0 +1,141 @@
+package de.rwhq.hdfs.index;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
+import de.rwhq.btree.Range;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class RangePrefetcherTest {
+	private Index index;
+	private Range<Long> first  = new Range<Long>(0L, 99L);
+	private Range<Long> second = new Range<Long>(100L, 199L);
+	private Range<Long> third  = new Range<Long>(300L, 399L);
+
+	/** ranges opened by the prefetcher */
+	private List<Range<Long>> opened = Collections.synchronizedList(Lists.<Range<Long>>newArrayList());
+
+	@Before
+	public void setUp() throws IOException {
+		index = mock(Index.class);
+		when(index.getIterator(first)).thenAnswer(records(first, "a", "b", "c"));
+		when(index.getIterator(second)).thenAnswer(records(second));
+		when(index.getIterator(third)).thenAnswer(records(third, "d", "e"));
+	}
+
+	private Answer<Iterator<String>> records(final Range<Long> range, final String... records) {
+		return new Answer<Iterator<String>>() {
+			@Override
+			public Iterator<String> answer(InvocationOnMock invocation) {
+				opened.add(range);
+				return Lists.newArrayList(records).iterator();
+			}
+		};
+	}
+
+	private void awaitOpened(Range<Long> range) throws InterruptedException {
+		for (int i = 0; i < 100 && !opened.contains(range); i++)
+			Thread.sleep(10);
+		assertThat(opened).contains(range);
+	}
+
+	@Test
+	public void rangesInOrder() {
+		// a queue smaller than a range, so the prefetcher has to wait for the reader
+		RangePrefetcher prefetcher = new RangePrefetcher(index, Lists.newArrayList(first, second, third), 1, 2);
+
+		assertThat(Lists.newArrayList(prefetcher.nextRange())).containsExactly("a", "b", "c");
+		assertThat(prefetcher.nextRange().hasNext()).isFalse();
+		assertThat(Lists.newArrayList(prefetcher.nextRange())).containsExactly("d", "e");
+		prefetcher.close();
+	}
+
+	@Test
+	public void openRangesAheadWhileRecordsAreBuffered() throws Exception {
+		// the queue is full with the records of the first range, the next ranges are opened anyway
+		RangePrefetcher prefetcher = new RangePrefetcher(index, Lists.newArrayList(first, second, third), 2, 1);
+		awaitOpened(third);
+
+		assertThat(Lists.newArrayList(prefetcher.nextRange())).containsExactly("a", "b", "c");
+		prefetcher.close();
+	}
+
+	@Test
+	public void openRangesWhenTheyAreTaken() throws Exception {
+		RangePrefetcher prefetcher = new RangePrefetcher(index, Lists.newArrayList(first, second, third), 1, 10);
+		awaitOpened(second);
+		Thread.sleep(100);
+		assertThat(opened).excludes(third);
+
+		Lists.newArrayList(prefetcher.nextRange());
+		assertThat(opened).excludes(third);
+		prefetcher.nextRange();
+		awaitOpened(third);
+		prefetcher.close();
+	}
+
+	@Test
+	public void closeWithoutInterrupting() throws Exception {
+		final AtomicInteger reads = new AtomicInteger();
+		final AtomicBoolean interrupted = new AtomicBoolean();
+		when(index.getIterator(first)).thenReturn(new AbstractIterator<String>() {
+			@Override
+			protected String computeNext() {
+				if (Thread.currentThread().isInterrupted())
+					interrupted.set(true);
+				return "record " + reads.incrementAndGet();
+			}
+		});
+
+		RangePrefetcher prefetcher = new RangePrefetcher(index, Lists.newArrayList(first, second), 1, 10);
+		assertThat(prefetcher.nextRange().next()).isEqualTo("record 1");
+		prefetcher.close();
+
+		Thread.sleep(100);
+		int readsAfterClose = reads.get();
+		Thread.sleep(100);
+		assertThat(reads.get()).isEqualTo(readsAfterClose);
+		assertThat(interrupted.get()).isFalse();
+	}
+
+	@Test
+	public void failureIsThrownByTheReader() throws IOException {
+		when(index.getIterator(second)).thenThrow(new IOException("broken partial"));
+		RangePrefetcher prefetcher = new RangePrefetcher(index, Lists.newArrayList(first, second, third), 2, 10);
+
+		assertThat(Lists.newArrayList(prefetcher.nextRange())).hasSize(3);
+		Iterator<String> records = prefetcher.nextRange();
+		try {
+			records.hasNext();
+			throw new AssertionError("expected the failure of the prefetcher");
+		} catch (RuntimeException e) {
+			assertThat(e.getCause()).isInstanceOf(IOException.class);
+		}
+		prefetcher.close();
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void noMoreRanges() {
+		List<Range<Long>> ranges = Lists.newArrayList(first);
+		RangePrefetcher prefetcher = new RangePrefetcher(index, ranges, 1, 10);
+		try {
+			Lists.newArrayList(prefetcher.nextRange());
+			prefetcher.nextRange();
+		} finally {
+			prefetcher.close();
+		}
+	}
+}
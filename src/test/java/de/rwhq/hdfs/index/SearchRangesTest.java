@@ -0,0 +1,55 @@
+package de.rwhq.hdfs.index;
+
+import com.google.common.collect.Lists;
+import de.rwhq.btree.Range;
+import de.rwhq.comparator.IntegerComparator;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class SearchRangesTest {
+
+	@Test
+	public void emptyMatchesEverything() {
+		SearchRanges<Integer> ranges =
+				new SearchRanges<Integer>(Lists.<Range<Integer>>newArrayList(), IntegerComparator.INSTANCE);
+
+		assertThat(ranges.isEmpty()).isTrue();
+		assertThat(ranges.contains(Integer.MIN_VALUE)).isTrue();
+		assertThat(ranges.contains(5)).isTrue();
+	}
+
+	@Test
+	public void overlappingRanges() {
+		List<Range<Integer>> list = Lists.newArrayList();
+		list.add(new Range<Integer>(20, 30));
+		list.add(new Range<Integer>(1, 3));
+		list.add(new Range<Integer>(2, 5));
+		list.add(new Range<Integer>(22, 25));
+		list.add(new Range<Integer>(40, 40));
+		SearchRanges<Integer> ranges = new SearchRanges<Integer>(list, IntegerComparator.INSTANCE);
+
+		for (int i = 0; i < 50; i++) {
+			boolean expected = (i >= 1 && i <= 5) || (i >= 20 && i <= 30) || i == 40;
+			assertThat(ranges.contains(i)).as("" + i).isEqualTo(expected);
+		}
+	}
+
+	@Test
+	public void openRanges() {
+		List<Range<Integer>> list = Lists.newArrayList();
+		list.add(new Range<Integer>(null, -10));
+		list.add(new Range<Integer>(10, 20));
+		list.add(new Range<Integer>(100, null));
+		SearchRanges<Integer> ranges = new SearchRanges<Integer>(list, IntegerComparator.INSTANCE);
+
+		assertThat(ranges.contains(Integer.MIN_VALUE)).isTrue();
+		assertThat(ranges.contains(-10)).isTrue();
+		assertThat(ranges.contains(-9)).isFalse();
+		assertThat(ranges.contains(15)).isTrue();
+		assertThat(ranges.contains(99)).isFalse();
+		assertThat(ranges.contains(Integer.MAX_VALUE)).isTrue();
+	}
+}
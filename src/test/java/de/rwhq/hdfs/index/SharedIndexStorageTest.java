@@ -0,0 +1,177 @@
+package de.rwhq.hdfs.index;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class SharedIndexStorageTest {
+	private static final File   FOLDER    = new File("/tmp/sharedIndexStorageTest");
+	private static final String HDFS_FILE = "/path/to/file.csv";
+
+	private File               localFolder;
+	private File               cacheFolder;
+	private SharedIndexStorage storage;
+
+	@Before
+	public void setUp() throws IOException {
+		FileUtils.deleteDirectory(FOLDER);
+		localFolder = new File(FOLDER, "local" + HDFS_FILE);
+		localFolder.mkdirs();
+		cacheFolder = new File(FOLDER, "cache");
+
+		// the cache holds two partials of 1000 bytes
+		storage = new SharedIndexStorage(FileSystem.getLocal(new Configuration()), new Path(FOLDER.getPath(), "shared"),
+				cacheFolder, 2500, HDFS_FILE, "0");
+	}
+
+	private MFIProperties.MFIProperty writePartial(String name, long start) throws IOException {
+		File partial = new File(localFolder, name);
+		FileUtils.writeByteArrayToFile(partial, new byte[1000]);
+		FileUtils.writeByteArrayToFile(new File(partial.getPath() + PartialBloomFilter.SUFFIX), new byte[10]);
+
+		return new MFIProperties.MFIProperty(partial.getPath(), start, start + 99);
+	}
+
+	@Test
+	public void publishAndRead() throws IOException {
+		assertThat(storage.read()).isEmpty();
+
+		MFIProperties.MFIProperty p = writePartial("0_1", 0);
+		assertThat(storage.publish(Arrays.asList(p))).isTrue();
+		// publishing again does not add the partial twice
+		assertThat(storage.publish(Arrays.asList(p))).isTrue();
+
+		List<MFIProperties.MFIProperty> shared = storage.read();
+		assertThat(shared).hasSize(1);
+		assertThat(shared.get(0).startPos).isEqualTo(0L);
+		assertThat(shared.get(0).endPos).isEqualTo(99L);
+		assertThat(storage.isCached(shared.get(0).filePath)).isTrue();
+
+		storage.localize(shared.get(0).filePath);
+		assertThat(new File(shared.get(0).filePath)).exists().hasSize(1000);
+		assertThat(new File(shared.get(0).filePath + PartialBloomFilter.SUFFIX)).exists();
+	}
+
+	@Test
+	public void evictLeastRecentlyUsedPartials() throws IOException {
+		storage.publish(Arrays.asList(writePartial("0_1", 0), writePartial("0_2", 100), writePartial("0_3", 200)));
+		List<MFIProperties.MFIProperty> shared = storage.read();
+		String first = shared.get(0).filePath;
+		String second = shared.get(1).filePath;
+		String third = shared.get(2).filePath;
+
+		storage.localize(first);
+		storage.localize(second);
+		markUsed(first, SharedIndexStorage.EVICTION_GRACE_TIME + 20000);
+		markUsed(second, SharedIndexStorage.EVICTION_GRACE_TIME + 10000);
+		assertThat(new File(first)).exists();
+
+		storage.localize(third);
+		assertThat(new File(first)).doesNotExist();
+		assertThat(new File(first + PartialBloomFilter.SUFFIX)).doesNotExist();
+		assertThat(new File(second)).exists();
+		assertThat(new File(third)).exists();
+
+		// evicted partials are copied again
+		storage.localize(first);
+		assertThat(new File(first)).exists();
+	}
+
+	private static void markUsed(String partial, long millisAgo) {
+		new File(partial + SharedIndexStorage.USED_SUFFIX).setLastModified(System.currentTimeMillis() - millisAgo);
+	}
+
+	@Test
+	public void keepRecentlyUsedPartials() throws IOException {
+		storage.publish(Arrays.asList(writePartial("0_1", 0), writePartial("0_2", 100), writePartial("0_3", 200)));
+		for (MFIProperties.MFIProperty p : storage.read())
+			storage.localize(p.filePath);
+
+		// the cache is larger than its maximum size, but another JVM may be about to open the partials
+		for (MFIProperties.MFIProperty p : storage.read())
+			assertThat(new File(p.filePath)).exists();
+	}
+
+	@Test
+	public void localizeDoesNotTouchTheTree() throws IOException {
+		storage.publish(Arrays.asList(writePartial("0_1", 0)));
+		String partial = storage.read().get(0).filePath;
+		storage.localize(partial);
+
+		long lastModified = System.currentTimeMillis() - 10000;
+		new File(partial).setLastModified(lastModified);
+		storage.localize(partial);
+		assertThat(new File(partial).lastModified()).isEqualTo(lastModified);
+	}
+
+	@Test
+	public void keepPreviousProperties() throws IOException {
+		Path shared = new Path(FOLDER.getPath(), "shared" + HDFS_FILE);
+		FileSystem fs = FileSystem.getLocal(new Configuration());
+
+		storage.publish(Arrays.asList(writePartial("0_1", 0)));
+		storage.publish(Arrays.asList(writePartial("0_2", 100)));
+		storage.publish(Arrays.asList(writePartial("0_3", 200)));
+
+		assertThat(fs.exists(new Path(shared, "properties_0.0"))).isFalse();
+		assertThat(fs.exists(new Path(shared, "properties_0.1"))).isTrue();
+		assertThat(fs.exists(new Path(shared, "properties_0.2"))).isTrue();
+		assertThat(storage.read()).hasSize(3);
+	}
+
+	@Test
+	public void replaceMergedPartials() throws IOException {
+		MFIProperties.MFIProperty first = writePartial("0_1", 0);
+		MFIProperties.MFIProperty second = writePartial("0_2", 100);
+		storage.publish(Arrays.asList(first, second, writePartial("0_3", 200)));
+
+		MFIProperties.MFIProperty merged = writePartial("0_4", 0);
+		merged.endPos = 199L;
+		assertThat(storage.replace(Arrays.asList(first, second), merged)).isTrue();
+
+		List<MFIProperties.MFIProperty> shared = storage.read();
+		assertThat(shared).hasSize(2);
+		assertThat(shared.get(0).getFile().getName()).isEqualTo("0_3");
+		assertThat(shared.get(1).getFile().getName()).isEqualTo("0_4");
+		assertThat(shared.get(1).endPos).isEqualTo(199L);
+
+		storage.localize(shared.get(1).filePath);
+		assertThat(new File(shared.get(1).filePath)).exists().hasSize(1000);
+
+		// nodes that read the properties before may still copy the replaced partials
+		assertThat(new File(FOLDER, "shared" + HDFS_FILE + "/0_1")).exists();
+	}
+
+	@Test
+	public void doNotPublishWhileLocked() throws IOException {
+		FileSystem fs = FileSystem.getLocal(new Configuration());
+		Path lock = new Path(FOLDER.getPath(), "shared" + HDFS_FILE + "/lock_0");
+		fs.createNewFile(lock);
+
+		assertThat(storage.publish(Arrays.asList(writePartial("0_1", 0)))).isFalse();
+		assertThat(storage.read()).isEmpty();
+		assertThat(fs.exists(new Path(FOLDER.getPath(), "shared" + HDFS_FILE + "/0_1"))).isFalse();
+	}
+
+	@Test
+	public void removeStaleLock() throws IOException {
+		File lock = new File(FOLDER, "shared" + HDFS_FILE + "/lock_0");
+		lock.getParentFile().mkdirs();
+		lock.createNewFile();
+		lock.setLastModified(System.currentTimeMillis() - SharedIndexStorage.STALE_LOCK_AGE - 10000);
+
+		assertThat(storage.publish(Arrays.asList(writePartial("0_1", 0)))).isTrue();
+		assertThat(storage.read()).hasSize(1);
+		assertThat(lock).doesNotExist();
+	}
+}
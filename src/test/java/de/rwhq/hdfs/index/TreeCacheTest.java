@@ -0,0 +1,108 @@
+package de.rwhq.hdfs.index;
+
+import de.rwhq.btree.BTree;
+import de.rwhq.comparator.IntegerComparator;
+import de.rwhq.io.rm.ResourceManagerBuilder;
+import de.rwhq.serializer.IntegerSerializer;
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class TreeCacheTest {
+	private File folder = new File("/tmp/treeCacheTest");
+
+	private TreeCache cache;
+	private int       loads;
+
+	private TreeCache.Loader<Integer, Integer> loader = new TreeCache.Loader<Integer, Integer>() {
+		@Override
+		public BTree<Integer, Integer> load(String path) throws IOException {
+			loads++;
+			return BTree.create(new ResourceManagerBuilder().file(path).open().build(), IntegerSerializer.INSTANCE,
+					IntegerSerializer.INSTANCE, IntegerComparator.INSTANCE);
+		}
+	};
+
+	@Before
+	public void setUp() throws IOException {
+		FileUtils.deleteDirectory(folder);
+		folder.mkdir();
+		cache = new TreeCache(2);
+		loads = 0;
+	}
+
+	@Test
+	public void loadOnlyOnce() throws IOException {
+		BTree<Integer, Integer> tree = cache.acquire(partial("a"), loader);
+		cache.release(tree);
+
+		assertThat(cache.acquire(partial("a"), loader)).isSameAs(tree);
+		assertThat(loads).isEqualTo(1);
+	}
+
+	@Test
+	public void evictLeastRecentlyUsed() throws IOException {
+		cache.release(cache.acquire(partial("a"), loader));
+		cache.release(cache.acquire(partial("b"), loader));
+		cache.release(cache.acquire(partial("a"), loader));
+		cache.release(cache.acquire(partial("c"), loader));
+		assertThat(cache.size()).isEqualTo(2);
+
+		cache.release(cache.acquire(partial("a"), loader));
+		assertThat(loads).isEqualTo(3);
+		cache.release(cache.acquire(partial("b"), loader));
+		assertThat(loads).isEqualTo(4);
+	}
+
+	@Test
+	public void neverEvictTreesInUse() throws IOException {
+		BTree<Integer, Integer> a = cache.acquire(partial("a"), loader);
+		BTree<Integer, Integer> b = cache.acquire(partial("b"), loader);
+		BTree<Integer, Integer> c = cache.acquire(partial("c"), loader);
+		assertThat(cache.size()).isEqualTo(3);
+
+		assertThat(cache.acquire(partial("a"), loader)).isSameAs(a);
+		cache.release(a);
+		cache.release(a);
+		cache.release(b);
+		cache.release(c);
+		assertThat(cache.size()).isEqualTo(2);
+	}
+
+	@Test
+	public void reloadInvalidatedTrees() throws IOException {
+		BTree<Integer, Integer> tree = cache.acquire(partial("a"), loader);
+		cache.invalidate(partial("a"));
+
+		assertThat(cache.acquire(partial("a"), loader)).isNotSameAs(tree);
+		cache.release(tree);
+		assertThat(loads).isEqualTo(2);
+	}
+
+	@Test
+	public void reloadModifiedPartials() throws IOException {
+		cache.release(cache.acquire(partial("a"), loader));
+		new File(partial("a")).setLastModified(System.currentTimeMillis() - 10000);
+
+		cache.release(cache.acquire(partial("a"), loader));
+		assertThat(loads).isEqualTo(2);
+		assertThat(cache.size()).isEqualTo(1);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void releaseUnknownTree() throws IOException {
+		cache.release(loader.load(partial("a")));
+	}
+
+	private String partial(String name) throws IOException {
+		File file = new File(folder, name);
+		if (!file.exists())
+			FileUtils.touch(file);
+		return file.getPath();
+	}
+}
@@ -0,0 +1,43 @@
+package de.rwhq.hdfs.index;
+
+import com.google.common.base.Charsets;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class Utf8CutSerializerTest {
+	private Utf8CutSerializer serializer = Utf8CutSerializer.get(10);
+
+	@Test
+	public void serializeBytesLikeStrings() {
+		byte[] bytes = "xx1,name".getBytes(Charsets.UTF_8);
+
+		assertThat(serializer.serialize(bytes, 2, 6)).isEqualTo(serializer.serialize("1,name"));
+		assertThat(serializer.serialize(bytes, 2, 6)).hasSize(10);
+		assertThat(serializer.deserialize(serializer.serialize(bytes, 2, 6))).isEqualTo("1,name");
+	}
+
+	@Test
+	public void serializeIntoBuffer() {
+		byte[] bytes = "xx1,name".getBytes(Charsets.UTF_8);
+
+		// the padding overwrites old bytes
+		ByteBuffer buffer = ByteBuffer.allocate(13);
+		buffer.put(new byte[]{9, 9, 9, 9, 9, 9, 9, 9, 9, 9, 9, 9, 9});
+		buffer.position(1);
+		serializer.serialize(bytes, 2, 6, buffer);
+
+		assertThat(buffer.position()).isEqualTo(11);
+		assertThat(Arrays.copyOfRange(buffer.array(), 1, 11)).isEqualTo(serializer.serialize("1,name"));
+	}
+
+	@Test
+	public void cutAtCharacterBoundary() {
+		// 7 ascii characters and a two byte character do not fit into 8 bytes
+		assertThat(serializer.deserialize(serializer.serialize("1234567\u00e4"))).isEqualTo("1234567");
+		assertThat(serializer.deserialize(serializer.serialize("123456\u00e4"))).isEqualTo("123456\u00e4");
+	}
+}
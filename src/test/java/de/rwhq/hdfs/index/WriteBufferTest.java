@@ -0,0 +1,117 @@
+package de.rwhq.hdfs.index;
+
+import com.google.common.collect.Lists;
+import de.rwhq.comparator.IntegerComparator;
+import de.rwhq.serializer.IntegerSerializer;
+import de.rwhq.serializer.LongSerializer;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class WriteBufferTest {
+	private WriteBuffer<Integer> buffer;
+
+	@Before
+	public void setUp() {
+		// 4 byte keys + 4 byte lengths + 8 byte values, room for 10 entries and one with a 5 byte value
+		buffer = new WriteBuffer<Integer>(IntegerSerializer.INSTANCE, 16 * 10 + 13);
+	}
+
+	@Test
+	public void capacityInBytes() {
+		assertThat(buffer.isEmpty()).isTrue();
+
+		for (int i = 0; i < 10; i++) {
+			assertThat(buffer.fits(8)).isTrue();
+			buffer.add(i, LongSerializer.INSTANCE.serialize((long) i));
+		}
+
+		assertThat(buffer.fits(8)).isFalse();
+		assertThat(buffer.fits(5)).isTrue();
+		assertThat(buffer.size()).isEqualTo(10);
+
+		buffer.clear();
+		assertThat(buffer.isEmpty()).isTrue();
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void addToFullBuffer() {
+		for (int i = 0; i < 11; i++)
+			buffer.add(i, LongSerializer.INSTANCE.serialize((long) i));
+	}
+
+	@Test
+	public void valuesOfAnyLength() {
+		buffer.add(2, new byte[]{1, 2, 3});
+		buffer.add(1, new byte[0]);
+		buffer.add(3, new byte[]{4});
+
+		buffer.sort(IntegerComparator.INSTANCE);
+		assertThat(buffer.getValue(0)).isEmpty();
+		assertThat(buffer.getValue(1)).isEqualTo(new byte[]{1, 2, 3});
+		assertThat(buffer.getValue(2)).isEqualTo(new byte[]{4});
+	}
+
+	@Test
+	public void emptyBufferTakesLargeEntries() {
+		assertThat(buffer.fits(1000)).isTrue();
+		buffer.add(1, new byte[1000]);
+		assertThat(buffer.getValue(0)).hasSize(1000);
+		assertThat(buffer.fits(0)).isFalse();
+	}
+
+	@Test
+	public void sortIsStable() {
+		int[] keys = {5, 3, 9, 3, -1, 5};
+		for (int i = 0; i < keys.length; i++)
+			buffer.add(keys[i], LongSerializer.INSTANCE.serialize((long) i));
+
+		buffer.sort(IntegerComparator.INSTANCE);
+		List<AbstractMap.SimpleEntry<Integer, byte[]>> entries = Lists.newArrayList(buffer.iterator());
+
+		assertThat(entries).hasSize(6);
+		int[] expectedKeys = {-1, 3, 3, 5, 5, 9};
+		long[] expectedValues = {4, 1, 3, 0, 5, 2};
+		for (int i = 0; i < entries.size(); i++) {
+			assertThat(entries.get(i).getKey()).isEqualTo(expectedKeys[i]);
+			assertThat(LongSerializer.INSTANCE.deserialize(entries.get(i).getValue())).isEqualTo(expectedValues[i]);
+		}
+	}
+
+	@Test
+	public void sortWithComparatorOfUnknownOrder() {
+		int[] keys = {5, 3, 9, -1};
+		for (int i = 0; i < keys.length; i++)
+			buffer.add(keys[i], LongSerializer.INSTANCE.serialize((long) i));
+
+		// the keys are deserialized for sorting
+		buffer.sort(Collections.reverseOrder(IntegerComparator.INSTANCE));
+		int[] expectedKeys = {9, 5, 3, -1};
+		for (int i = 0; i < keys.length; i++)
+			assertThat(buffer.getKey(i)).isEqualTo(expectedKeys[i]);
+	}
+
+	@Test
+	public void writeValuesIntoTheArena() {
+		buffer.append(1, 8).putLong(10);
+		buffer.commit();
+
+		// not committed, e.g. because the extraction failed
+		buffer.append(2, 8).putInt(20);
+		buffer.append(3, 8).put(new byte[]{1, 2});
+		buffer.commit();
+
+		assertThat(buffer.size()).isEqualTo(2);
+		assertThat(buffer.getKey(1)).isEqualTo(3);
+		assertThat(buffer.getValueLength(1)).isEqualTo(2);
+
+		byte[] value = new byte[8];
+		buffer.getValue(0, value);
+		assertThat(LongSerializer.INSTANCE.deserialize(value)).isEqualTo(10L);
+	}
+}
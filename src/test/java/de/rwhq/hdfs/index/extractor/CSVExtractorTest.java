@@ -0,0 +1,82 @@
+package de.rwhq.hdfs.index.extractor;
+
+import org.junit.Test;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class CSVExtractorTest {
+	private static final String LINE =
+			"196|135052|79|1|19|20653.95|0.03|0.02|R|F|1993-04-17|1993-05-27 12:30:05|sts maintain foxes|";
+
+	@Test
+	public void longColumn() throws ExtractionException {
+		LongCSVExtractor extractor = new LongCSVExtractor(1, "\\|");
+		assertThat(extract(extractor, LINE)).isEqualTo(135052L);
+		assertThat(extract(new LongCSVExtractor(0, ","), "-9223372036854775808,1")).isEqualTo(Long.MIN_VALUE);
+		assertThat(extractor.getId()).isEqualTo("1");
+	}
+
+	@Test(expected = ExtractionException.class)
+	public void longOverflow() throws ExtractionException {
+		new LongCSVExtractor(0, ",").extract("9223372036854775808,1");
+	}
+
+	@Test
+	public void doubleColumn() throws ExtractionException {
+		assertThat(extract(new DoubleCSVExtractor(5, "\\|"), LINE)).isEqualTo(20653.95);
+		assertThat(extract(new DoubleCSVExtractor(6, "\\|"), LINE)).isEqualTo(0.03);
+
+		String[] numbers = {"-1", "+.5", "1e3", "1.5E-7", "0.1234567890123456789", "NaN", "-0.0", "12345678901234567"};
+		for (String number : numbers)
+			assertThat(extract(new DoubleCSVExtractor(1, ","), "x," + number)).isEqualTo(Double.parseDouble(number));
+	}
+
+	@Test(expected = ExtractionException.class)
+	public void notADouble() throws ExtractionException {
+		new DoubleCSVExtractor(0, ",").extract("1.2.3,4");
+	}
+
+	@Test
+	public void dateColumn() throws ExtractionException {
+		assertThat(extract(new DateCSVExtractor(10, "\\|", "yyyy-MM-dd"), LINE)).isEqualTo(735004800000L);
+		assertThat(extract(new DateCSVExtractor(11, "\\|", "yyyy-MM-dd HH:mm:ss"), LINE)).isEqualTo(738505805000L);
+		assertThat(extract(new DateCSVExtractor(0, ",", "yyyyMMdd"), "19700101,x")).isEqualTo(0L);
+		assertThat(extract(new DateCSVExtractor(0, ",", "yyyyMMdd"), "19691231,x")).isEqualTo(-86400000L);
+	}
+
+	@Test(expected = ExtractionException.class)
+	public void dateNotMatchingPattern() throws ExtractionException {
+		new DateCSVExtractor(0, ",", "yyyy-MM-dd").extract("1993/04/17");
+	}
+
+	@Test
+	public void stringPrefix() throws ExtractionException {
+		assertThat(extract(new StringPrefixCSVExtractor(12, "\\|", 3), LINE)).isEqualTo("sts");
+		assertThat(extract(new StringPrefixCSVExtractor(8, "\\|", 3), LINE)).isEqualTo("R");
+		assertThat(extract(new StringPrefixCSVExtractor(0, ",", 2), "\u00e4\u00f6\u00fc,x")).isEqualTo("\u00e4\u00f6");
+	}
+
+	@Test(expected = ExtractionException.class)
+	public void missingColumn() throws ExtractionException {
+		new StringPrefixCSVExtractor(20, "\\|", 3).extract(LINE);
+	}
+
+	@Test
+	public void scanBytesOfSingleCharacterDelimiters() {
+		assertThat(new LongCSVExtractor(0, "\\|").scansBytes()).isTrue();
+		assertThat(new LongCSVExtractor(0, ";").scansBytes()).isTrue();
+		assertThat(new LongCSVExtractor(0, ",+").scansBytes()).isFalse();
+		assertThat(KeyExtractors.scansBytes(new LongCSVExtractor(0, ",+"))).isFalse();
+	}
+
+	/** extracts from the String and from the bytes, both must be equal */
+	private <T> T extract(AbstractCSVExtractor<T> extractor, String line) throws ExtractionException {
+		T fromString = extractor.extract(line);
+
+		byte[] bytes = ("##" + line).getBytes(com.google.common.base.Charsets.UTF_8);
+		T fromBytes = extractor.extract(bytes, 2, bytes.length - 2);
+
+		assertThat(fromBytes).isEqualTo(fromString);
+		return fromString;
+	}
+}
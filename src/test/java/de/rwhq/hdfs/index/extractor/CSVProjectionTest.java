@@ -0,0 +1,46 @@
+package de.rwhq.hdfs.index.extractor;
+
+import com.google.common.base.Charsets;
+import org.junit.Test;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class CSVProjectionTest {
+
+	@Test
+	public void keepColumnNumbers() {
+		CSVProjection projection = new CSVProjection(",", 2, 0);
+
+		assertThat(projection.project("1,Peter,Berlin,42")).isEqualTo("1,,Berlin");
+		assertThat(projection.project("1,Peter")).isEqualTo("1,");
+		assertThat(projection.project("")).isEqualTo("");
+		assertThat(projection.getId()).isEqualTo("0.2");
+	}
+
+	@Test
+	public void regularExpressionDelimiter() {
+		CSVProjection projection = new CSVProjection(";\\s*", 1);
+
+		assertThat(projection.project("1;  Peter; Berlin")).isEqualTo(";  Peter");
+	}
+
+	@Test
+	public void projectBytes() {
+		assertThat(project(new CSVProjection("\\|", 1, 3), "1|M\u00fcller|x|42|y")).isEqualTo("|M\u00fcller||42");
+		assertThat(project(new CSVProjection("\\|+", 1), "1||M\u00fcller|x")).isEqualTo("||M\u00fcller");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void noColumns() {
+		new CSVProjection(",");
+	}
+
+	private String project(Projection projection, String line) {
+		byte[] bytes = ("xx" + line).getBytes(Charsets.UTF_8);
+		byte[] out = new byte[bytes.length];
+		int length = projection.project(bytes, 2, bytes.length - 2, out);
+
+		assertThat(new String(out, 0, length, Charsets.UTF_8)).isEqualTo(projection.project(line));
+		return new String(out, 0, length, Charsets.UTF_8);
+	}
+}
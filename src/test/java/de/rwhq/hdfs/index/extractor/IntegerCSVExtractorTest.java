@@ -34,4 +34,37 @@ public class IntegerCSVExtractorTest {
 				"196|135052|79|1|19|20653.95|0.03|0.02|R|F|1993-04-17|1993-05-27|1993-04-30|NONE|SHIP|sts maintain foxes. furiously regular p|";
 		assertThat(extractor.extract(test)).isEqualTo(196);
 	}
+
+	@Test
+	public void extractFromBytes() throws ExtractionException {
+		extractor = new IntegerCSVExtractor(2, "\\|");
+		byte[] bytes = "xx1|-20|+300|4yy".getBytes();
+		assertThat(extractor.extract(bytes, 2, 12)).isEqualTo(300);
+
+		extractor = new IntegerCSVExtractor(1, ",");
+		assertThat(extractor.extract("1,-2147483648".getBytes(), 0, 13)).isEqualTo(Integer.MIN_VALUE);
+
+		// regular expression delimiters work on the decoded line
+		extractor = new IntegerCSVExtractor(1, "[ \t|]+");
+		assertThat(extractor.extract("5 \t6\t7".getBytes(), 0, 6)).isEqualTo(6);
+	}
+
+	@Test
+	public void scanBytesOfSingleCharacterDelimiters() {
+		assertThat(new IntegerCSVExtractor(0, "\\|").scansBytes()).isTrue();
+		assertThat(KeyExtractors.scansBytes(new IntegerCSVExtractor(0, ","))).isTrue();
+		assertThat(KeyExtractors.scansBytes(extractor)).isFalse();
+	}
+
+	@Test(expected = ExtractionException.class)
+	public void missingColumnInBytes() throws ExtractionException {
+		extractor = new IntegerCSVExtractor(3, ",");
+		extractor.extract("1,2,3".getBytes(), 0, 5);
+	}
+
+	@Test(expected = ExtractionException.class)
+	public void overflowInBytes() throws ExtractionException {
+		extractor = new IntegerCSVExtractor(0, ",");
+		extractor.extract("2147483648,2".getBytes(), 0, 12);
+	}
 }